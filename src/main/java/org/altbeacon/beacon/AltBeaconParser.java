@@ -34,6 +34,7 @@ import android.util.Log;
  */
 public class AltBeaconParser extends BeaconParser {
     public static final String TAG = "AltBeaconParser";
+    private static final long serialVersionUID = 7941909420314300850L;
 
     /**
      * Constructs an AltBeacon Parser and sets its layout
@@ -67,4 +68,9 @@ public class AltBeaconParser extends BeaconParser {
         return fromScanData(scanData, rssi, device, new AltBeacon());
     }
 
+    @Override
+    protected Beacon newBeacon() {
+        return new AltBeacon();
+    }
+
 }
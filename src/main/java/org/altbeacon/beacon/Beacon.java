@@ -58,6 +58,7 @@ import java.util.List;
  */
 public class Beacon implements Parcelable, Serializable {
     private static final String TAG = "Beacon";
+    private static final long serialVersionUID = -7315888454605479654L;
 
     private static final List<Long> UNMODIFIABLE_LIST_OF_LONG =
             Collections.unmodifiableList(new ArrayList<Long>());
@@ -176,6 +177,11 @@ public class Beacon implements Parcelable, Serializable {
      */
     protected boolean mMultiFrameBeacon = false;
 
+    /**
+     * Cached hash of the identifiers, used by hashCode()
+     */
+    private transient IdentifiersHash mIdentifiersHash;
+
     /**
      * Required for making object Parcelable.  If you override this class, you must provide an
      * equivalent version of this method.
@@ -459,6 +465,26 @@ public class Beacon implements Parcelable, Serializable {
         }
     }
 
+    /**
+     * Reserved for internal use by the library.  Replaces any identifiers that still refer to
+     * the scan record this beacon was parsed from with compact copies, so that the scan record is
+     * not kept alive for as long as the beacon is tracked.
+     * @hide
+     */
+    public void detachIdentifiersFromScanRecord() {
+        for (int i = 0; i < mIdentifiers.size(); i++) {
+            Identifier identifier = mIdentifiers.get(i);
+            if (identifier != null && identifier.isView()) {
+                ArrayList<Identifier> ownedIdentifiers = new ArrayList<Identifier>(mIdentifiers.size());
+                for (Identifier ownedIdentifier : mIdentifiers) {
+                    ownedIdentifiers.add(ownedIdentifier == null ? null : ownedIdentifier.toOwned());
+                }
+                mIdentifiers = ownedIdentifiers;
+                return;
+            }
+        }
+    }
+
 
     /**
      * Provides a calculated estimate of the distance to the beacon based on a running average of
@@ -536,11 +562,42 @@ public class Beacon implements Parcelable, Serializable {
      */
     @Override
     public int hashCode() {
-        StringBuilder sb = toStringBuilder();
+        IdentifiersHash identifiersHash = mIdentifiersHash;
+        if (identifiersHash == null || !identifiersHash.isValidFor(mIdentifiers)) {
+            identifiersHash = new IdentifiersHash(mIdentifiers);
+            mIdentifiersHash = identifiersHash;
+        }
         if (sHardwareEqualityEnforced) {
-            sb.append(mBluetoothAddress);
+            return 31 * identifiersHash.hashCode + (mBluetoothAddress == null ? 0 : mBluetoothAddress.hashCode());
+        }
+        return identifiersHash.hashCode;
+    }
+
+    /**
+     * The hash of an identifier list, which remains valid while the beacon still holds the same
+     * list with the same size.  Identifiers are immutable and the list is only appended to while
+     * a beacon is being built, so this is enough to detect any change.  All fields are final so
+     * that a cached instance can be read safely from any thread.
+     */
+    private static final class IdentifiersHash {
+        final List<Identifier> identifiers;
+        final int identifierCount;
+        final int hashCode;
+
+        IdentifiersHash(List<Identifier> identifiers) {
+            int hash = 1;
+            for (int i = 0; i < identifiers.size(); i++) {
+                Identifier identifier = identifiers.get(i);
+                hash = 31 * hash + (identifier == null ? 0 : identifier.hashCode());
+            }
+            this.identifiers = identifiers;
+            this.identifierCount = identifiers.size();
+            this.hashCode = hash;
+        }
+
+        boolean isValidFor(List<Identifier> currentIdentifiers) {
+            return currentIdentifiers == identifiers && currentIdentifiers.size() == identifierCount;
         }
-        return sb.toString().hashCode();
     }
 
     /**
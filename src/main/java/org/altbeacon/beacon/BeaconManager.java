@@ -41,22 +41,30 @@ import android.support.annotation.Nullable;
 
 import org.altbeacon.beacon.logging.LogManager;
 import org.altbeacon.beacon.logging.Loggers;
+import org.altbeacon.beacon.service.ArmaRssiFilter;
 import org.altbeacon.beacon.service.BeaconService;
 import org.altbeacon.beacon.service.Callback;
+import org.altbeacon.beacon.service.KalmanRssiFilter;
 import org.altbeacon.beacon.service.MonitoringStatus;
+import org.altbeacon.beacon.service.OneEuroRssiFilter;
 import org.altbeacon.beacon.service.RangeState;
 import org.altbeacon.beacon.service.RangedBeacon;
 import org.altbeacon.beacon.service.RegionMonitoringState;
+import org.altbeacon.beacon.service.RssiFilter;
+import org.altbeacon.beacon.service.RssiFilterFactory;
 import org.altbeacon.beacon.service.RunningAverageRssiFilter;
 import org.altbeacon.beacon.service.ScanJob;
 import org.altbeacon.beacon.service.ScanJobScheduler;
+import org.altbeacon.beacon.service.ScanPacketOverflowPolicy;
 import org.altbeacon.beacon.service.ScanState;
 import org.altbeacon.beacon.service.SettingsData;
 import org.altbeacon.beacon.service.StartRMData;
+import org.altbeacon.beacon.service.TrackedBeaconEvictionPolicy;
 import org.altbeacon.beacon.service.scanner.NonBeaconLeScanCallback;
 import org.altbeacon.beacon.simulator.BeaconSimulator;
 import org.altbeacon.beacon.utils.ProcessUtils;
 
+import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -218,7 +226,51 @@ public class BeaconManager {
 
     public static final long DEFAULT_FOREGROUND_BETWEEN_RANGE_UPDATE_PERIOD = 0;
 
+    /**
+     * The default number of scan packets that may wait to be processed before packets are dropped
+     */
+    public static final int DEFAULT_SCAN_PACKET_QUEUE_CAPACITY = 1000;
+
+    /**
+     * The default longest time in milliseconds that the recorded age of the region monitoring
+     * state may lag behind beacon detections
+     */
+    public static final long DEFAULT_MONITORING_STATUS_HEARTBEAT_PERIOD = 10000L;
+
+    /**
+     * The default longest time in milliseconds that a change in region state may wait before it
+     * is saved
+     */
+    public static final long DEFAULT_REGION_STATE_PERSISTENCE_PERIOD = 1000L;
+
+    /**
+     * The default number of devices whose beacons are remembered for merging extra data frames
+     */
+    public static final int DEFAULT_EXTRA_DATA_BEACON_TRACKER_CAPACITY = 1000;
+
+    /**
+     * The default duration in milliseconds that a device's beacons are remembered for merging
+     * extra data frames after the device was last seen
+     */
+    public static final long DEFAULT_EXTRA_DATA_BEACON_TRACKER_EXPIRATION_PERIOD = 10 * 60 * 1000L;
+
+    /**
+     * The default number of beacons that may be ranged in each region at once
+     */
+    public static final int DEFAULT_MAX_TRACKED_BEACONS = 1000;
+
     private static long sExitRegionPeriod = DEFAULT_EXIT_PERIOD;
+    private static int sScanPacketQueueCapacity = DEFAULT_SCAN_PACKET_QUEUE_CAPACITY;
+    @NonNull
+    private static ScanPacketOverflowPolicy sScanPacketOverflowPolicy = ScanPacketOverflowPolicy.DROP_OLDEST;
+    private static long sMonitoringStatusHeartbeatPeriod = DEFAULT_MONITORING_STATUS_HEARTBEAT_PERIOD;
+    private static long sRegionStatePersistencePeriod = DEFAULT_REGION_STATE_PERSISTENCE_PERIOD;
+    private static int sExtraDataBeaconTrackerCapacity = DEFAULT_EXTRA_DATA_BEACON_TRACKER_CAPACITY;
+    private static long sExtraDataBeaconTrackerExpirationPeriod = DEFAULT_EXTRA_DATA_BEACON_TRACKER_EXPIRATION_PERIOD;
+    private static int sMaxTrackedBeacons = DEFAULT_MAX_TRACKED_BEACONS;
+    private static final ConcurrentMap<Region, Integer> sRegionMaxTrackedBeacons = new ConcurrentHashMap<>();
+    @NonNull
+    private static TrackedBeaconEvictionPolicy sTrackedBeaconEvictionPolicy = TrackedBeaconEvictionPolicy.LEAST_RECENTLY_SEEN;
 
     private long foregroundScanPeriod = DEFAULT_FOREGROUND_SCAN_PERIOD;
     private long foregroundBetweenScanPeriod = DEFAULT_FOREGROUND_BETWEEN_SCAN_PERIOD;
@@ -781,8 +833,7 @@ public class BeaconManager {
      * Turns off saving the state of monitored regions to persistent storage so it is retained over
      * app restarts.  Defaults to enabled.  When enabled, there will not be an "extra" region entry
      * event when the app starts up and a beacon for a monitored region was previously visible
-     * within the past 15 minutes.  Note that there is a limit to 50 monitored regions that may be
-     * persisted.  If more than 50 regions are monitored, state is not persisted for any.
+     * within the past 15 minutes.
      *
      * @param enabled true to enable the region state persistence, false to disable it.
      */
@@ -1185,15 +1236,281 @@ public class BeaconManager {
      */
     protected static Class rssiFilterImplClass = RunningAverageRssiFilter.class;
 
+    @Nullable
+    private static RssiFilterFactory sRssiFilterFactory = null;
+    // Creates filters of rssiFilterImplClass when no factory is set
+    @Nullable
+    private static ClassRssiFilterFactory sClassRssiFilterFactory = null;
+
+    /**
+     * Sets the class of the filter used for the RSSI of each ranged beacon.  The class must have a
+     * public constructor that takes no arguments.  This replaces any factory set with
+     * {@link #setRssiFilterFactory(RssiFilterFactory)}.
+     */
     public static void setRssiFilterImplClass(@NonNull Class c) {
         warnIfScannerNotInSameProcess();
         rssiFilterImplClass = c;
+        sRssiFilterFactory = null;
     }
 
     public static Class getRssiFilterImplClass() {
         return rssiFilterImplClass;
     }
 
+    /**
+     * Sets the factory that creates the filter used for the RSSI of each ranged beacon, which
+     * takes precedence over {@link #setRssiFilterImplClass(Class)}.
+     *
+     * @param factory the factory, or null to create filters of the class set with
+     *                {@link #setRssiFilterImplClass(Class)}
+     */
+    public static void setRssiFilterFactory(@Nullable RssiFilterFactory factory) {
+        warnIfScannerNotInSameProcess();
+        sRssiFilterFactory = factory;
+    }
+
+    /**
+     * @return the factory set with {@link #setRssiFilterFactory(RssiFilterFactory)}, or if none
+     * is set one that creates filters of the class set with {@link #setRssiFilterImplClass(Class)}
+     */
+    @NonNull
+    public static RssiFilterFactory getRssiFilterFactory() {
+        RssiFilterFactory factory = sRssiFilterFactory;
+        if (factory != null) {
+            return factory;
+        }
+        ClassRssiFilterFactory classFactory = sClassRssiFilterFactory;
+        if (classFactory == null || classFactory.mFilterClass != rssiFilterImplClass) {
+            sClassRssiFilterFactory = classFactory = new ClassRssiFilterFactory(rssiFilterImplClass);
+        }
+        return classFactory;
+    }
+
+    /**
+     * Creates filters of a class, looking up its constructor once rather than for every filter.
+     */
+    private static final class ClassRssiFilterFactory implements RssiFilterFactory {
+        private final Class<?> mFilterClass;
+        @Nullable
+        private final Constructor<?> mConstructor;
+
+        ClassRssiFilterFactory(Class<?> filterClass) {
+            mFilterClass = filterClass;
+            Constructor<?> constructor = null;
+            if (filterClass != RunningAverageRssiFilter.class && filterClass != ArmaRssiFilter.class
+                    && filterClass != KalmanRssiFilter.class && filterClass != OneEuroRssiFilter.class) {
+                try {
+                    constructor = filterClass.getConstructor();
+                } catch (NoSuchMethodException e) {
+                    LogManager.e(TAG, "Could not find constructor for RssiFilterImplClass %s", filterClass.getName());
+                }
+            }
+            mConstructor = constructor;
+        }
+
+        @NonNull
+        @Override
+        public RssiFilter createRssiFilter(@NonNull Beacon beacon, @Nullable Region region) {
+            // The library's own filters are created without reflection
+            if (mFilterClass == RunningAverageRssiFilter.class) {
+                return new RunningAverageRssiFilter();
+            }
+            if (mFilterClass == ArmaRssiFilter.class) {
+                return new ArmaRssiFilter();
+            }
+            if (mFilterClass == KalmanRssiFilter.class) {
+                return new KalmanRssiFilter();
+            }
+            if (mFilterClass == OneEuroRssiFilter.class) {
+                return new OneEuroRssiFilter();
+            }
+            if (mConstructor == null) {
+                throw new IllegalStateException("No constructor for RssiFilterImplClass " + mFilterClass.getName());
+            }
+            try {
+                return (RssiFilter) mConstructor.newInstance();
+            } catch (Exception e) {
+                throw new IllegalStateException("Could not construct RssiFilterImplClass " + mFilterClass.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Sets how many detected packets may wait to be processed before the scanning service starts
+     * dropping them.  Takes effect the next time the scanning service is started.
+     *
+     * @param capacity the number of packets, which must be at least 1
+     */
+    public static void setScanPacketQueueCapacity(int capacity) {
+        warnIfScannerNotInSameProcess();
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Scan packet queue capacity must be at least 1");
+        }
+        sScanPacketQueueCapacity = capacity;
+    }
+
+    public static int getScanPacketQueueCapacity() {
+        return sScanPacketQueueCapacity;
+    }
+
+    /**
+     * Sets which packet is dropped when detected packets arrive faster than they can be processed
+     * and the queue set by {@link #setScanPacketQueueCapacity(int)} is full.  Takes effect the
+     * next time the scanning service is started.
+     *
+     * @param policy the overflow policy, {@link ScanPacketOverflowPolicy#DROP_OLDEST} by default
+     */
+    public static void setScanPacketOverflowPolicy(@NonNull ScanPacketOverflowPolicy policy) {
+        warnIfScannerNotInSameProcess();
+        sScanPacketOverflowPolicy = policy;
+    }
+
+    @NonNull
+    public static ScanPacketOverflowPolicy getScanPacketOverflowPolicy() {
+        return sScanPacketOverflowPolicy;
+    }
+
+    /**
+     * Sets how often the time that the region monitoring state was last confirmed is written to
+     * storage while beacons keep being detected.  That time decides whether the state is recent
+     * enough to restore after the app is restarted.  Longer periods mean fewer writes to storage.
+     *
+     * @param periodMillis the period in milliseconds, 10 seconds by default
+     */
+    public static void setMonitoringStatusHeartbeatPeriod(long periodMillis) {
+        warnIfScannerNotInSameProcess();
+        sMonitoringStatusHeartbeatPeriod = periodMillis;
+    }
+
+    public static long getMonitoringStatusHeartbeatPeriod() {
+        return sMonitoringStatusHeartbeatPeriod;
+    }
+
+    /**
+     * Sets how long changes to region state, such as entering or exiting a monitored region, may
+     * wait before they are saved.  All changes made within the period are saved together in the
+     * background, so a burst of region transitions does not hold up beacon processing.
+     *
+     * @param periodMillis the period in milliseconds, 1 second by default
+     */
+    public static void setRegionStatePersistencePeriod(long periodMillis) {
+        warnIfScannerNotInSameProcess();
+        sRegionStatePersistencePeriod = periodMillis;
+    }
+
+    public static long getRegionStatePersistencePeriod() {
+        return sRegionStatePersistencePeriod;
+    }
+
+    /**
+     * Sets how many devices' beacons are remembered so that extra data frames, such as
+     * Eddystone-TLM, can be merged into the beacons they belong to.  When more devices are seen,
+     * those seen least recently are forgotten.
+     *
+     * @param capacity the number of devices, which must be at least 1, 1000 by default
+     */
+    public static void setExtraDataBeaconTrackerCapacity(int capacity) {
+        warnIfScannerNotInSameProcess();
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Extra data beacon tracker capacity must be at least 1");
+        }
+        sExtraDataBeaconTrackerCapacity = capacity;
+    }
+
+    public static int getExtraDataBeaconTrackerCapacity() {
+        return sExtraDataBeaconTrackerCapacity;
+    }
+
+    /**
+     * Sets how long a device's beacons are remembered for merging extra data frames after the
+     * device was last seen.
+     *
+     * @param periodMillis the period in milliseconds, 10 minutes by default
+     */
+    public static void setExtraDataBeaconTrackerExpirationPeriod(long periodMillis) {
+        warnIfScannerNotInSameProcess();
+        sExtraDataBeaconTrackerExpirationPeriod = periodMillis;
+    }
+
+    public static long getExtraDataBeaconTrackerExpirationPeriod() {
+        return sExtraDataBeaconTrackerExpirationPeriod;
+    }
+
+    /**
+     * Sets how many beacons may be ranged in each region at once, unless set for the region with
+     * {@link #setMaxTrackedBeacons(Region, int)}.  When another beacon is seen, one stops being
+     * ranged as chosen by {@link #setTrackedBeaconEvictionPolicy(TrackedBeaconEvictionPolicy)}.
+     *
+     * @param maxTrackedBeacons the number of beacons, which must be at least 1, 1000 by default
+     */
+    public static void setMaxTrackedBeacons(int maxTrackedBeacons) {
+        warnIfScannerNotInSameProcess();
+        if (maxTrackedBeacons < 1) {
+            throw new IllegalArgumentException("Max tracked beacons must be at least 1");
+        }
+        sMaxTrackedBeacons = maxTrackedBeacons;
+    }
+
+    public static int getMaxTrackedBeacons() {
+        return sMaxTrackedBeacons;
+    }
+
+    /**
+     * Sets how many beacons may be ranged in one region at once, in place of the number set with
+     * {@link #setMaxTrackedBeacons(int)}.
+     *
+     * @param region            the ranged region
+     * @param maxTrackedBeacons the number of beacons, which must be at least 1
+     */
+    public static void setMaxTrackedBeacons(@NonNull Region region, int maxTrackedBeacons) {
+        warnIfScannerNotInSameProcess();
+        if (maxTrackedBeacons < 1) {
+            throw new IllegalArgumentException("Max tracked beacons must be at least 1");
+        }
+        sRegionMaxTrackedBeacons.put(region, maxTrackedBeacons);
+    }
+
+    /**
+     * Makes a region use the number of beacons set with {@link #setMaxTrackedBeacons(int)} again.
+     */
+    public static void clearMaxTrackedBeacons(@NonNull Region region) {
+        warnIfScannerNotInSameProcess();
+        sRegionMaxTrackedBeacons.remove(region);
+    }
+
+    /**
+     * @return how many beacons may be ranged in the region at once
+     */
+    public static int getMaxTrackedBeacons(@NonNull Region region) {
+        Integer maxTrackedBeacons = sRegionMaxTrackedBeacons.get(region);
+        return maxTrackedBeacons != null ? maxTrackedBeacons : sMaxTrackedBeacons;
+    }
+
+    /**
+     * Sets which beacon stops being ranged when a region is ranging as many beacons as allowed by
+     * {@link #setMaxTrackedBeacons(int)} and another beacon is seen.
+     *
+     * @param policy the eviction policy, {@link TrackedBeaconEvictionPolicy#LEAST_RECENTLY_SEEN}
+     *               by default
+     */
+    public static void setTrackedBeaconEvictionPolicy(@NonNull TrackedBeaconEvictionPolicy policy) {
+        warnIfScannerNotInSameProcess();
+        sTrackedBeaconEvictionPolicy = policy;
+    }
+
+    @NonNull
+    public static TrackedBeaconEvictionPolicy getTrackedBeaconEvictionPolicy() {
+        return sTrackedBeaconEvictionPolicy;
+    }
+
+    /**
+     * @return the number of beacons that have stopped being ranged in any region since the
+     * scanning process started because the region was ranging as many beacons as allowed
+     */
+    public static long getEvictedTrackedBeaconCount() {
+        return RangeState.getTotalEvictedBeaconCount();
+    }
+
     /**
      * Allow the library to use a tracking cache
      * @param useTrackingCache
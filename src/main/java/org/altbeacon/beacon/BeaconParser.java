@@ -6,8 +6,8 @@ import android.os.Build;
 import android.util.Log;
 
 import org.altbeacon.beacon.logging.LogManager;
-import org.altbeacon.bluetooth.BleAdvertisement;
 import org.altbeacon.bluetooth.Pdu;
+import org.altbeacon.bluetooth.PduCursor;
 
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -39,6 +39,7 @@ import java.util.regex.Pattern;
  */
 public class BeaconParser implements Serializable {
     private static final String TAG = "BeaconParser";
+    private static final long serialVersionUID = 6103616684195509141L;
     public static final String ALTBEACON_LAYOUT = "m:2-3=beac,i:4-19,i:20-21,i:22-23,p:24-24,d:25-25";
     public static final String EDDYSTONE_TLM_LAYOUT = "x,s:0-1=feaa,m:2-2=20,d:3-3,d:4-5,d:6-7,d:8-11,d:12-15";
     public static final String EDDYSTONE_UID_LAYOUT = "s:0-1=feaa,m:2-2=00,p:3-3:-41,i:4-13,i:14-19";
@@ -80,6 +81,12 @@ public class BeaconParser implements Serializable {
 
     protected List<BeaconParser> extraParsers = new ArrayList<BeaconParser>();
 
+    /**
+     * The layout compiled into primitive arrays so that <code>fromScanData</code> does not have to
+     * unbox offsets or rebuild the matching byte sequences for every packet.  This is rebuilt
+     * lazily whenever a setting that affects parsing changes, and after deserialization.
+     */
+    private transient LayoutPlan mLayoutPlan;
 
     /**
      * Makes a new BeaconParser.  Should normally be immediately followed by a call to #setLayout
@@ -285,6 +292,7 @@ public class BeaconParser implements Serializable {
             throw new BeaconLayoutException("You must supply a matching beacon type expression with a prefix of 'm'");
         }
         mLayoutSize = calculateLayoutSize();
+        mLayoutPlan = null;
         return this;
     }
 
@@ -353,6 +361,7 @@ public class BeaconParser implements Serializable {
      */
     public void setAllowPduOverflow(Boolean enabled) {
         mAllowPduOverflow = enabled;
+        mLayoutPlan = null;
     }
 
     /**
@@ -404,6 +413,27 @@ public class BeaconParser implements Serializable {
         return mServiceUuidEndOffset;
     }
 
+    /**
+     * Reserved for internal use by the library.
+     * @return true if the layout sets the start and end offsets of the service uuid, so
+     * {@link #getMServiceUuidStartOffset()} and {@link #getServiceUuidEndOffset()} may be called
+     * @hide
+     */
+    public boolean hasServiceUuidOffsets() {
+        return mServiceUuidStartOffset != null && mServiceUuidEndOffset != null;
+    }
+
+    /**
+     * Reserved for internal use by the library.
+     * @return true if the layout sets the start and end offsets of the beacon type code, so
+     * {@link #getMatchingBeaconTypeCodeStartOffset()} and
+     * {@link #getMatchingBeaconTypeCodeEndOffset()} may be called
+     * @hide
+     */
+    public boolean hasMatchingBeaconTypeCodeOffsets() {
+        return mMatchingBeaconTypeCodeStartOffset != null && mMatchingBeaconTypeCodeEndOffset != null;
+    }
+
 
     /**
      * Construct a Beacon from a Bluetooth LE packet collected by Android's Bluetooth APIs,
@@ -419,60 +449,72 @@ public class BeaconParser implements Serializable {
     }
 
     protected Beacon fromScanData(byte[] bytesToProcess, int rssi, BluetoothDevice device, Beacon beacon) {
-        BleAdvertisement advert = new BleAdvertisement(bytesToProcess);
+        return fromScanData(bytesToProcess, rssi, device, beacon, false);
+    }
+
+    /**
+     * Reserved for internal use by the library.  Constructs a Beacon like
+     * {@link #fromScanData(byte[], int, BluetoothDevice)}, but with identifiers that refer directly
+     * to <code>scanData</code> rather than to copies of it, so the array must not be modified
+     * while the beacon is in use.  Call {@link Beacon#detachIdentifiersFromScanRecord()} before
+     * keeping the beacon.  Only used for parsers whose <code>fromScanData</code> is not
+     * overridden outside the library.
+     * @hide
+     */
+    public Beacon fromScanDataReferencingScanRecord(byte[] scanData, int rssi, BluetoothDevice device) {
+        return fromScanData(scanData, rssi, device, newBeacon(), true);
+    }
+
+    /**
+     * @return a new instance of the class of beacon this parser constructs
+     */
+    protected Beacon newBeacon() {
+        return new Beacon();
+    }
+
+    private Beacon fromScanData(byte[] bytesToProcess, int rssi, BluetoothDevice device, Beacon beacon,
+                                boolean referenceScanRecord) {
+        LayoutPlan plan = getLayoutPlan();
         boolean parseFailed = false;
-        Pdu pduToParse = null;
+        int pduToParse = PduCursor.END;
         int startByte = 0;
-        ArrayList<Identifier> identifiers = new ArrayList<Identifier>();
-        ArrayList<Long> dataFields = new ArrayList<Long>();
+        ArrayList<Identifier> identifiers = new ArrayList<Identifier>(plan.identifierStartOffsets.length);
+        ArrayList<Long> dataFields = new ArrayList<Long>(plan.dataStartOffsets.length);
 
-        for (Pdu pdu: advert.getPdus()) {
-            if (pdu.getType() == Pdu.GATT_SERVICE_UUID_PDU_TYPE ||
-                    pdu.getType() == Pdu.MANUFACTURER_DATA_PDU_TYPE) {
+        for (int pdu = PduCursor.first(bytesToProcess); pdu != PduCursor.END; pdu = PduCursor.next(bytesToProcess, pdu)) {
+            byte pduType = PduCursor.getType(bytesToProcess, pdu);
+            if (pduType == Pdu.GATT_SERVICE_UUID_PDU_TYPE ||
+                    pduType == Pdu.MANUFACTURER_DATA_PDU_TYPE) {
                 pduToParse = pdu;
                 if (LogManager.isVerboseLoggingEnabled()) {
-                    LogManager.d(TAG, "Processing pdu type %02X: %s with startIndex: %d, endIndex: %d", pdu.getType(), bytesToHex(bytesToProcess), pdu.getStartIndex(), pdu.getEndIndex());
+                    LogManager.d(TAG, "Processing pdu type %02X: %s with startIndex: %d, endIndex: %d", pduType, bytesToHex(bytesToProcess), PduCursor.getStartIndex(pdu), PduCursor.getEndIndex(bytesToProcess, pdu));
                 }
                 break;
             }
             else {
                 if (LogManager.isVerboseLoggingEnabled()) {
-                    LogManager.d(TAG, "Ignoring pdu type %02X", pdu.getType());
+                    LogManager.d(TAG, "Ignoring pdu type %02X", pduType);
                 }
             }
         }
-        if (pduToParse == null) {
+        if (pduToParse == PduCursor.END) {
             if (LogManager.isVerboseLoggingEnabled()) {
                 LogManager.d(TAG, "No PDUs to process in this packet.");
             }
             parseFailed = true;
         }
         else {
-            byte[] serviceUuidBytes = null;
-            byte[] typeCodeBytes = longToByteArray(getMatchingBeaconTypeCode(), mMatchingBeaconTypeCodeEndOffset - mMatchingBeaconTypeCodeStartOffset + 1);
-            if (getServiceUuid() != null) {
-                serviceUuidBytes = longToByteArray(getServiceUuid(), mServiceUuidEndOffset - mServiceUuidStartOffset + 1, false);
-            }
-            startByte = pduToParse.getStartIndex();
-            boolean patternFound = false;
-
-            if (getServiceUuid() == null) {
-                if (byteArraysMatch(bytesToProcess, startByte + mMatchingBeaconTypeCodeStartOffset, typeCodeBytes)) {
-                    patternFound = true;
-                }
-            } else {
-                if (byteArraysMatch(bytesToProcess, startByte + mServiceUuidStartOffset, serviceUuidBytes) &&
-                        byteArraysMatch(bytesToProcess, startByte + mMatchingBeaconTypeCodeStartOffset, typeCodeBytes)) {
-                    patternFound = true;
-                }
-            }
+            startByte = PduCursor.getStartIndex(pduToParse);
+            // The PDU end must be taken before any zero padding below is added to the buffer
+            int pduEndIndex = PduCursor.getEndIndex(bytesToProcess, pduToParse);
+            boolean patternFound = plan.matches(bytesToProcess, startByte);
 
             if (patternFound == false) {
                 // This is not a beacon
-                if (getServiceUuid() == null) {
+                if (plan.serviceUuidBytes == null) {
                     if (LogManager.isVerboseLoggingEnabled()) {
                         LogManager.d(TAG, "This is not a matching Beacon advertisement. (Was expecting %s.  "
-                                        + "The bytes I see are: %s", byteArrayToString(typeCodeBytes),
+                                        + "The bytes I see are: %s", byteArrayToString(plan.typeCodeBytes),
                                 bytesToHex(bytesToProcess));
 
                     }
@@ -480,10 +522,10 @@ public class BeaconParser implements Serializable {
                     if (LogManager.isVerboseLoggingEnabled()) {
                         LogManager.d(TAG, "This is not a matching Beacon advertisement. Was expecting %s at offset %d and %s at offset %d.  "
                                         + "The bytes I see are: %s",
-                                byteArrayToString(serviceUuidBytes),
-                                startByte + mServiceUuidStartOffset,
-                                byteArrayToString(typeCodeBytes),
-                                startByte + mMatchingBeaconTypeCodeStartOffset,
+                                byteArrayToString(plan.serviceUuidBytes),
+                                startByte + plan.serviceUuidStartOffset,
+                                byteArrayToString(plan.typeCodeBytes),
+                                startByte + plan.typeCodeStartOffset,
                                 bytesToHex(bytesToProcess));
                     }
                 }
@@ -492,71 +534,67 @@ public class BeaconParser implements Serializable {
             } else {
                 if (LogManager.isVerboseLoggingEnabled()) {
                     LogManager.d(TAG, "This is a recognized beacon advertisement -- %s seen",
-                            byteArrayToString(typeCodeBytes));
+                            byteArrayToString(plan.typeCodeBytes));
                     LogManager.d(TAG, "Bytes are: %s", bytesToHex(bytesToProcess));
                 }
             }
 
             if (patternFound) {
-                if (bytesToProcess.length <= startByte+mLayoutSize && mAllowPduOverflow) {
+                if (bytesToProcess.length <= startByte+plan.layoutSize && plan.allowPduOverflow) {
                     // If the layout size is bigger than this PDU, and we allow overflow.  Make sure
                     // the byte buffer is big enough by zero padding the end so we don't try to read
                     // outside the byte array of the advertisement
                     if (LogManager.isVerboseLoggingEnabled()) {
-                        LogManager.d(TAG, "Expanding buffer because it is too short to parse: "+bytesToProcess.length+", needed: "+(startByte+mLayoutSize));
+                        LogManager.d(TAG, "Expanding buffer because it is too short to parse: "+bytesToProcess.length+", needed: "+(startByte+plan.layoutSize));
                     }
-                    bytesToProcess = ensureMaxSize(bytesToProcess, startByte+mLayoutSize);
+                    bytesToProcess = ensureMaxSize(bytesToProcess, startByte+plan.layoutSize);
                 }
-                for (int i = 0; i < mIdentifierEndOffsets.size(); i++) {
-                    int endIndex = mIdentifierEndOffsets.get(i) + startByte;
+                for (int i = 0; i < plan.identifierEndOffsets.length; i++) {
+                    int endIndex = plan.identifierEndOffsets[i] + startByte;
 
-                    if (endIndex > pduToParse.getEndIndex() && mIdentifierVariableLengthFlags.get(i)) {
+                    if (endIndex > pduEndIndex && plan.identifierVariableLengthFlags[i]) {
                         if (LogManager.isVerboseLoggingEnabled()) {
-                            LogManager.d(TAG, "Need to truncate identifier by "+(endIndex-pduToParse.getEndIndex()));
+                            LogManager.d(TAG, "Need to truncate identifier by "+(endIndex-pduEndIndex));
                         }
                         // If this is a variable length identifier, we truncate it to the size that
                         // is available in the packet
-                        Identifier identifier = Identifier.fromBytes(bytesToProcess, mIdentifierStartOffsets.get(i) + startByte, pduToParse.getEndIndex()+1, mIdentifierLittleEndianFlags.get(i));
-                        identifiers.add(identifier);
+                        identifiers.add(newIdentifier(bytesToProcess, plan.identifierStartOffsets[i] + startByte, pduEndIndex+1, plan.identifierLittleEndianFlags[i], referenceScanRecord));
                     }
-                    else if (endIndex > pduToParse.getEndIndex() && !mAllowPduOverflow) {
+                    else if (endIndex > pduEndIndex && !plan.allowPduOverflow) {
                         parseFailed = true;
                         if (LogManager.isVerboseLoggingEnabled()) {
-                            LogManager.d(TAG, "Cannot parse identifier "+i+" because PDU is too short.  endIndex: " + endIndex + " PDU endIndex: " + pduToParse.getEndIndex());
+                            LogManager.d(TAG, "Cannot parse identifier "+i+" because PDU is too short.  endIndex: " + endIndex + " PDU endIndex: " + pduEndIndex);
                         }
                     }
                     else {
-                        Identifier identifier = Identifier.fromBytes(bytesToProcess, mIdentifierStartOffsets.get(i) + startByte, endIndex+1, mIdentifierLittleEndianFlags.get(i));
-                        identifiers.add(identifier);
+                        identifiers.add(newIdentifier(bytesToProcess, plan.identifierStartOffsets[i] + startByte, endIndex+1, plan.identifierLittleEndianFlags[i], referenceScanRecord));
                     }
                 }
-                for (int i = 0; i < mDataEndOffsets.size(); i++) {
-                    int endIndex = mDataEndOffsets.get(i) + startByte;
-                    if (endIndex > pduToParse.getEndIndex() && !mAllowPduOverflow) {
+                for (int i = 0; i < plan.dataEndOffsets.length; i++) {
+                    int endIndex = plan.dataEndOffsets[i] + startByte;
+                    if (endIndex > pduEndIndex && !plan.allowPduOverflow) {
                         if (LogManager.isVerboseLoggingEnabled()) {
-                            LogManager.d(TAG, "Cannot parse data field "+i+" because PDU is too short.  endIndex: " + endIndex + " PDU endIndex: " + pduToParse.getEndIndex()+".  Setting value to 0");
+                            LogManager.d(TAG, "Cannot parse data field "+i+" because PDU is too short.  endIndex: " + endIndex + " PDU endIndex: " + pduEndIndex+".  Setting value to 0");
                         }
                         dataFields.add(new Long(0l));
                     }
                     else {
-                        String dataString = byteArrayToFormattedString(bytesToProcess, mDataStartOffsets.get(i) + startByte, endIndex, mDataLittleEndianFlags.get(i));
-                        dataFields.add(Long.decode(dataString));
+                        dataFields.add(decodeUnsigned(bytesToProcess, plan.dataStartOffsets[i] + startByte, endIndex, plan.dataLittleEndianFlags[i]));
                     }
                 }
 
-                if (mPowerStartOffset != null) {
-                    int endIndex = mPowerEndOffset + startByte;
+                if (plan.hasPowerField) {
+                    int endIndex = plan.powerEndOffset + startByte;
                     int txPower = 0;
                     try {
-                        if (endIndex > pduToParse.getEndIndex() && !mAllowPduOverflow) {
+                        if (endIndex > pduEndIndex && !plan.allowPduOverflow) {
                             parseFailed = true;
                             if (LogManager.isVerboseLoggingEnabled()) {
-                                LogManager.d(TAG, "Cannot parse power field because PDU is too short.  endIndex: " + endIndex + " PDU endIndex: " + pduToParse.getEndIndex());
+                                LogManager.d(TAG, "Cannot parse power field because PDU is too short.  endIndex: " + endIndex + " PDU endIndex: " + pduEndIndex);
                             }
                         }
                         else {
-                            String powerString = byteArrayToFormattedString(bytesToProcess, mPowerStartOffset + startByte, mPowerEndOffset + startByte, false);
-                            txPower = Integer.parseInt(powerString)+mDBmCorrection;
+                            txPower = (int) decodeUnsigned(bytesToProcess, plan.powerStartOffset + startByte, plan.powerEndOffset + startByte, false)+plan.dBmCorrection;
                             // make sure it is a signed integer
                             if (txPower > 127) {
                                 txPower -= 256;
@@ -578,14 +616,8 @@ public class BeaconParser implements Serializable {
             beacon = null;
         }
         else {
-            int beaconTypeCode = 0;
-            String beaconTypeString = byteArrayToFormattedString(bytesToProcess, mMatchingBeaconTypeCodeStartOffset+startByte, mMatchingBeaconTypeCodeEndOffset+startByte, false);
-            beaconTypeCode = Integer.parseInt(beaconTypeString);
-            // TODO: error handling needed on the parse
-
-            int manufacturer = 0;
-            String manufacturerString = byteArrayToFormattedString(bytesToProcess, startByte, startByte+1, true);
-            manufacturer = Integer.parseInt(manufacturerString);
+            int beaconTypeCode = (int) decodeUnsigned(bytesToProcess, plan.typeCodeStartOffset+startByte, plan.typeCodeEndOffset+startByte, false);
+            int manufacturer = (int) decodeUnsigned(bytesToProcess, startByte, startByte+1, true);
 
             String macAddress = null;
             String name = null;
@@ -598,12 +630,7 @@ public class BeaconParser implements Serializable {
             beacon.mDataFields = dataFields;
             beacon.mRssi = rssi;
             beacon.mBeaconTypeCode = beaconTypeCode;
-            if (mServiceUuid != null) {
-                beacon.mServiceUuid = (int) mServiceUuid.longValue();
-            }
-            else {
-                beacon.mServiceUuid = -1;
-            }
+            beacon.mServiceUuid = plan.serviceUuid;
 
             beacon.mBluetoothAddress = macAddress;
             beacon.mBluetoothName= name;
@@ -732,6 +759,7 @@ public class BeaconParser implements Serializable {
 
     public BeaconParser setMatchingBeaconTypeCode(Long typeCode) {
         mMatchingBeaconTypeCode = typeCode;
+        mLayoutPlan = null;
         return this;
     }
 
@@ -828,7 +856,7 @@ public class BeaconParser implements Serializable {
         return lastEndOffset+1;
     }
 
-    private boolean byteArraysMatch(byte[] source, int offset, byte[] expected) {
+    private static boolean byteArraysMatch(byte[] source, int offset, byte[] expected) {
         int length = expected.length;
         if (source.length - offset < length) {
             return false;
@@ -850,59 +878,137 @@ public class BeaconParser implements Serializable {
         return sb.toString().trim();
     }
 
-    private String byteArrayToFormattedString(byte[] byteBuffer, int startIndex, int endIndex, boolean littleEndian) {
-        byte[] bytes = new byte[endIndex-startIndex+1];
+    /**
+     * Decodes the bytes from <code>startIndex</code> to <code>endIndex</code> inclusive as an
+     * unsigned integer without allocating.  Fields longer than eight bytes keep only their least
+     * significant eight bytes.
+     */
+    static long decodeUnsigned(byte[] byteBuffer, int startIndex, int endIndex, boolean littleEndian) {
+        long number = 0l;
         if (littleEndian) {
-            for (int i = 0; i <= endIndex-startIndex; i++) {
-                bytes[i] = byteBuffer[startIndex+bytes.length-1-i];
+            for (int i = endIndex; i >= startIndex; i--) {
+                number = (number << 8) | (byteBuffer[i] & 0xff);
             }
         }
         else {
-            for (int i = 0; i <= endIndex-startIndex; i++) {
-                bytes[i] = byteBuffer[startIndex+i];
+            for (int i = startIndex; i <= endIndex; i++) {
+                number = (number << 8) | (byteBuffer[i] & 0xff);
             }
         }
+        return number;
+    }
+
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    private static Identifier newIdentifier(byte[] bytes, int start, int end, boolean littleEndian,
+                                            boolean referenceScanRecord) {
+        return referenceScanRecord ? Identifier.viewOf(bytes, start, end, littleEndian)
+                : Identifier.fromBytes(bytes, start, end, littleEndian);
+    }
+
+    private byte[] ensureMaxSize(byte[] array, int requiredLength) {
+        if (array.length >= requiredLength) {
+            return array;
+        }
+        return Arrays.copyOf(array, requiredLength);
+    }
 
+    /**
+     * Returns the compiled form of this parser's layout, building it on first use after the
+     * layout changes.  Plans are immutable, so a plan may be safely shared by multiple scan
+     * threads even if it is rebuilt concurrently.
+     */
+    private LayoutPlan getLayoutPlan() {
+        LayoutPlan plan = mLayoutPlan;
+        if (plan == null) {
+            plan = new LayoutPlan(this);
+            mLayoutPlan = plan;
+        }
+        return plan;
+    }
 
-        int length = endIndex-startIndex +1;
-        // We treat a 1-4 byte number as decimal string
-        if (length < 5) {
-            long number = 0l;
-            for (int i = 0; i < bytes.length; i++)  {
-                long byteValue = (long) (bytes[bytes.length - i-1] & 0xff);
-                long positionValue = (long) Math.pow(256.0,i*1.0);
-                long calculatedValue =  (byteValue * positionValue);
-                number += calculatedValue;
+    /**
+     * An immutable snapshot of a beacon layout with all offsets unboxed into primitive arrays and
+     * the byte sequences used to recognize the beacon precomputed.
+     */
+    private static final class LayoutPlan {
+        final int[] identifierStartOffsets;
+        final int[] identifierEndOffsets;
+        final boolean[] identifierLittleEndianFlags;
+        final boolean[] identifierVariableLengthFlags;
+        final int[] dataStartOffsets;
+        final int[] dataEndOffsets;
+        final boolean[] dataLittleEndianFlags;
+        final int typeCodeStartOffset;
+        final int typeCodeEndOffset;
+        final byte[] typeCodeBytes;
+        final int serviceUuidStartOffset;
+        final byte[] serviceUuidBytes;
+        final int serviceUuid;
+        final boolean hasPowerField;
+        final int powerStartOffset;
+        final int powerEndOffset;
+        final int dBmCorrection;
+        final int layoutSize;
+        final boolean allowPduOverflow;
+
+        LayoutPlan(BeaconParser parser) {
+            identifierStartOffsets = toIntArray(parser.mIdentifierStartOffsets);
+            identifierEndOffsets = toIntArray(parser.mIdentifierEndOffsets);
+            identifierLittleEndianFlags = toBooleanArray(parser.mIdentifierLittleEndianFlags);
+            identifierVariableLengthFlags = toBooleanArray(parser.mIdentifierVariableLengthFlags);
+            dataStartOffsets = toIntArray(parser.mDataStartOffsets);
+            dataEndOffsets = toIntArray(parser.mDataEndOffsets);
+            dataLittleEndianFlags = toBooleanArray(parser.mDataLittleEndianFlags);
+            typeCodeStartOffset = parser.mMatchingBeaconTypeCodeStartOffset;
+            typeCodeEndOffset = parser.mMatchingBeaconTypeCodeEndOffset;
+            typeCodeBytes = longToByteArray(parser.getMatchingBeaconTypeCode(),
+                    typeCodeEndOffset - typeCodeStartOffset + 1);
+            if (parser.mServiceUuid != null) {
+                serviceUuidStartOffset = parser.mServiceUuidStartOffset;
+                serviceUuidBytes = longToByteArray(parser.mServiceUuid,
+                        parser.mServiceUuidEndOffset - serviceUuidStartOffset + 1, false);
+                serviceUuid = (int) parser.mServiceUuid.longValue();
+            }
+            else {
+                serviceUuidStartOffset = 0;
+                serviceUuidBytes = null;
+                serviceUuid = -1;
             }
-            return Long.toString(number);
+            hasPowerField = parser.mPowerStartOffset != null;
+            powerStartOffset = hasPowerField ? parser.mPowerStartOffset : 0;
+            powerEndOffset = hasPowerField && parser.mPowerEndOffset != null ? parser.mPowerEndOffset : 0;
+            dBmCorrection = parser.mDBmCorrection != null ? parser.mDBmCorrection : 0;
+            layoutSize = parser.mLayoutSize != null ? parser.mLayoutSize : 0;
+            allowPduOverflow = parser.mAllowPduOverflow != null && parser.mAllowPduOverflow;
         }
 
-        // We treat a 7+ byte number as a hex string
-        String hexString = bytesToHex(bytes);
+        /**
+         * Checks the matching byte sequence (and service UUID, if any) against a PDU whose payload
+         * begins at <code>startByte</code>
+         */
+        boolean matches(byte[] bytes, int startByte) {
+            if (serviceUuidBytes != null &&
+                    !byteArraysMatch(bytes, startByte + serviceUuidStartOffset, serviceUuidBytes)) {
+                return false;
+            }
+            return byteArraysMatch(bytes, startByte + typeCodeStartOffset, typeCodeBytes);
+        }
 
-        // And if it is a 12 byte number we add dashes to it to make it look like a standard UUID
-        if (bytes.length == 16) {
-            StringBuilder sb = new StringBuilder();
-            sb.append(hexString.substring(0,8));
-            sb.append("-");
-            sb.append(hexString.substring(8,12));
-            sb.append("-");
-            sb.append(hexString.substring(12,16));
-            sb.append("-");
-            sb.append(hexString.substring(16,20));
-            sb.append("-");
-            sb.append(hexString.substring(20,32));
-            return sb.toString();
+        private static int[] toIntArray(List<Integer> values) {
+            int[] result = new int[values.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = values.get(i);
+            }
+            return result;
         }
-        return "0x"+hexString;
-    }
 
-    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
-    private byte[] ensureMaxSize(byte[] array, int requiredLength) {
-        if (array.length >= requiredLength) {
-            return array;
+        private static boolean[] toBooleanArray(List<Boolean> values) {
+            boolean[] result = new boolean[values.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = values.get(i);
+            }
+            return result;
         }
-        return Arrays.copyOf(array, requiredLength);
     }
 
     @Override
@@ -6,8 +6,6 @@ import android.os.Build;
 import org.altbeacon.beacon.logging.LogManager;
 
 import java.io.Serializable;
-import java.nio.ByteBuffer;
-import java.nio.LongBuffer;
 import java.util.Arrays;
 import java.util.UUID;
 import java.util.regex.Pattern;
@@ -18,7 +16,14 @@ import java.util.regex.Pattern;
  * <p>
  * Instances of this class are immutable, so those can be shared without problem between threads.
  * <p>
- * The value is internally this is stored as a byte array.
+ * The value is internally this is stored as a byte array.  Identifiers parsed from a scan record
+ * may refer directly to a slice of that scan record rather than to a copy, so that beacons which
+ * are dropped without being tracked cost no extra allocations.  Such identifiers are replaced with
+ * compact copies before being serialized or retained by the scanning service.
+ * <p>
+ * Identifiers of up to 16 bytes created by the factory methods are stored in primitive fields
+ * rather than an array, with their hash code computed once.  All representations of the same
+ * value are equal to each other and behave identically.
  */
 public class Identifier implements Comparable<Identifier>, Serializable {
     private static final Pattern HEX_PATTERN = Pattern.compile("^0x[0-9A-Fa-f]*$");
@@ -28,7 +33,14 @@ public class Identifier implements Comparable<Identifier>, Serializable {
     private static final Pattern UUID_PATTERN = Pattern.compile("^[0-9A-Fa-f]{8}-?[0-9A-Fa-f]{4}-?[0-9A-Fa-f]{4}-?[0-9A-Fa-f]{4}-?[0-9A-Fa-f]{12}$");
     private static final int MAX_INTEGER = 65535;
 
+    private static final long serialVersionUID = 9184992129043765877L;
+
     private final byte[] mValue;
+    // The slice of mValue holding this identifier.  These are not serialized, since a serialized
+    // identifier always owns its whole array.  See writeReplace() and readResolve().
+    private final transient int mOffset;
+    private final transient int mLength;
+    private final transient boolean mLittleEndian;
 
     /**
      * Takes the passed string and tries to figure out what format it is in.
@@ -118,7 +130,7 @@ public class Identifier implements Comparable<Identifier>, Serializable {
         for (int i = 0; i < result.length; i++) {
             result[i] = (byte)(Integer.parseInt(str.substring(i * 2, i * 2 + 2), 16) & 0xFF);
         }
-        return new Identifier(result);
+        return compact(result);
     }
 
     /**
@@ -136,7 +148,7 @@ public class Identifier implements Comparable<Identifier>, Serializable {
             newValue[i] = (byte) (longValue & 0xff);
             longValue = longValue >> 8;
         }
-        return new Identifier(newValue);
+        return compact(newValue);
     }
 
     /**
@@ -149,12 +161,7 @@ public class Identifier implements Comparable<Identifier>, Serializable {
             throw new IllegalArgumentException("Identifiers can only be constructed from integers between 0 and " + MAX_INTEGER + " (inclusive).");
         }
 
-        byte[] newValue = new byte[2];
-
-        newValue[0] = (byte) (intValue >> 8);
-        newValue[1] = (byte) (intValue);
-
-        return new Identifier(newValue);
+        return new Int16Identifier(intValue);
     }
 
     /**
@@ -187,7 +194,29 @@ public class Identifier implements Comparable<Identifier>, Serializable {
         if (littleEndian) {
             reverseArray(byteRange);
         }
-        return new Identifier(byteRange);
+        return compact(byteRange);
+    }
+
+    /**
+     * Creates an Identifier that refers to the specified range of the array without copying it.
+     * The array must not be modified afterwards.  Use {@link #toOwned()} to get a copy that no
+     * longer refers to the array.
+     * @see #fromBytes(byte[], int, int, boolean)
+     */
+    static Identifier viewOf(byte[] bytes, int start, int end, boolean littleEndian) {
+        if (bytes == null) {
+            throw new NullPointerException("Identifiers cannot be constructed from null pointers but \"bytes\" is null.");
+        }
+        if (start < 0 || start > bytes.length) {
+            throw new ArrayIndexOutOfBoundsException("start < 0 || start > bytes.length");
+        }
+        if (end > bytes.length) {
+            throw new ArrayIndexOutOfBoundsException("end > bytes.length");
+        }
+        if (start > end) {
+            throw new IllegalArgumentException("start > end");
+        }
+        return new Identifier(bytes, start, end - start, littleEndian);
     }
 
     /**
@@ -196,10 +225,28 @@ public class Identifier implements Comparable<Identifier>, Serializable {
      * UUID are used so this is fast and stable.
      */
     public static Identifier fromUuid(UUID uuid) {
-        ByteBuffer buf = ByteBuffer.allocate(16);
-        buf.putLong(uuid.getMostSignificantBits());
-        buf.putLong(uuid.getLeastSignificantBits());
-        return new Identifier(buf.array());
+        return new PackedIdentifier(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), 16);
+    }
+
+    /**
+     * Creates an Identifier with the most compact representation for the value, which is
+     * owned by the new Identifier and must not be changed afterwards.
+     */
+    private static Identifier compact(byte[] value) {
+        if (value.length == 2) {
+            return new Int16Identifier(((value[0] & 0xff) << 8) | (value[1] & 0xff));
+        }
+        if (value.length > 0 && value.length <= 16) {
+            long high = 0l;
+            long low = 0l;
+            for (byte b : value) {
+                // shift the whole 128-bit value left by a byte
+                high = (high << 8) | (low >>> 56);
+                low = (low << 8) | (b & 0xff);
+            }
+            return new PackedIdentifier(high, low, value.length);
+        }
+        return new Identifier(value);
     }
 
     /**
@@ -213,7 +260,10 @@ public class Identifier implements Comparable<Identifier>, Serializable {
         if (identifier == null) {
             throw new NullPointerException("Identifiers cannot be constructed from null pointers but \"identifier\" is null.");
         }
-        mValue = identifier.mValue;
+        mValue = identifier.toByteArray();
+        mOffset = 0;
+        mLength = mValue.length;
+        mLittleEndian = false;
     }
 
     /**
@@ -225,6 +275,64 @@ public class Identifier implements Comparable<Identifier>, Serializable {
             throw new NullPointerException("Identifiers cannot be constructed from null pointers but \"value\" is null.");
         }
         this.mValue = value;
+        this.mOffset = 0;
+        this.mLength = value.length;
+        this.mLittleEndian = false;
+    }
+
+    private Identifier(byte[] value, int offset, int length, boolean littleEndian) {
+        this.mValue = value;
+        this.mOffset = offset;
+        this.mLength = length;
+        this.mLittleEndian = littleEndian;
+    }
+
+    /**
+     * For compact subclasses, which hold their value in their own fields
+     */
+    private Identifier(int length) {
+        this.mValue = null;
+        this.mOffset = 0;
+        this.mLength = length;
+        this.mLittleEndian = false;
+    }
+
+    /**
+     * Returns true if this identifier refers to part of a larger array, such as a scan record,
+     * rather than owning its value.
+     */
+    boolean isView() {
+        return mValue != null && (mOffset != 0 || mLength != mValue.length || mLittleEndian);
+    }
+
+    /**
+     * Returns an identifier with the same value that owns its storage, which is this identifier
+     * unless it is a view.
+     */
+    Identifier toOwned() {
+        return isView() ? compact(toByteArray()) : this;
+    }
+
+    byte byteAt(int i) {
+        return mLittleEndian ? mValue[mOffset + mLength - 1 - i] : mValue[mOffset + i];
+    }
+
+    /**
+     * Every representation is serialized as a plain array-backed Identifier, which keeps the
+     * serialized form unchanged.
+     */
+    Object writeReplace() {
+        if (mValue == null || isView()) {
+            return new Identifier(toByteArray());
+        }
+        return this;
+    }
+
+    /**
+     * The slice fields are transient, so rebuild the identifier from the deserialized array.
+     */
+    Object readResolve() {
+        return compact(mValue);
     }
 
     /**
@@ -237,10 +345,10 @@ public class Identifier implements Comparable<Identifier>, Serializable {
     public String toString() {
         // Note:  the toString() method is also used for serialization and deserialization.  So
         // toString() and parse() must always return objects that return true when you call equals()
-        if (mValue.length == 2) {
+        if (mLength == 2) {
             return Integer.toString(toInt());
         }
-        if (mValue.length == 16) {
+        if (mLength == 16) {
             return toUuid().toString();
         }
         return toHexString();
@@ -252,13 +360,13 @@ public class Identifier implements Comparable<Identifier>, Serializable {
      * @throws java.lang.UnsupportedOperationException when value length is longer than 2
      */
     public int toInt() {
-        if (mValue.length > 2) {
+        if (mLength > 2) {
             throw new UnsupportedOperationException("Only supported for Identifiers with max byte length of 2");
         }
         int result = 0;
 
-        for (int i = 0; i < mValue.length; i++) {
-            result |= (mValue[i] & 0xFF) << ((mValue.length - i - 1) * 8);
+        for (int i = 0; i < mLength; i++) {
+            result |= (byteAt(i) & 0xFF) << ((mLength - i - 1) * 8);
         }
 
         return result;
@@ -271,7 +379,7 @@ public class Identifier implements Comparable<Identifier>, Serializable {
      */
     @TargetApi(Build.VERSION_CODES.GINGERBREAD)
     public byte[] toByteArrayOfSpecifiedEndianness(boolean bigEndian) {
-        byte[] copy = Arrays.copyOf(mValue, mValue.length);
+        byte[] copy = toByteArray();
 
         if (!bigEndian) {
             reverseArray(copy);
@@ -294,12 +402,17 @@ public class Identifier implements Comparable<Identifier>, Serializable {
      * @return length of identifier
      */
     public int getByteCount() {
-        return mValue.length;
+        return mLength;
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(mValue);
+        // Same as Arrays.hashCode() of the value
+        int result = 1;
+        for (int i = 0; i < mLength; i++) {
+            result = 31 * result + byteAt(i);
+        }
+        return result;
     }
 
     /**
@@ -314,7 +427,18 @@ public class Identifier implements Comparable<Identifier>, Serializable {
             return false;
         }
         Identifier thatIdentifier = (Identifier) that;
-        return Arrays.equals(mValue, thatIdentifier.mValue);
+        if (mValue != null && thatIdentifier.mValue != null && !isView() && !thatIdentifier.isView()) {
+            return Arrays.equals(mValue, thatIdentifier.mValue);
+        }
+        if (mLength != thatIdentifier.mLength) {
+            return false;
+        }
+        for (int i = 0; i < mLength; i++) {
+            if (byteAt(i) != thatIdentifier.byteAt(i)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     private static final char[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
@@ -324,13 +448,14 @@ public class Identifier implements Comparable<Identifier>, Serializable {
      * @return value as hexadecimal String
      */
     public String toHexString() {
-        final int l = mValue.length;
+        final int l = mLength;
         final char[] out = new char[l*2+2];
         out[0] = '0';
         out[1] = 'x';
         for( int i=0,j=2; i<l; i++ ){
-            out[j++] = HEX_DIGITS[(0xF0 & mValue[i]) >>> 4];
-            out[j++] = HEX_DIGITS[0x0F & mValue[i]];
+            byte b = byteAt(i);
+            out[j++] = HEX_DIGITS[(0xF0 & b) >>> 4];
+            out[j++] = HEX_DIGITS[0x0F & b];
         }
         String s = new String(out);
         return s;
@@ -356,11 +481,16 @@ public class Identifier implements Comparable<Identifier>, Serializable {
      *         16 bytes long.
      */
     public UUID toUuid() {
-        if (mValue.length != 16) {
+        if (mLength != 16) {
             throw new UnsupportedOperationException("Only Identifiers backed by a byte array with length of exactly 16 can be UUIDs.");
         }
-        LongBuffer buf = ByteBuffer.wrap(mValue).asLongBuffer();
-        return new UUID(buf.get(), buf.get());
+        long mostSignificantBits = 0l;
+        long leastSignificantBits = 0l;
+        for (int i = 0; i < 8; i++) {
+            mostSignificantBits = (mostSignificantBits << 8) | (byteAt(i) & 0xff);
+            leastSignificantBits = (leastSignificantBits << 8) | (byteAt(i + 8) & 0xff);
+        }
+        return new UUID(mostSignificantBits, leastSignificantBits);
     }
 
     /**
@@ -370,7 +500,14 @@ public class Identifier implements Comparable<Identifier>, Serializable {
      * @return a deep copy of the data backing this Identifier.
      */
     public byte[] toByteArray() {
-        return mValue.clone();
+        if (mValue != null && !isView()) {
+            return mValue.clone();
+        }
+        byte[] copy = new byte[mLength];
+        for (int i = 0; i < mLength; i++) {
+            copy[i] = byteAt(i);
+        }
+        return copy;
     }
 
     /**
@@ -385,14 +522,159 @@ public class Identifier implements Comparable<Identifier>, Serializable {
      */
     @Override
     public int compareTo(Identifier that) {
-        if (mValue.length != that.mValue.length) {
-            return mValue.length < that.mValue.length ? -1 : 1;
+        if (mLength != that.mLength) {
+            return mLength < that.mLength ? -1 : 1;
         }
-        for (int i = 0; i < mValue.length; i++) {
-            if (mValue[i] != that.mValue[i]) {
-                return mValue[i] < that.mValue[i] ? -1 : 1;
+        for (int i = 0; i < mLength; i++) {
+            byte thisByte = byteAt(i);
+            byte thatByte = that.byteAt(i);
+            if (thisByte != thatByte) {
+                return thisByte < thatByte ? -1 : 1;
             }
         }
         return 0;
     }
+
+    /**
+     * Hash code of a value given as up to 16 bytes right-aligned in two longs.  This matches
+     * Arrays.hashCode() of the value so that all representations hash alike.
+     */
+    private static int packedHashCode(long high, long low, int length) {
+        int result = 1;
+        for (int i = 16 - length; i < 16; i++) {
+            byte b = i < 8 ? (byte) (high >>> (56 - 8 * i)) : (byte) (low >>> (120 - 8 * i));
+            result = 31 * result + b;
+        }
+        return result;
+    }
+
+    /**
+     * A two byte identifier, such as an iBeacon major or minor, held as an int
+     */
+    private static final class Int16Identifier extends Identifier {
+        // Never serialized, as writeReplace() replaces it with an Identifier owning its bytes
+        private static final long serialVersionUID = 1L;
+        private final int mIntValue;
+        private final int mHashCode;
+
+        Int16Identifier(int intValue) {
+            super(2);
+            mIntValue = intValue;
+            mHashCode = packedHashCode(0l, intValue, 2);
+        }
+
+        @Override
+        byte byteAt(int i) {
+            return (byte) (i == 0 ? mIntValue >> 8 : mIntValue);
+        }
+
+        @Override
+        public int toInt() {
+            return mIntValue;
+        }
+
+        @Override
+        public String toString() {
+            return Integer.toString(mIntValue);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            if (that instanceof Int16Identifier) {
+                return mIntValue == ((Int16Identifier) that).mIntValue;
+            }
+            return super.equals(that);
+        }
+
+        @Override
+        public int compareTo(Identifier that) {
+            if (that instanceof Int16Identifier) {
+                // Flipping the sign bit of each byte makes an int comparison match the signed
+                // byte by byte comparison of the array representation
+                int thisKey = mIntValue ^ 0x8080;
+                int thatKey = ((Int16Identifier) that).mIntValue ^ 0x8080;
+                return thisKey == thatKey ? 0 : (thisKey < thatKey ? -1 : 1);
+            }
+            return super.compareTo(that);
+        }
+    }
+
+    /**
+     * An identifier of up to 16 bytes, such as a proximity UUID or an Eddystone namespace or
+     * instance id, packed right-aligned into two longs
+     */
+    private static final class PackedIdentifier extends Identifier {
+        // Never serialized, as writeReplace() replaces it with an Identifier owning its bytes
+        private static final long serialVersionUID = 1L;
+        private static final long SIGN_BITS = 0x8080808080808080l;
+        private final long mHigh;
+        private final long mLow;
+        private final int mHashCode;
+
+        PackedIdentifier(long high, long low, int length) {
+            super(length);
+            mHigh = high;
+            mLow = low;
+            mHashCode = packedHashCode(high, low, length);
+        }
+
+        @Override
+        byte byteAt(int i) {
+            int position = 16 - getByteCount() + i;
+            if (position < 8) {
+                return (byte) (mHigh >>> (56 - 8 * position));
+            }
+            return (byte) (mLow >>> (120 - 8 * position));
+        }
+
+        @Override
+        public UUID toUuid() {
+            if (getByteCount() != 16) {
+                return super.toUuid();
+            }
+            return new UUID(mHigh, mLow);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            if (that instanceof PackedIdentifier) {
+                PackedIdentifier thatIdentifier = (PackedIdentifier) that;
+                return getByteCount() == thatIdentifier.getByteCount() &&
+                        mHigh == thatIdentifier.mHigh && mLow == thatIdentifier.mLow;
+            }
+            return super.equals(that);
+        }
+
+        @Override
+        public int compareTo(Identifier that) {
+            if (that instanceof PackedIdentifier && getByteCount() == that.getByteCount()) {
+                PackedIdentifier thatIdentifier = (PackedIdentifier) that;
+                // Flipping the sign bit of each byte makes an unsigned comparison of the longs
+                // match the signed byte by byte comparison of the array representation.  Unused
+                // leading bytes are zero in both, so they compare equal.
+                int result = compareUnsigned(mHigh ^ SIGN_BITS, thatIdentifier.mHigh ^ SIGN_BITS);
+                if (result == 0) {
+                    result = compareUnsigned(mLow ^ SIGN_BITS, thatIdentifier.mLow ^ SIGN_BITS);
+                }
+                return result;
+            }
+            return super.compareTo(that);
+        }
+
+        private static int compareUnsigned(long x, long y) {
+            x += Long.MIN_VALUE;
+            y += Long.MIN_VALUE;
+            return x == y ? 0 : (x < y ? -1 : 1);
+        }
+    }
 }
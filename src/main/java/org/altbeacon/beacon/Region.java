@@ -28,6 +28,7 @@ import android.os.Parcelable;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -50,6 +51,7 @@ import java.util.regex.Pattern;
  */
 public class Region implements Parcelable, Serializable {
     private static final String TAG = "Region";
+    private static final long serialVersionUID = 4875239022125330732L;
     private static final Pattern MAC_PATTERN = Pattern.compile("^[0-9A-Fa-f]{2}\\:[0-9A-Fa-f]{2}\\:[0-9A-Fa-f]{2}\\:[0-9A-Fa-f]{2}\\:[0-9A-Fa-f]{2}\\:[0-9A-Fa-f]{2}$");
     /**
      * Required to make class Parcelable
@@ -161,6 +163,14 @@ public class Region implements Parcelable, Serializable {
         return mIdentifiers.size() > i ? mIdentifiers.get(i) : null;
     }
 
+    /**
+     * Returns the list of identifiers of this region.  Null entries are wildcards.
+     * @return an unmodifiable list of identifiers
+     */
+    public List<Identifier> getIdentifiers() {
+        return Collections.unmodifiableList(mIdentifiers);
+    }
+
     /**
      * Returns the identifier used to start or stop ranging/monitoring this region when calling
      * the <code>BeaconManager</code> methods.
@@ -0,0 +1,132 @@
+package org.altbeacon.beacon;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Finds the regions that match a beacon without calling {@link Region#matchesBeacon(Beacon)} on
+ * every region.
+ *
+ * Regions are stored in a tree with one level per identifier.  Each node has a child for every
+ * identifier value a region requires at that level, plus a wildcard child for regions that
+ * leave that identifier null.  A beacon is looked up by following, at each level, the child for
+ * the beacon's identifier and the wildcard child, so only the branches that can match are
+ * visited.  Trailing null identifiers are not stored because they match anything.  Regions that
+ * also require a Bluetooth address are kept in a map by address at the node where their
+ * identifiers end.
+ *
+ * The index is a snapshot of the regions it was built from.  It is immutable and may be shared
+ * between threads.
+ *
+ * Internal library class.  Do not use directly from outside the library
+ *
+ * @hide
+ */
+public class RegionIndex {
+    private final Node mRoot = new Node();
+    private final int mSize;
+
+    public RegionIndex(Collection<Region> regions) {
+        mSize = regions.size();
+        for (Region region : regions) {
+            int depth = region.mIdentifiers.size();
+            while (depth > 0 && region.mIdentifiers.get(depth - 1) == null) {
+                depth--;
+            }
+            Node node = mRoot;
+            for (int i = 0; i < depth; i++) {
+                node = node.childFor(region.mIdentifiers.get(i));
+            }
+            node.add(region);
+        }
+    }
+
+    /**
+     * @return the number of regions in the index
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the regions for which {@link Region#matchesBeacon(Beacon)} is true
+     */
+    public List<Region> matchingRegions(Beacon beacon) {
+        List<Region> matched = new ArrayList<>();
+        collectMatches(mRoot, 0, beacon, matched);
+        return matched;
+    }
+
+    private static void collectMatches(Node node, int level, Beacon beacon, List<Region> matched) {
+        if (node.mAnyAddressRegions != null) {
+            matched.addAll(node.mAnyAddressRegions);
+        }
+        if (node.mRegionsByAddress != null && beacon.mBluetoothAddress != null) {
+            List<Region> addressRegions = node.mRegionsByAddress.get(beacon.mBluetoothAddress.toUpperCase(Locale.US));
+            if (addressRegions != null) {
+                matched.addAll(addressRegions);
+            }
+        }
+        if (node.mChildren != null && level < beacon.mIdentifiers.size()) {
+            Identifier identifier = beacon.mIdentifiers.get(level);
+            if (identifier != null) {
+                Node child = node.mChildren.get(identifier);
+                if (child != null) {
+                    collectMatches(child, level + 1, beacon, matched);
+                }
+            }
+        }
+        if (node.mWildcard != null) {
+            collectMatches(node.mWildcard, level + 1, beacon, matched);
+        }
+    }
+
+    private static final class Node {
+        private Map<Identifier, Node> mChildren;
+        private Node mWildcard;
+        private List<Region> mAnyAddressRegions;
+        private Map<String, List<Region>> mRegionsByAddress;
+
+        Node childFor(Identifier identifier) {
+            if (identifier == null) {
+                if (mWildcard == null) {
+                    mWildcard = new Node();
+                }
+                return mWildcard;
+            }
+            if (mChildren == null) {
+                mChildren = new HashMap<>();
+            }
+            Node child = mChildren.get(identifier);
+            if (child == null) {
+                child = new Node();
+                mChildren.put(identifier, child);
+            }
+            return child;
+        }
+
+        void add(Region region) {
+            if (region.mBluetoothAddress == null) {
+                if (mAnyAddressRegions == null) {
+                    mAnyAddressRegions = new ArrayList<>();
+                }
+                mAnyAddressRegions.add(region);
+                return;
+            }
+            if (mRegionsByAddress == null) {
+                mRegionsByAddress = new HashMap<>();
+            }
+            String address = region.mBluetoothAddress.toUpperCase(Locale.US);
+            List<Region> regions = mRegionsByAddress.get(address);
+            if (regions == null) {
+                regions = new ArrayList<>();
+                mRegionsByAddress.put(address, regions);
+            }
+            regions.add(region);
+        }
+    }
+}
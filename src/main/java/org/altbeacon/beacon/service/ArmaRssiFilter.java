@@ -2,6 +2,8 @@ package org.altbeacon.beacon.service;
 
 import org.altbeacon.beacon.logging.LogManager;
 
+import java.io.Serializable;
+
 /**
  * This filter calculates its rssi on base of an auto regressive moving average (ARMA)
  * It needs only the current value to do this; the general formula is  n(t) = n(t-1) - c * (n(t-1) - n(t))
@@ -12,7 +14,8 @@ import org.altbeacon.beacon.logging.LogManager;
  *       actual measurement and the actual average)
  *       For signals at lower rates (10Hz) a value of 0.25 to 0.5 would be appropriate
  */
-public class ArmaRssiFilter implements RssiFilter {
+public class ArmaRssiFilter implements RssiFilter, Serializable {
+    private static final long serialVersionUID = 1L;
 
     private static double DEFAULT_ARMA_SPEED = 0.1;     //How likely is it that the RSSI value changes?
                                                         //Note: the more unlikely, the higher can that value be
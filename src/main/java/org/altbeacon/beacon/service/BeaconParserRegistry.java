@@ -0,0 +1,291 @@
+package org.altbeacon.beacon.service;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.altbeacon.beacon.AltBeaconParser;
+import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.BeaconParser;
+import org.altbeacon.beacon.logging.LogManager;
+import org.altbeacon.bluetooth.Pdu;
+import org.altbeacon.bluetooth.PduCursor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Dispatches scan records to the beacon parsers that could possibly match them.
+ *
+ * Rather than offering every packet to every parser, the registry looks at the first
+ * manufacturer data or service data PDU once, reads the bytes each parser uses to recognize its
+ * beacons (the 16-bit service UUID if the layout has one, otherwise the matching beacon type
+ * code) and only offers the packet to parsers whose expected value is present.  Candidates are
+ * always tried in the order the parsers were registered, so the parser that wins for a packet
+ * matching more than one layout is deterministic.
+ *
+ * Candidates are kept as bitmasks of parser positions, built for every expected value when the
+ * registry is created, so choosing the candidates for a packet allocates nothing unless more than
+ * 64 parsers are registered.
+ *
+ * The library's own parsers are asked for beacons whose identifiers refer to the scan record
+ * rather than copies of it, so packets that are not kept copy nothing.  Parsers of other classes
+ * may override how beacons are constructed and are called through their public method.
+ *
+ * Instances are immutable and may be shared between scan threads.
+ *
+ * This is an internal utility class and should not be called directly by library users.
+ *
+ * @hide
+ */
+class BeaconParserRegistry {
+    private static final String TAG = BeaconParserRegistry.class.getSimpleName();
+
+    private final BeaconParser[] mParsers;
+    // Whether each parser may construct beacons that refer to the scan record
+    private final boolean[] mReferencesScanRecord;
+    private final DispatchGroup[] mGroups;
+    // Parsers whose layout can't be indexed and are offered every packet, as a bitmask
+    private final long[] mUnindexedMask;
+
+    BeaconParserRegistry(Collection<BeaconParser> beaconParsers) {
+        mParsers = beaconParsers.toArray(new BeaconParser[beaconParsers.size()]);
+        mReferencesScanRecord = new boolean[mParsers.length];
+        int maskWords = Math.max(1, (mParsers.length + 63) / 64);
+        mUnindexedMask = new long[maskWords];
+        List<DispatchGroup> groups = new ArrayList<>();
+        for (int position = 0; position < mParsers.length; position++) {
+            BeaconParser parser = mParsers[position];
+            mReferencesScanRecord[position] = parser.getClass() == BeaconParser.class
+                    || parser.getClass() == AltBeaconParser.class;
+            DispatchGroup.Key key = DispatchGroup.Key.forParser(parser);
+            if (key == null) {
+                mUnindexedMask[position >> 6] |= 1l << position;
+                continue;
+            }
+            DispatchGroup group = null;
+            for (DispatchGroup existing : groups) {
+                if (existing.key.equals(key)) {
+                    group = existing;
+                    break;
+                }
+            }
+            if (group == null) {
+                group = new DispatchGroup(key, maskWords);
+                groups.add(group);
+            }
+            group.add(key.expectedValue, position);
+        }
+        mGroups = groups.toArray(new DispatchGroup[groups.size()]);
+    }
+
+    /**
+     * @return the number of parsers registered
+     */
+    int size() {
+        return mParsers.length;
+    }
+
+    /**
+     * @return true if the registry was built from equal parsers in the same order, so it can be
+     * used in place of a registry built from them
+     */
+    boolean hasParsers(Collection<BeaconParser> beaconParsers) {
+        return beaconParsers.size() == mParsers.length
+                && Arrays.asList(mParsers).equals(new ArrayList<>(beaconParsers));
+    }
+
+    /**
+     * Parses the scan record with the first registered parser that recognizes it.  The beacon's
+     * identifiers may refer to the scan record, so the beacon must be detached from it with
+     * {@link Beacon#detachIdentifiersFromScanRecord()} before it is kept.
+     *
+     * @return the beacon, or null if no registered parser recognizes the scan record
+     */
+    Beacon fromScanData(byte[] scanRecord, int rssi, BluetoothDevice device) {
+        if (mParsers.length == 0) {
+            return null;
+        }
+        int pduToParse = PduCursor.END;
+        for (int pdu = PduCursor.first(scanRecord); pdu != PduCursor.END; pdu = PduCursor.next(scanRecord, pdu)) {
+            byte pduType = PduCursor.getType(scanRecord, pdu);
+            if (pduType == Pdu.GATT_SERVICE_UUID_PDU_TYPE ||
+                    pduType == Pdu.MANUFACTURER_DATA_PDU_TYPE) {
+                pduToParse = pdu;
+                break;
+            }
+        }
+        if (pduToParse == PduCursor.END) {
+            // No parser can match a packet without manufacturer or service data
+            return null;
+        }
+
+        int startByte = PduCursor.getStartIndex(pduToParse);
+        if (mUnindexedMask.length == 1) {
+            long candidates = mUnindexedMask[0];
+            for (DispatchGroup group : mGroups) {
+                long[] mask = group.maskFor(scanRecord, startByte);
+                if (mask != null) {
+                    candidates |= mask[0];
+                }
+            }
+            return fromScanData(candidates, 0, scanRecord, rssi, device);
+        }
+
+        long[] candidates = mUnindexedMask.clone();
+        for (DispatchGroup group : mGroups) {
+            long[] mask = group.maskFor(scanRecord, startByte);
+            if (mask != null) {
+                for (int word = 0; word < candidates.length; word++) {
+                    candidates[word] |= mask[word];
+                }
+            }
+        }
+        for (int word = 0; word < candidates.length; word++) {
+            Beacon beacon = fromScanData(candidates[word], word << 6, scanRecord, rssi, device);
+            if (beacon != null) {
+                return beacon;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Offers the scan record to the candidate parsers in one word of a candidate bitmask, in
+     * order of position.
+     */
+    private Beacon fromScanData(long candidates, int firstPosition, byte[] scanRecord, int rssi,
+                                BluetoothDevice device) {
+        while (candidates != 0) {
+            int position = firstPosition + Long.numberOfTrailingZeros(candidates);
+            candidates &= candidates - 1;
+            BeaconParser parser = mParsers[position];
+            Beacon beacon = mReferencesScanRecord[position]
+                    ? parser.fromScanDataReferencingScanRecord(scanRecord, rssi, device)
+                    : parser.fromScanData(scanRecord, rssi, device);
+            if (beacon != null) {
+                return beacon;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parsers that recognize their beacons by the same field, looked up by the value they expect
+     * in that field.
+     */
+    private static final class DispatchGroup {
+        final Key key;
+        private final int mMaskWords;
+        private long[] mValues = new long[0];
+        // The positions of the parsers expecting each value, as bitmasks
+        private long[][] mMasks = new long[0][];
+
+        DispatchGroup(Key key, int maskWords) {
+            this.key = key;
+            mMaskWords = maskWords;
+        }
+
+        void add(long value, int position) {
+            int index = Arrays.binarySearch(mValues, value);
+            if (index < 0) {
+                int insertAt = -index - 1;
+                long[] values = new long[mValues.length + 1];
+                long[][] masks = new long[mMasks.length + 1][];
+                System.arraycopy(mValues, 0, values, 0, insertAt);
+                System.arraycopy(mMasks, 0, masks, 0, insertAt);
+                values[insertAt] = value;
+                masks[insertAt] = new long[mMaskWords];
+                System.arraycopy(mValues, insertAt, values, insertAt + 1, mValues.length - insertAt);
+                System.arraycopy(mMasks, insertAt, masks, insertAt + 1, mMasks.length - insertAt);
+                mValues = values;
+                mMasks = masks;
+                index = insertAt;
+            }
+            mMasks[index][position >> 6] |= 1l << position;
+        }
+
+        long[] maskFor(byte[] scanRecord, int startByte) {
+            int offset = startByte + key.offset;
+            if (offset < 0 || scanRecord.length - offset < key.length) {
+                return null;
+            }
+            long value = 0l;
+            if (key.littleEndian) {
+                for (int i = offset + key.length - 1; i >= offset; i--) {
+                    value = (value << 8) | (scanRecord[i] & 0xff);
+                }
+            }
+            else {
+                for (int i = offset; i < offset + key.length; i++) {
+                    value = (value << 8) | (scanRecord[i] & 0xff);
+                }
+            }
+            int index = Arrays.binarySearch(mValues, value);
+            return index >= 0 ? mMasks[index] : null;
+        }
+
+        /**
+         * Where a parser's recognizing field sits within the PDU, plus the value it expects there
+         */
+        static final class Key {
+            final int offset;
+            final int length;
+            final boolean littleEndian;
+            final long expectedValue;
+
+            private Key(int offset, int length, boolean littleEndian, long expectedValue) {
+                this.offset = offset;
+                this.length = length;
+                this.littleEndian = littleEndian;
+                this.expectedValue = expectedValue;
+            }
+
+            static Key forParser(BeaconParser parser) {
+                Key key = null;
+                if (parser.getServiceUuid() != null) {
+                    if (parser.hasServiceUuidOffsets()) {
+                        int length = parser.getServiceUuidEndOffset() - parser.getMServiceUuidStartOffset() + 1;
+                        key = create(parser.getMServiceUuidStartOffset(), length, true,
+                                parser.getServiceUuid());
+                    }
+                }
+                else if (parser.getMatchingBeaconTypeCode() != null && parser.hasMatchingBeaconTypeCodeOffsets()) {
+                    int length = parser.getMatchingBeaconTypeCodeEndOffset() - parser.getMatchingBeaconTypeCodeStartOffset() + 1;
+                    key = create(parser.getMatchingBeaconTypeCodeStartOffset(), length, false,
+                            parser.getMatchingBeaconTypeCode());
+                }
+                if (key == null) {
+                    LogManager.d(TAG, "Parser %s cannot be indexed and will be offered every packet",
+                            parser.getLayout());
+                }
+                return key;
+            }
+
+            private static Key create(int offset, int length, boolean littleEndian, long expectedValue) {
+                if (length < 1 || length > 8) {
+                    return null;
+                }
+                if (length < 8) {
+                    // BeaconParser only compares the low order bytes of the expected value
+                    expectedValue &= (1l << (8 * length)) - 1;
+                }
+                return new Key(offset, length, littleEndian, expectedValue);
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof Key)) {
+                    return false;
+                }
+                Key that = (Key) o;
+                return offset == that.offset && length == that.length && littleEndian == that.littleEndian;
+            }
+
+            @Override
+            public int hashCode() {
+                return 31 * (31 * offset + length) + (littleEndian ? 1 : 0);
+            }
+        }
+    }
+}
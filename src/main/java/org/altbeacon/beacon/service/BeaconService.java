@@ -297,6 +297,7 @@ public class BeaconService extends Service {
         handler.removeCallbacksAndMessages(null);
         mScanHelper.getCycledScanner().stop();
         mScanHelper.getCycledScanner().destroy();
+        mScanHelper.terminateThreads();
         mScanHelper.getMonitoringStatus().stopStatusPreservation();
     }
 
@@ -323,25 +324,18 @@ public class BeaconService extends Service {
      */
     @MainThread
     public void startRangingBeaconsInRegion(Region region, Callback callback) {
-        synchronized (mScanHelper.getRangedRegionState()) {
-            if (mScanHelper.getRangedRegionState().containsKey(region)) {
-                LogManager.i(TAG, "Already ranging that region -- will replace existing region.");
-                mScanHelper.getRangedRegionState().remove(region); // need to remove it, otherwise the old object will be retained because they are .equal //FIXME That is not true
-            }
-            mScanHelper.getRangedRegionState().put(region, new RangeState(callback));
-            LogManager.d(TAG, "Currently ranging %s regions.", mScanHelper.getRangedRegionState().size());
+        if (mScanHelper.getRangedRegionState().containsKey(region)) {
+            LogManager.i(TAG, "Already ranging that region -- will replace existing region.");
         }
+        int rangedRegionCount = mScanHelper.startRanging(region, new RangeState(callback, region));
+        LogManager.d(TAG, "Currently ranging %s regions.", rangedRegionCount);
         mScanHelper.getCycledScanner().start();
     }
 
     @MainThread
     public void stopRangingBeaconsInRegion(Region region) {
-        int rangedRegionCount;
-        synchronized (mScanHelper.getRangedRegionState()) {
-            mScanHelper.getRangedRegionState().remove(region);
-            rangedRegionCount = mScanHelper.getRangedRegionState().size();
-            LogManager.d(TAG, "Currently ranging %s regions.", mScanHelper.getRangedRegionState().size());
-        }
+        int rangedRegionCount = mScanHelper.stopRanging(region);
+        LogManager.d(TAG, "Currently ranging %s regions.", rangedRegionCount);
 
         if (rangedRegionCount == 0 && mScanHelper.getMonitoringStatus().regionsCount() == 0) {
             mScanHelper.getCycledScanner().stop();
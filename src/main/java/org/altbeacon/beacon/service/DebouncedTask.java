@@ -0,0 +1,104 @@
+package org.altbeacon.beacon.service;
+
+import android.support.annotation.NonNull;
+
+import org.altbeacon.beacon.logging.LogManager;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a task on the shared background persistence thread at most once per request period, no
+ * matter how often it is requested.
+ *
+ * A request made while the task is already pending is merged into the pending run, so a burst of
+ * requests results in a single run once the delay has passed.  {@link #flush()} runs a pending
+ * task immediately on the calling thread.  Runs of the task never overlap.
+ *
+ * This is an internal utility class and should not be called directly by library users.
+ *
+ * @hide
+ */
+class DebouncedTask {
+    private static final String TAG = DebouncedTask.class.getSimpleName();
+    private static ScheduledExecutorService sExecutor;
+
+    private final Runnable mTask;
+    private final Object mRunLock = new Object();
+    // guarded by this
+    private boolean mPending = false;
+
+    DebouncedTask(@NonNull Runnable task) {
+        mTask = task;
+    }
+
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "BeaconStatePersistence");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Runs the task on the background thread after the delay, unless a run is already pending.
+     */
+    void request(long delayMillis) {
+        synchronized (this) {
+            if (mPending) {
+                return;
+            }
+            mPending = true;
+        }
+        getExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                runIfPending();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs the task now on the calling thread if a run is pending, waiting for any run already
+     * in progress to finish first.
+     */
+    void flush() {
+        runIfPending();
+    }
+
+    /**
+     * Drops a pending run without running the task.
+     */
+    synchronized void cancel() {
+        mPending = false;
+    }
+
+    synchronized boolean isPending() {
+        return mPending;
+    }
+
+    private void runIfPending() {
+        synchronized (mRunLock) {
+            synchronized (this) {
+                if (!mPending) {
+                    return;
+                }
+                mPending = false;
+            }
+            try {
+                mTask.run();
+            }
+            catch (RuntimeException e) {
+                LogManager.e(e, TAG, "Deferred persistence task failed");
+            }
+        }
+    }
+}
@@ -1,29 +1,48 @@
 package org.altbeacon.beacon.service;
 
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.BeaconManager;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 /**
- * Keeps track of beacons that have ever been seen and
+ * Keeps track of beacons that have recently been seen and
  * merges them together depending on configured beacon parsers
+ *
+ * Beacons are forgotten once they have not been seen for the period set by
+ * {@link BeaconManager#setExtraDataBeaconTrackerExpirationPeriod(long)}, and the least recently
+ * seen beacons are forgotten when more than
+ * {@link BeaconManager#setExtraDataBeaconTrackerCapacity(int)} devices are tracked, so the
+ * tracker stays small around devices that keep changing their Bluetooth address.
  * Created by dyoung on 5/5/15.
  */
 public class ExtraDataBeaconTracker implements Serializable {
     private static final String TAG = "BeaconTracker";
+    private static final long serialVersionUID = -5861125044160004421L;
 
     /**
-     * This is a lookup table to find tracked beacons by the calculated beacon key
+     * This is a lookup table to find tracked beacons by the calculated beacon key, in order of
+     * when they were last seen, least recently seen first
      */
     @NonNull
-    private final HashMap<String,HashMap<Integer,Beacon>> mBeaconsByKey = new HashMap<>();
+    private LinkedHashMap<BeaconKey,TrackedBeacons> mTrackedBeacons = newTrackedBeaconsMap();
 
     private final boolean matchBeaconsByServiceUUID;
 
+    // Set whenever the tracked beacons change, so saving can skip an unchanged tracker.  Guarded
+    // by this.
+    private transient boolean mChanged;
+
     public ExtraDataBeaconTracker() {
         this(true);
     }
@@ -35,9 +54,11 @@ public class ExtraDataBeaconTracker implements Serializable {
     /**
      * Tracks a beacon. For Gatt-based beacons, returns a merged copy of fields from multiple
      * frames. Returns null when passed a Gatt-based beacon that has is only extra beacon data.
+     * Only Gatt-based beacons need the tracker's lock, so other beacons may be tracked from any
+     * number of threads without contending.
      */
     @Nullable
-    public synchronized Beacon track(@NonNull Beacon beacon) {
+    public Beacon track(@NonNull Beacon beacon) {
         Beacon trackedBeacon = null;
         if (beacon.isMultiFrameBeacon() || beacon.getServiceUuid() != -1) {
             trackedBeacon = trackGattBeacon(beacon);
@@ -52,42 +73,185 @@ public class ExtraDataBeaconTracker implements Serializable {
      * The following code is for dealing with merging data fields in beacons
      */
     @Nullable
-    private Beacon trackGattBeacon(@NonNull Beacon beacon) {
+    private synchronized Beacon trackGattBeacon(@NonNull Beacon beacon) {
+        long now = SystemClock.elapsedRealtime();
+        removeStaleBeacons(now);
         if (beacon.isExtraBeaconData()) {
-            updateTrackedBeacons(beacon);
+            updateTrackedBeacons(beacon, now);
             return null;
         }
 
-        String key = getBeaconKey(beacon);
-        HashMap<Integer,Beacon> matchingTrackedBeacons = mBeaconsByKey.get(key);
+        BeaconKey key = getBeaconKey(beacon);
+        TrackedBeacons matchingTrackedBeacons = mTrackedBeacons.get(key);
         if (null == matchingTrackedBeacons) {
-            matchingTrackedBeacons = new HashMap<>();
+            matchingTrackedBeacons = new TrackedBeacons();
+            matchingTrackedBeacons.lastSeenTime = now;
+            mTrackedBeacons.put(key, matchingTrackedBeacons);
+            removeStaleBeacons(now);
         }
         else {
-            Beacon trackedBeacon = matchingTrackedBeacons.values().iterator().next();
+            Beacon trackedBeacon = matchingTrackedBeacons.beacons.values().iterator().next();
             beacon.setExtraDataFields(trackedBeacon.getExtraDataFields());
+            matchingTrackedBeacons.lastSeenTime = now;
         }
-        matchingTrackedBeacons.put(beacon.hashCode(), beacon);
-        mBeaconsByKey.put(key, matchingTrackedBeacons);
+        beacon.detachIdentifiersFromScanRecord();
+        matchingTrackedBeacons.beacons.put(beacon.hashCode(), beacon);
+        mChanged = true;
 
         return beacon;
     }
 
-    private void updateTrackedBeacons(@NonNull Beacon beacon) {
-        HashMap<Integer,Beacon> matchingTrackedBeacons = mBeaconsByKey.get(getBeaconKey(beacon));
+    private void updateTrackedBeacons(@NonNull Beacon beacon, long now) {
+        TrackedBeacons matchingTrackedBeacons = mTrackedBeacons.get(getBeaconKey(beacon));
         if (null != matchingTrackedBeacons) {
-            for (Beacon matchingTrackedBeacon : matchingTrackedBeacons.values()) {
+            matchingTrackedBeacons.lastSeenTime = now;
+            mChanged = true;
+            for (Beacon matchingTrackedBeacon : matchingTrackedBeacons.beacons.values()) {
                 matchingTrackedBeacon.setRssi(beacon.getRssi());
                 matchingTrackedBeacon.setExtraDataFields(beacon.getDataFields());
             }
         }
     }
 
-    private String getBeaconKey(@NonNull Beacon beacon) {
+    /**
+     * Forgets beacons that have not been seen within the expiration period as of the given time,
+     * then the least recently seen beacons until no more than the capacity are tracked.  Since
+     * the map is in order of when beacons were last seen, only the beacons removed are looked at.
+     */
+    synchronized void removeStaleBeacons(long now) {
+        long expirationPeriod = BeaconManager.getExtraDataBeaconTrackerExpirationPeriod();
+        int capacity = BeaconManager.getExtraDataBeaconTrackerCapacity();
+        Iterator<TrackedBeacons> iterator = mTrackedBeacons.values().iterator();
+        while (iterator.hasNext()) {
+            TrackedBeacons trackedBeacons = iterator.next();
+            long age = now - trackedBeacons.lastSeenTime;
+            // A negative age means the time was recorded before the device restarted
+            if (mTrackedBeacons.size() > capacity || age > expirationPeriod || age < 0) {
+                iterator.remove();
+                mChanged = true;
+            }
+            else {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Clears the changed flag, which is set whenever a beacon is tracked, updated or forgotten.
+     *
+     * @return true if the tracked beacons have changed since this was last called
+     */
+    synchronized boolean takeChanged() {
+        boolean changed = mChanged;
+        mChanged = false;
+        return changed;
+    }
+
+    /**
+     * @return the number of devices whose beacons are tracked
+     */
+    synchronized int size() {
+        return mTrackedBeacons.size();
+    }
+
+    private BeaconKey getBeaconKey(@NonNull Beacon beacon) {
         if (matchBeaconsByServiceUUID) {
-            return beacon.getBluetoothAddress() + beacon.getServiceUuid();
+            return new BeaconKey(beacon.getBluetoothAddress(), beacon.getServiceUuid());
         } else {
-            return beacon.getBluetoothAddress();
+            return new BeaconKey(beacon.getBluetoothAddress(), BeaconKey.NO_SERVICE_UUID);
+        }
+    }
+
+    private static LinkedHashMap<BeaconKey,TrackedBeacons> newTrackedBeaconsMap() {
+        // Access order, so looking up a beacon moves it to the end
+        return new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        // Gatt-based beacons are tracked by the scan lanes while the tracker is being saved
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        // Trackers saved by older library versions kept their beacons in a different field
+        if (mTrackedBeacons == null) {
+            mTrackedBeacons = newTrackedBeaconsMap();
         }
     }
+
+    /**
+     * Identifies a device by its Bluetooth address, packed into a long, and the service UUID of
+     * its beacons.
+     */
+    static final class BeaconKey implements Serializable {
+        private static final long serialVersionUID = 1L;
+        static final int NO_SERVICE_UUID = -1;
+        private static final long NO_ADDRESS = -1;
+
+        private final long mAddress;
+        private final int mServiceUuid;
+        // Only set for addresses that are not in the usual 01:23:45:67:89:AB form
+        @Nullable
+        private final String mUnpackedAddress;
+
+        BeaconKey(@Nullable String bluetoothAddress, int serviceUuid) {
+            long address = packAddress(bluetoothAddress);
+            mAddress = address;
+            mServiceUuid = serviceUuid;
+            mUnpackedAddress = address == NO_ADDRESS ? bluetoothAddress : null;
+        }
+
+        /**
+         * @return the 48 bits of the address as a long, or -1 if the address is null or not six
+         * colon separated hex bytes
+         */
+        static long packAddress(@Nullable String bluetoothAddress) {
+            if (bluetoothAddress == null || bluetoothAddress.length() != 17) {
+                return NO_ADDRESS;
+            }
+            long address = 0;
+            for (int i = 0; i < 17; i += 3) {
+                int high = Character.digit(bluetoothAddress.charAt(i), 16);
+                int low = Character.digit(bluetoothAddress.charAt(i + 1), 16);
+                if (high < 0 || low < 0 || (i < 15 && bluetoothAddress.charAt(i + 2) != ':')) {
+                    return NO_ADDRESS;
+                }
+                address = (address << 8) | (high << 4) | low;
+            }
+            return address;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BeaconKey)) {
+                return false;
+            }
+            BeaconKey that = (BeaconKey) o;
+            return mAddress == that.mAddress && mServiceUuid == that.mServiceUuid
+                    && (mUnpackedAddress == null ? that.mUnpackedAddress == null
+                    : mUnpackedAddress.equals(that.mUnpackedAddress));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (mAddress ^ (mAddress >>> 32));
+            result = 31 * result + mServiceUuid;
+            return 31 * result + (mUnpackedAddress == null ? 0 : mUnpackedAddress.hashCode());
+        }
+    }
+
+    /**
+     * The beacons seen from one device, by beacon hash code, and when the device was last seen.
+     */
+    static final class TrackedBeacons implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @NonNull
+        final HashMap<Integer,Beacon> beacons = new HashMap<>();
+        long lastSeenTime;
+    }
 }
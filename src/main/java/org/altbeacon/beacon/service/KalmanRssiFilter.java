@@ -0,0 +1,103 @@
+package org.altbeacon.beacon.service;
+
+import android.os.SystemClock;
+
+import java.io.Serializable;
+
+/**
+ * This filter estimates the rssi with a one dimensional Kalman filter, which treats the rssi as a
+ * value that drifts by the process noise between measurements and is measured with the
+ * measurement noise.  Each measurement moves the estimate towards it by the Kalman gain, which
+ * is small while the estimate is certain and large after the estimate has drifted.
+ * Note: a higher process noise follows a moving beacon more quickly, a higher measurement noise
+ *       gives a smoother rssi
+ *
+ * Unlike {@link RunningAverageRssiFilter} it keeps no history of measurements, so it takes a
+ * constant amount of memory and allocates nothing per measurement.  The estimate is discarded
+ * once no measurement has been added for the sample expiration period set with
+ * {@link RunningAverageRssiFilter#setSampleExpirationMilliseconds(long)}.
+ */
+public class KalmanRssiFilter implements RssiFilter, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default variance, in dBm squared, added to the estimate between measurements
+     */
+    public static final double DEFAULT_PROCESS_NOISE = 0.125;
+    /**
+     * Default variance, in dBm squared, of a single rssi measurement
+     */
+    public static final double DEFAULT_MEASUREMENT_NOISE = 8.0;
+
+    private final double mProcessNoise;
+    private final double mMeasurementNoise;
+    private double mEstimate;
+    private double mErrorCovariance;
+    private int mMeasurementCount = 0;
+    private long mLastMeasurementTime;
+
+    public KalmanRssiFilter() {
+        this(DEFAULT_PROCESS_NOISE, DEFAULT_MEASUREMENT_NOISE);
+    }
+
+    /**
+     * @param processNoise     the variance added to the estimate between measurements
+     * @param measurementNoise the variance of a single measurement, which must be greater than 0
+     */
+    public KalmanRssiFilter(double processNoise, double measurementNoise) {
+        if (processNoise < 0) {
+            throw new IllegalArgumentException("Process noise must not be negative");
+        }
+        if (measurementNoise <= 0) {
+            throw new IllegalArgumentException("Measurement noise must be greater than 0");
+        }
+        mProcessNoise = processNoise;
+        mMeasurementNoise = measurementNoise;
+    }
+
+    @Override
+    public synchronized void addMeasurement(Integer rssi) {
+        long now = SystemClock.elapsedRealtime();
+        if (isExpired(now)) {
+            // The first measurement is taken as is, with the uncertainty of a measurement
+            mEstimate = rssi;
+            mErrorCovariance = mMeasurementNoise;
+            mMeasurementCount = 1;
+        }
+        else {
+            double predictedCovariance = mErrorCovariance + mProcessNoise;
+            double gain = predictedCovariance / (predictedCovariance + mMeasurementNoise);
+            mEstimate += gain * (rssi - mEstimate);
+            mErrorCovariance = (1 - gain) * predictedCovariance;
+            mMeasurementCount++;
+        }
+        mLastMeasurementTime = now;
+    }
+
+    @Override
+    public synchronized boolean noMeasurementsAvailable() {
+        return isExpired(SystemClock.elapsedRealtime());
+    }
+
+    @Override
+    public synchronized double calculateRssi() {
+        return mEstimate;
+    }
+
+    /**
+     * @return the number of measurements in the current estimate, counted since the filter
+     * was created or the estimate last expired
+     */
+    @Override
+    public synchronized int getMeasurementCount() {
+        return isExpired(SystemClock.elapsedRealtime()) ? 0 : mMeasurementCount;
+    }
+
+    private boolean isExpired(long now) {
+        long age = now - mLastMeasurementTime;
+        // A negative age means the time was recorded before the device restarted
+        return mMeasurementCount == 0 || age < 0
+                || age >= RunningAverageRssiFilter.getSampleExpirationMilliseconds();
+    }
+
+}
@@ -1,42 +1,84 @@
 package org.altbeacon.beacon.service;
 
 import android.content.Context;
+import android.os.SystemClock;
+import android.support.v4.util.AtomicFile;
 
 import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.BeaconManager;
 import org.altbeacon.beacon.MonitorNotifier;
 import org.altbeacon.beacon.Region;
+import org.altbeacon.beacon.RegionIndex;
 import org.altbeacon.beacon.logging.LogManager;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InvalidClassException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
-import static android.content.Context.MODE_PRIVATE;
-
 public class MonitoringStatus {
     private static volatile MonitoringStatus sInstance;
-    private static final int MAX_REGIONS_FOR_STATUS_PRESERVATION = 50;
     private static final int MAX_STATUS_PRESERVATION_FILE_AGE_TO_RESTORE_SECS = 60 * 15;
     private static final String TAG = MonitoringStatus.class.getSimpleName();
     public static final String STATUS_PRESERVATION_FILE_NAME =
             "org.altbeacon.beacon.service.monitoring_status_state";
-    private Map<Region, RegionMonitoringState> mRegionsStatesMap;
+    public static final String STATUS_JOURNAL_FILE_NAME =
+            "org.altbeacon.beacon.service.monitoring_status_journal";
+    // Once the journal holds this many transitions, the next save writes a new snapshot instead
+    private static final int MAX_JOURNAL_RECORDS = 4096;
+    private volatile Map<Region, RegionMonitoringState> mRegionsStatesMap;
+    // Rebuilt on demand after the monitored regions change while holding this object's lock, and
+    // read without it by updateNewlyInsideInRegionsContaining
+    private volatile RegionIndex mRegionIndex;
+    // The regions that may be inside, ordered by when they were last seen, guarded by this
+    private final RegionExitSchedule mExitSchedule = new RegionExitSchedule();
 
     private Context mContext;
 
     private boolean mStatePreservationIsOn = true;
 
+    // When the monitoring status was last known to be current.  This is kept in memory and only
+    // written to the preservation file's modification time by mStatusTimeWriter, so that seeing
+    // a beacon does not touch the file system.
+    private volatile long mLastStatusUpdateTime = 0;
+    private final DebouncedTask mStatusTimeWriter = new DebouncedTask(new Runnable() {
+        @Override
+        public void run() {
+            writeMonitoringStatusTime();
+        }
+    });
+
+    // Region state changes are saved in the background, at most once per
+    // BeaconManager#getRegionStatePersistencePeriod()
+    private final DebouncedTask mStatusWriter = new DebouncedTask(new Runnable() {
+        @Override
+        public void run() {
+            persistMonitoringStatus(false);
+        }
+    });
+    // Held while the preservation files are written.  When both are needed, this lock must be
+    // taken before the lock on this object.
+    private final Object mStatusFileLock = new Object();
+    // The position of each region in the snapshot on disk, which is how journal records refer to
+    // it, or null if the regions have changed since and a new snapshot is needed.  Guarded by this.
+    private Map<Region, Integer> mJournalKeys;
+    // Transitions not yet appended to the journal, guarded by this
+    private final ByteArrayOutputStream mPendingJournal = new ByteArrayOutputStream();
+    private final DataOutputStream mPendingJournalOut = new DataOutputStream(mPendingJournal);
+    // The number of records in the journal file, guarded by mStatusFileLock
+    private int mJournalRecordCount = 0;
+
     /**
      * Private lock object for singleton initialization protecting against denial-of-service attack.
      */
@@ -72,13 +114,17 @@ public class MonitoringStatus {
         this.mContext = context;
     }
 
-    public synchronized void addRegion(Region region, Callback callback) {
-        addLocalRegion(region, callback);
+    public void addRegion(Region region, Callback callback) {
+        synchronized (this) {
+            addLocalRegion(region, callback);
+        }
         saveMonitoringStatusIfOn();
     }
 
-    public synchronized void removeRegion(Region region) {
-        removeLocalRegion(region);
+    public void removeRegion(Region region) {
+        synchronized (this) {
+            removeLocalRegion(region);
+        }
         saveMonitoringStatusIfOn();
     }
 
@@ -94,45 +140,103 @@ public class MonitoringStatus {
         return getRegionsStateMap().get(region);
     }
 
+    /**
+     * Marks the regions that have not been seen for the region exit period as outside.  Only the
+     * regions whose exit deadline has passed are looked at.
+     */
     public synchronized void updateNewlyOutside() {
-        Iterator<Region> monitoredRegionIterator = regions().iterator();
+        Map<Region, RegionMonitoringState> regionsStateMap = getRegionsStateMap();
         boolean needsMonitoringStateSaving = false;
-        while (monitoredRegionIterator.hasNext()) {
-            Region region = monitoredRegionIterator.next();
-            RegionMonitoringState state = stateOf(region);
-            if (state.markOutsideIfExpired()) {
+        List<RegionExitSchedule.Entry> expired = mExitSchedule.takeExpired(SystemClock.elapsedRealtime(),
+                BeaconManager.getRegionExitPeriod());
+        for (RegionExitSchedule.Entry entry : expired) {
+            Region region = entry.region;
+            RegionMonitoringState state = entry.state;
+            if (regionsStateMap.get(region) != state) {
+                // The region has been removed or replaced since it was scheduled
+                continue;
+            }
+            if (!state.markOutsideIfExpired()) {
+                if (state.getInside()) {
+                    // Seen again since it was scheduled
+                    mExitSchedule.schedule(region, state);
+                }
+            }
+            else {
                 needsMonitoringStateSaving = true;
+                journalTransition(region, state);
                 LogManager.d(TAG, "found a monitor that expired: %s", region);
                 state.getCallback().call(mContext, "monitoringData", new MonitoringData(state.getInside(), region).toBundle());
             }
         }
         if (needsMonitoringStateSaving) {
-            saveMonitoringStatusIfOn();
+            requestMonitoringStatusSave();
         }
         else {
-            updateMonitoringStatusTime(System.currentTimeMillis());
+            markMonitoringStatusCurrent();
         }
     }
 
-    public synchronized void updateNewlyInsideInRegionsContaining(Beacon beacon) {
+    /**
+     * Marks the regions matching the beacon as inside.  This is called for every scan packet by
+     * the scan lanes, so when every matching region is already inside only their last seen times
+     * are updated, without taking this object's lock.
+     */
+    public void updateNewlyInsideInRegionsContaining(Beacon beacon) {
+        if (!markSeenIfAllInside(beacon)) {
+            markNewlyInsideInRegionsContaining(beacon);
+        }
+    }
+
+    /**
+     * @return true if every monitored region matching the beacon is already inside and has had
+     * its last seen time updated
+     */
+    private boolean markSeenIfAllInside(Beacon beacon) {
+        RegionIndex regionIndex = mRegionIndex;
+        Map<Region, RegionMonitoringState> regionsStateMap = mRegionsStatesMap;
+        if (regionIndex == null || regionsStateMap == null) {
+            return false;
+        }
+        for (Region region : regionIndex.matchingRegions(beacon)) {
+            RegionMonitoringState state = regionsStateMap.get(region);
+            if (state != null && !state.markSeenIfInside()) {
+                return false;
+            }
+        }
+        markMonitoringStatusCurrent();
+        return true;
+    }
+
+    private synchronized void markNewlyInsideInRegionsContaining(Beacon beacon) {
         List<Region> matchingRegions = regionsMatchingTo(beacon);
         boolean needsMonitoringStateSaving = false;
         for(Region region : matchingRegions) {
             RegionMonitoringState state = getRegionsStateMap().get(region);
             if (state != null && state.markInside()) {
                 needsMonitoringStateSaving = true;
+                mExitSchedule.schedule(region, state);
+                journalTransition(region, state);
                 state.getCallback().call(mContext, "monitoringData",
                         new MonitoringData(state.getInside(), region).toBundle());
             }
         }
         if (needsMonitoringStateSaving) {
-            saveMonitoringStatusIfOn();
+            requestMonitoringStatusSave();
         }
         else {
-            updateMonitoringStatusTime(System.currentTimeMillis());
+            markMonitoringStatusCurrent();
         }
     }
 
+    /**
+     * @return true if any monitored region is inside
+     */
+    public synchronized boolean isInsideAnyRegion() {
+        getRegionsStateMap();
+        return mExitSchedule.isAnyInside();
+    }
+
     private Map<Region, RegionMonitoringState> getRegionsStateMap() {
         if (mRegionsStatesMap == null) {
             restoreOrInitializeMonitoringStatus();
@@ -153,83 +257,262 @@ public class MonitoringStatus {
             restoreMonitoringStatus();
             LogManager.d(TAG, "Done restoring monitoring status");
         }
+        mRegionIndex = null;
+        mExitSchedule.clear();
+        for (Map.Entry<Region, RegionMonitoringState> entry : mRegionsStatesMap.entrySet()) {
+            if (entry.getValue().getInside()) {
+                mExitSchedule.schedule(entry.getKey(), entry.getValue());
+            }
+        }
     }
 
     private List<Region> regionsMatchingTo(Beacon beacon) {
-        List<Region> matched = new ArrayList<Region>();
-        for (Region region : regions()) {
-            if (region.matchesBeacon(beacon)) {
-                matched.add(region);
-            } else {
-                LogManager.d(TAG, "This region (%s) does not match beacon: %s", region, beacon);
-            }
+        if (mRegionIndex == null) {
+            mRegionIndex = new RegionIndex(regions());
         }
-        return matched;
+        return mRegionIndex.matchingRegions(beacon);
     }
 
+    /**
+     * Saves a snapshot of the monitoring status now on the calling thread, replacing the
+     * preservation file atomically and emptying the journal.
+     */
     protected void saveMonitoringStatusIfOn() {
-        if(!mStatePreservationIsOn) return;
-        LogManager.d(TAG, "saveMonitoringStatusIfOn()");
-        if (getRegionsStateMap().size() > MAX_REGIONS_FOR_STATUS_PRESERVATION) {
-            LogManager.w(TAG, "Too many regions being monitored.  Will not persist region state");
-            mContext.deleteFile(STATUS_PRESERVATION_FILE_NAME);
+        persistMonitoringStatus(true);
+    }
+
+    /**
+     * Saves the monitoring status in the background.  Any number of requests made within
+     * {@link BeaconManager#getRegionStatePersistencePeriod()} result in a single save, which
+     * appends the transitions made since the last save to the journal.
+     */
+    void requestMonitoringStatusSave() {
+        if (mStatePreservationIsOn) {
+            mStatusWriter.request(BeaconManager.getRegionStatePersistencePeriod());
         }
-        else {
-            FileOutputStream outputStream = null;
-            ObjectOutputStream objectOutputStream = null;
-            try {
-                outputStream = mContext.openFileOutput(STATUS_PRESERVATION_FILE_NAME, MODE_PRIVATE);
-                objectOutputStream = new ObjectOutputStream(outputStream);
-                Map<Region,RegionMonitoringState> map = getRegionsStateMap();
-                // Must convert ConcurrentHashMap to HashMap becasue attempting to serialize
-                // ConcurrentHashMap throws a java.io.NotSerializableException
-                HashMap<Region,RegionMonitoringState> serializableMap = new HashMap<Region,RegionMonitoringState>();
-                for (Region region : map.keySet()) {
-                    serializableMap.put(region, map.get(region));
+    }
+
+    /**
+     * Writes any pending save of the monitoring status, and of the time it was last known to be
+     * current, to the preservation file now.
+     */
+    public void flush() {
+        mStatusWriter.flush();
+        mStatusTimeWriter.flush();
+    }
+
+    /**
+     * Appends the transitions made since the last save to the journal, or writes a new snapshot
+     * if one is requested, the monitored regions have changed or the journal has grown too long.
+     * The status is copied while holding this object's lock, but the files are written without
+     * it.
+     */
+    private void persistMonitoringStatus(boolean snapshot) {
+        mStatusWriter.cancel();
+        if(!mStatePreservationIsOn) return;
+        synchronized (mStatusFileLock) {
+            byte[] data;
+            synchronized (this) {
+                int pendingRecords = mPendingJournal.size() / MonitoringStatusFormat.JOURNAL_RECORD_SIZE;
+                if (mJournalKeys == null || mJournalRecordCount + pendingRecords > MAX_JOURNAL_RECORDS) {
+                    snapshot = true;
                 }
-                objectOutputStream.writeObject(serializableMap);
-            } catch (IOException e) {
-                LogManager.e(TAG, "Error while saving monitored region states to file ", e);
-                e.printStackTrace(System.err);
-            } finally {
-                if (null != outputStream) {
-                    try {
-                        outputStream.close();
-                    } catch (IOException ignored) {
-                    }
+                if (snapshot) {
+                    LogManager.d(TAG, "Saving monitoring status snapshot");
+                    data = serializeRegionsStateMap();
                 }
-                if (objectOutputStream != null) {
-                    try {
-                        objectOutputStream.close();
-                    } catch (IOException ignored) {
-                    }
+                else {
+                    data = mPendingJournal.toByteArray();
+                }
+                mPendingJournal.reset();
+            }
+            if (snapshot) {
+                writeSnapshot(data);
+            }
+            else if (data.length > 0) {
+                appendToJournal(data);
+            }
+        }
+    }
+
+    // Must be called holding this object's lock
+    private void journalTransition(Region region, RegionMonitoringState state) {
+        Integer key = mJournalKeys == null ? null : mJournalKeys.get(region);
+        if (key == null) {
+            // The region is not in the snapshot, so the next save writes a new one
+            mJournalKeys = null;
+            return;
+        }
+        try {
+            MonitoringStatusFormat.writeJournalRecord(mPendingJournalOut, key, state);
+        } catch (IOException e) {
+            // Writing to memory does not fail
+            mJournalKeys = null;
+        }
+    }
+
+    // Must be called holding this object's lock.  Numbers the regions in the order they are
+    // written so journal records can refer to them.
+    private byte[] serializeRegionsStateMap() {
+        Map<Region, RegionMonitoringState> snapshot = new LinkedHashMap<>(getRegionsStateMap());
+        Map<Region, Integer> keys = new HashMap<>();
+        for (Region region : snapshot.keySet()) {
+            keys.put(region, keys.size());
+        }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try {
+            MonitoringStatusFormat.write(outputStream, snapshot);
+            mJournalKeys = keys;
+            return outputStream.toByteArray();
+        } catch (IOException e) {
+            LogManager.e(TAG, "Error while saving monitored region states to file ", e);
+            mJournalKeys = null;
+            return null;
+        }
+    }
+
+    // Must be called holding mStatusFileLock
+    private void writeSnapshot(byte[] data) {
+        // The journal refers to the previous snapshot, so it goes first.  If the snapshot cannot
+        // be written, the previous snapshot alone is still consistent.
+        deleteJournal();
+        if (data == null) {
+            return;
+        }
+        AtomicFile statusFile = getStatusFile();
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = statusFile.startWrite();
+            outputStream.write(data);
+            statusFile.finishWrite(outputStream);
+            mLastStatusUpdateTime = System.currentTimeMillis();
+        } catch (IOException e) {
+            LogManager.e(TAG, "Error while saving monitored region states to file ", e);
+            if (outputStream != null) {
+                statusFile.failWrite(outputStream);
+            }
+            invalidateJournalKeys();
+            requestMonitoringStatusSave();
+        }
+    }
+
+    // Must be called holding mStatusFileLock
+    private void appendToJournal(byte[] records) {
+        File journalFile = getJournalFile();
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(journalFile, true);
+            if (journalFile.length() == 0) {
+                DataOutputStream headerOut = new DataOutputStream(outputStream);
+                MonitoringStatusFormat.writeJournalHeader(headerOut);
+                headerOut.flush();
+            }
+            outputStream.write(records);
+            outputStream.getFD().sync();
+            mJournalRecordCount += records.length / MonitoringStatusFormat.JOURNAL_RECORD_SIZE;
+            mLastStatusUpdateTime = System.currentTimeMillis();
+        } catch (IOException e) {
+            LogManager.e(TAG, "Error while saving monitored region transitions to file ", e);
+            // The transitions will be included in a new snapshot instead
+            invalidateJournalKeys();
+            requestMonitoringStatusSave();
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException ignored) {
                 }
             }
         }
     }
 
+    private synchronized void invalidateJournalKeys() {
+        mJournalKeys = null;
+    }
+
+    // Must be called holding mStatusFileLock
+    private void deleteJournal() {
+        getJournalFile().delete();
+        mJournalRecordCount = 0;
+    }
+
+    private AtomicFile getStatusFile() {
+        return new AtomicFile(mContext.getFileStreamPath(STATUS_PRESERVATION_FILE_NAME));
+    }
+
+    private File getJournalFile() {
+        return mContext.getFileStreamPath(STATUS_JOURNAL_FILE_NAME);
+    }
+
+    // Must be called holding mStatusFileLock and then this object's lock
+    private void deleteStatusFile() {
+        mStatusWriter.cancel();
+        mStatusTimeWriter.cancel();
+        deleteJournal();
+        getStatusFile().delete();
+        mJournalKeys = null;
+        mPendingJournal.reset();
+    }
+
     protected void updateMonitoringStatusTime(long time) {
+        mStatusTimeWriter.cancel();
+        mLastStatusUpdateTime = time;
         File file = mContext.getFileStreamPath(STATUS_PRESERVATION_FILE_NAME);
         file.setLastModified(time);
+        getJournalFile().setLastModified(time);
+    }
+
+    /**
+     * Records that the monitoring status is current as of now.  The preservation file's
+     * modification time, which is used to decide whether the status is recent enough to restore
+     * after the process restarts, is brought up to date in the background at most once per
+     * {@link BeaconManager#getMonitoringStatusHeartbeatPeriod()}.
+     */
+    private void markMonitoringStatusCurrent() {
+        mLastStatusUpdateTime = System.currentTimeMillis();
+        if (mStatePreservationIsOn) {
+            mStatusTimeWriter.request(BeaconManager.getMonitoringStatusHeartbeatPeriod());
+        }
+    }
+
+    private void writeMonitoringStatusTime() {
+        if (mStatePreservationIsOn) {
+            File file = mContext.getFileStreamPath(STATUS_PRESERVATION_FILE_NAME);
+            file.setLastModified(mLastStatusUpdateTime);
+        }
+    }
+
+    /**
+     * Writes any pending update of the monitoring status time to the preservation file now.
+     */
+    public void flushMonitoringStatusTime() {
+        mStatusTimeWriter.flush();
     }
 
     protected long getLastMonitoringStatusUpdateTime() {
+        long lastStatusUpdateTime = mLastStatusUpdateTime;
+        if (lastStatusUpdateTime != 0) {
+            return lastStatusUpdateTime;
+        }
         File file = mContext.getFileStreamPath(STATUS_PRESERVATION_FILE_NAME);
-        return file.lastModified();
+        // Appending to the journal does not touch the snapshot
+        return Math.max(file.lastModified(), getJournalFile().lastModified());
     }
 
     protected void restoreMonitoringStatus() {
         FileInputStream inputStream = null;
-        ObjectInputStream objectInputStream = null;
         try {
-            inputStream = mContext.openFileInput(STATUS_PRESERVATION_FILE_NAME);
-            objectInputStream = new ObjectInputStream(inputStream);
-            Map<Region, RegionMonitoringState> obj = (Map<Region, RegionMonitoringState>) objectInputStream.readObject();
+            inputStream = getStatusFile().openRead();
+            Map<Region, RegionMonitoringState> obj = MonitoringStatusFormat.read(inputStream);
             LogManager.d(TAG, "Restored region monitoring state for "+obj.size()+" regions.");
-            for (Region region : obj.keySet()) {
-                LogManager.d(TAG, "Region  "+region+" uniqueId: "+region.getUniqueId()+" state: "+obj.get(region));
+            if (LogManager.isVerboseLoggingEnabled()) {
+                for (Region region : obj.keySet()) {
+                    LogManager.d(TAG, "Region  "+region+" uniqueId: "+region.getUniqueId()+" state: "+obj.get(region));
+                }
             }
 
+            replayJournal(new ArrayList<>(obj.values()));
+
             // RegionMonitoringState objects only get serialized to the status preservation file when they are first inside,
             // therefore, their {@link RegionMonitoringState#lastSeenTime will be when they were first "inside".
             // Mark all beacons that were inside again so they don't trigger as a new exit - enter.
@@ -243,7 +526,9 @@ public class MonitoringStatus {
 
             mRegionsStatesMap.putAll(obj);
 
-        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+        } catch (FileNotFoundException e) {
+            LogManager.d(TAG, "No saved monitoring state to restore");
+        } catch (IOException e) {
             if (e instanceof InvalidClassException) {
                 LogManager.d(TAG, "Serialized Monitoring State has wrong class. Just ignoring saved state..." );
             } else LogManager.e(TAG, "Deserialization exception, message: %s", e.getMessage());
@@ -254,9 +539,23 @@ public class MonitoringStatus {
                 } catch (IOException ignored) {
                 }
             }
-            if (objectInputStream != null) {
+        }
+    }
+
+    private void replayJournal(List<RegionMonitoringState> states) {
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(getJournalFile());
+            int records = MonitoringStatusFormat.replayJournal(inputStream, states);
+            LogManager.d(TAG, "Replayed "+records+" region monitoring transitions.");
+        } catch (FileNotFoundException e) {
+            // No transitions since the snapshot
+        } catch (IOException e) {
+            LogManager.e(TAG, "Cannot replay monitoring status journal, message: %s", e.getMessage());
+        } finally {
+            if (null != inputStream) {
                 try {
-                    objectInputStream.close();
+                    inputStream.close();
                 } catch (IOException ignored) {
                 }
             }
@@ -266,31 +565,44 @@ public class MonitoringStatus {
     /**
      * Client applications should not call directly.  Call BeaconManager#setRegionStatePeristenceEnabled
      */
-    public synchronized void stopStatusPreservation() {
-        mContext.deleteFile(STATUS_PRESERVATION_FILE_NAME);
-        this.mStatePreservationIsOn = false;
+    public void stopStatusPreservation() {
+        synchronized (mStatusFileLock) {
+            synchronized (this) {
+                deleteStatusFile();
+                this.mStatePreservationIsOn = false;
+            }
+        }
     }
 
     /**
      * Client applications should not call directly.  Call BeaconManager#setRegionStatePeristenceEnabled
      */
-    public synchronized void startStatusPreservation() {
-        if (!this.mStatePreservationIsOn) {
+    public void startStatusPreservation() {
+        synchronized (this) {
+            if (this.mStatePreservationIsOn) {
+                return;
+            }
             this.mStatePreservationIsOn = true;
-            saveMonitoringStatusIfOn();
         }
+        saveMonitoringStatusIfOn();
     }
 
     public boolean isStatePreservationOn() {
         return mStatePreservationIsOn;
     }
 
-    public synchronized void clear() {
-        mContext.deleteFile(STATUS_PRESERVATION_FILE_NAME);
-        getRegionsStateMap().clear();
+    public void clear() {
+        synchronized (mStatusFileLock) {
+            synchronized (this) {
+                deleteStatusFile();
+                getRegionsStateMap().clear();
+                mRegionIndex = null;
+                mExitSchedule.clear();
+            }
+        }
     }
 
-    public void updateLocalState(Region region, Integer state) {
+    public synchronized void updateLocalState(Region region, Integer state) {
         RegionMonitoringState internalState = getRegionsStateMap().get(region);
         if (internalState == null) {
             internalState = addLocalRegion(region);
@@ -302,14 +614,17 @@ public class MonitoringStatus {
             }
             if (state == MonitorNotifier.INSIDE) {
                 internalState.markInside();
+                mExitSchedule.schedule(region, internalState);
             }
         }
     }
 
-    public void removeLocalRegion(Region region) {
+    public synchronized void removeLocalRegion(Region region) {
         getRegionsStateMap().remove(region);
+        mRegionIndex = null;
+        mJournalKeys = null;
     }
-    public RegionMonitoringState addLocalRegion(Region region){
+    public synchronized RegionMonitoringState addLocalRegion(Region region){
         Callback dummyCallback = new Callback(null);
         return addLocalRegion(region, dummyCallback);
     }
@@ -336,6 +651,8 @@ public class MonitoringStatus {
         }
         RegionMonitoringState monitoringState = new RegionMonitoringState(callback);
         getRegionsStateMap().put(region, monitoringState);
+        mRegionIndex = null;
+        mJournalKeys = null;
         return monitoringState;
     }
 }
@@ -0,0 +1,278 @@
+package org.altbeacon.beacon.service;
+
+import android.support.annotation.NonNull;
+
+import org.altbeacon.beacon.Identifier;
+import org.altbeacon.beacon.Region;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes the state of monitored regions in a compact binary format.
+ *
+ * The file starts with a magic number and a format version, followed by the number of regions
+ * and one record per region:
+ * <pre>
+ *   uniqueId          modified UTF-8 string
+ *   flags             byte, {@link #FLAG_INSIDE} and {@link #FLAG_HAS_BLUETOOTH_ADDRESS}
+ *   lastSeenTime      long
+ *   bluetoothAddress  modified UTF-8 string, only if {@link #FLAG_HAS_BLUETOOTH_ADDRESS} is set
+ *   identifierCount   unsigned short
+ *   identifiers       per identifier a short byte length, -1 for a null identifier, then the
+ *                     identifier's bytes
+ * </pre>
+ * Records are read and written one at a time, so the time taken grows linearly with the number
+ * of regions.  Files written by older library versions, which held a Java-serialized map, are
+ * still read.
+ *
+ * Transitions made after a snapshot was written are appended to a journal rather than rewriting
+ * the snapshot.  The journal starts with its own magic number and version, followed by fixed size
+ * records:
+ * <pre>
+ *   key               int, the position of the region in the snapshot
+ *   flags             byte, {@link #FLAG_INSIDE}
+ *   lastSeenTime      long
+ * </pre>
+ *
+ * This is an internal utility class and should not be called directly by library users.
+ *
+ * @hide
+ */
+class MonitoringStatusFormat {
+    static final int MAGIC = 0x414d5354; // "AMST"
+    static final int VERSION = 1;
+    static final int FLAG_INSIDE = 0x01;
+    static final int FLAG_HAS_BLUETOOTH_ADDRESS = 0x02;
+    static final int JOURNAL_MAGIC = 0x414d534a; // "AMSJ"
+    static final int JOURNAL_HEADER_SIZE = 5;
+    static final int JOURNAL_RECORD_SIZE = 13;
+    private static final int NULL_IDENTIFIER_LENGTH = -1;
+    // First two bytes of a Java serialization stream
+    private static final int SERIALIZATION_STREAM_MAGIC = 0xaced;
+
+    private MonitoringStatusFormat() {
+    }
+
+    static void write(@NonNull OutputStream outputStream, @NonNull Map<Region, RegionMonitoringState> states)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(outputStream);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(states.size());
+        for (Map.Entry<Region, RegionMonitoringState> entry : states.entrySet()) {
+            Region region = entry.getKey();
+            RegionMonitoringState state = entry.getValue();
+            String bluetoothAddress = region.getBluetoothAddress();
+            int flags = 0;
+            if (state.getInside()) {
+                flags |= FLAG_INSIDE;
+            }
+            if (bluetoothAddress != null) {
+                flags |= FLAG_HAS_BLUETOOTH_ADDRESS;
+            }
+            out.writeUTF(region.getUniqueId());
+            out.writeByte(flags);
+            out.writeLong(state.getLastSeenTime());
+            if (bluetoothAddress != null) {
+                out.writeUTF(bluetoothAddress);
+            }
+            writeIdentifiers(out, region);
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes a region as its unique id, optional Bluetooth address and identifiers, in the same
+     * layout as the records of the monitoring status file.
+     */
+    static void writeRegion(@NonNull DataOutput out, @NonNull Region region) throws IOException {
+        String bluetoothAddress = region.getBluetoothAddress();
+        out.writeUTF(region.getUniqueId());
+        out.writeByte(bluetoothAddress == null ? 0 : FLAG_HAS_BLUETOOTH_ADDRESS);
+        if (bluetoothAddress != null) {
+            out.writeUTF(bluetoothAddress);
+        }
+        writeIdentifiers(out, region);
+    }
+
+    /**
+     * Reads a region written by {@link #writeRegion(DataOutput, Region)}.
+     */
+    @NonNull
+    static Region readRegion(@NonNull DataInput in) throws IOException {
+        String uniqueId = in.readUTF();
+        int flags = in.readUnsignedByte();
+        String bluetoothAddress = null;
+        if ((flags & FLAG_HAS_BLUETOOTH_ADDRESS) != 0) {
+            bluetoothAddress = in.readUTF();
+        }
+        return createRegion(uniqueId, readIdentifiers(in), bluetoothAddress);
+    }
+
+    private static void writeIdentifiers(DataOutput out, Region region) throws IOException {
+        List<Identifier> identifiers = region.getIdentifiers();
+        out.writeShort(identifiers.size());
+        for (Identifier identifier : identifiers) {
+            if (identifier == null) {
+                out.writeShort(NULL_IDENTIFIER_LENGTH);
+            }
+            else {
+                byte[] bytes = identifier.toByteArray();
+                out.writeShort(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static List<Identifier> readIdentifiers(DataInput in) throws IOException {
+        int identifierCount = in.readUnsignedShort();
+        List<Identifier> identifiers = new ArrayList<>(identifierCount);
+        for (int j = 0; j < identifierCount; j++) {
+            int length = in.readShort();
+            if (length == NULL_IDENTIFIER_LENGTH) {
+                identifiers.add(null);
+            }
+            else if (length < 0) {
+                throw new IOException("Invalid identifier length " + length);
+            }
+            else {
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                identifiers.add(Identifier.fromBytes(bytes, 0, length, false));
+            }
+        }
+        return identifiers;
+    }
+
+    private static Region createRegion(String uniqueId, List<Identifier> identifiers, String bluetoothAddress)
+            throws IOException {
+        try {
+            return new Region(uniqueId, identifiers, bluetoothAddress);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("Invalid region " + uniqueId);
+        }
+    }
+
+    /**
+     * Reads region states written by {@link #write(OutputStream, Map)} or, for files saved by
+     * older library versions, by Java serialization.  The returned map iterates in the order the
+     * regions were written, which is the order journal keys refer to.
+     *
+     * @throws IOException if the data is truncated, corrupt or of an unknown version
+     */
+    @NonNull
+    static Map<Region, RegionMonitoringState> read(@NonNull InputStream inputStream) throws IOException {
+        BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
+        bufferedInputStream.mark(4);
+        DataInputStream in = new DataInputStream(bufferedInputStream);
+        int magic = in.readInt();
+        if (magic != MAGIC) {
+            if (magic >>> 16 == SERIALIZATION_STREAM_MAGIC) {
+                bufferedInputStream.reset();
+                return readSerialized(bufferedInputStream);
+            }
+            throw new IOException("Not a monitoring status file");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported monitoring status format version " + version);
+        }
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid region count " + count);
+        }
+        Map<Region, RegionMonitoringState> states = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String uniqueId = in.readUTF();
+            int flags = in.readUnsignedByte();
+            long lastSeenTime = in.readLong();
+            String bluetoothAddress = null;
+            if ((flags & FLAG_HAS_BLUETOOTH_ADDRESS) != 0) {
+                bluetoothAddress = in.readUTF();
+            }
+            Region region = createRegion(uniqueId, readIdentifiers(in), bluetoothAddress);
+            states.put(region, new RegionMonitoringState(new Callback(null),
+                    (flags & FLAG_INSIDE) != 0, lastSeenTime));
+        }
+        return states;
+    }
+
+    static void writeJournalHeader(@NonNull DataOutput out) throws IOException {
+        out.writeInt(JOURNAL_MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    static void writeJournalRecord(@NonNull DataOutput out, int key, @NonNull RegionMonitoringState state)
+            throws IOException {
+        out.writeInt(key);
+        out.writeByte(state.getInside() ? FLAG_INSIDE : 0);
+        out.writeLong(state.getLastSeenTime());
+    }
+
+    /**
+     * Applies the journal records to the states of the regions in the snapshot they were written
+     * against, in the order the snapshot lists them.  An incomplete record at the end of the
+     * journal, left by a write that was interrupted, is ignored.
+     *
+     * @return the number of records applied
+     * @throws IOException if the journal is corrupt, of an unknown version or refers to regions
+     * that are not in the snapshot
+     */
+    static int replayJournal(@NonNull InputStream inputStream, @NonNull List<RegionMonitoringState> states)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+        if (in.readInt() != JOURNAL_MAGIC) {
+            throw new IOException("Not a monitoring status journal");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported monitoring status journal version " + version);
+        }
+        byte[] record = new byte[JOURNAL_RECORD_SIZE];
+        int applied = 0;
+        while (true) {
+            int length = 0;
+            int read;
+            while (length < record.length && (read = in.read(record, length, record.length - length)) > 0) {
+                length += read;
+            }
+            if (length < record.length) {
+                return applied;
+            }
+            DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+            int key = recordIn.readInt();
+            int flags = recordIn.readUnsignedByte();
+            long lastSeenTime = recordIn.readLong();
+            if (key < 0 || key >= states.size()) {
+                throw new IOException("Journal refers to unknown region " + key);
+            }
+            states.get(key).setState((flags & FLAG_INSIDE) != 0, lastSeenTime);
+            applied++;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Region, RegionMonitoringState> readSerialized(InputStream inputStream) throws IOException {
+        ObjectInputStream objectInputStream = new ObjectInputStream(inputStream);
+        try {
+            return (Map<Region, RegionMonitoringState>) objectInputStream.readObject();
+        }
+        catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Cannot read serialized monitoring status: " + e.getMessage());
+        }
+    }
+}
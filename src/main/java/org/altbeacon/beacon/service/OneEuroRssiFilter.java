@@ -0,0 +1,151 @@
+package org.altbeacon.beacon.service;
+
+import android.os.SystemClock;
+
+import java.io.Serializable;
+
+/**
+ * This filter smooths the rssi with a one euro filter, a low pass filter whose cutoff frequency
+ * rises with the rate at which the rssi changes.  While a beacon is still its rssi is heavily
+ * smoothed, and while it moves the rssi follows it with little lag.
+ * Note: a lower minimum cutoff gives a smoother rssi while the beacon is still, a higher beta
+ *       follows a moving beacon more quickly
+ *
+ * See Casiez, Roussel and Vogel, "1 Euro Filter: A Simple Speed-based Low-pass Filter for Noisy
+ * Input in Interactive Systems", CHI 2012.
+ *
+ * Unlike {@link RunningAverageRssiFilter} it keeps no history of measurements, so it takes a
+ * constant amount of memory and allocates nothing per measurement.  The estimate is discarded
+ * once no measurement has been added for the sample expiration period set with
+ * {@link RunningAverageRssiFilter#setSampleExpirationMilliseconds(long)}.
+ */
+public class OneEuroRssiFilter implements RssiFilter, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default cutoff frequency, in Hz, while the rssi is not changing
+     */
+    public static final double DEFAULT_MIN_CUTOFF = 0.5;
+    /**
+     * Default increase of the cutoff frequency, in Hz, per dBm per second of change in the rssi
+     */
+    public static final double DEFAULT_BETA = 0.05;
+    /**
+     * Default cutoff frequency, in Hz, used to smooth the rate at which the rssi changes
+     */
+    public static final double DEFAULT_DERIVATIVE_CUTOFF = 1.0;
+
+    private final double mMinCutoff;
+    private final double mBeta;
+    private final double mDerivativeCutoff;
+    private double mEstimate;
+    private double mDerivativeEstimate;
+    private int mMeasurementCount = 0;
+    private long mLastMeasurementTime;
+    // The estimates before the measurements at the last measurement time, and the seconds between
+    // them, so measurements seen in the same millisecond can be combined into one
+    private double mPreviousEstimate;
+    private double mPreviousDerivativeEstimate;
+    private double mLastInterval;
+    private double mSameTimeRssiSum;
+    private int mSameTimeCount;
+
+    public OneEuroRssiFilter() {
+        this(DEFAULT_MIN_CUTOFF, DEFAULT_BETA, DEFAULT_DERIVATIVE_CUTOFF);
+    }
+
+    /**
+     * @param minCutoff        the cutoff frequency in Hz while the rssi is not changing, which
+     *                         must be greater than 0
+     * @param beta             the increase of the cutoff frequency per dBm per second of change
+     * @param derivativeCutoff the cutoff frequency in Hz used to smooth the rate of change, which
+     *                         must be greater than 0
+     */
+    public OneEuroRssiFilter(double minCutoff, double beta, double derivativeCutoff) {
+        if (minCutoff <= 0 || derivativeCutoff <= 0) {
+            throw new IllegalArgumentException("Cutoff frequencies must be greater than 0");
+        }
+        if (beta < 0) {
+            throw new IllegalArgumentException("Beta must not be negative");
+        }
+        mMinCutoff = minCutoff;
+        mBeta = beta;
+        mDerivativeCutoff = derivativeCutoff;
+    }
+
+    @Override
+    public void addMeasurement(Integer rssi) {
+        addMeasurement(rssi, SystemClock.elapsedRealtime());
+    }
+
+    synchronized void addMeasurement(int rssi, long now) {
+        if (isExpired(now)) {
+            mMeasurementCount = 0;
+            mLastInterval = 0;
+            mSameTimeRssiSum = 0;
+            mSameTimeCount = 0;
+            mLastMeasurementTime = now;
+        }
+        else if (now != mLastMeasurementTime) {
+            mPreviousEstimate = mEstimate;
+            mPreviousDerivativeEstimate = mDerivativeEstimate;
+            mLastInterval = (now - mLastMeasurementTime) / 1000.0;
+            mSameTimeRssiSum = 0;
+            mSameTimeCount = 0;
+            mLastMeasurementTime = now;
+        }
+        mMeasurementCount++;
+        // Packets seen in the same millisecond are filtered as one measurement of their average,
+        // rather than dividing by zero
+        mSameTimeRssiSum += rssi;
+        mSameTimeCount++;
+        double measurement = mSameTimeRssiSum / mSameTimeCount;
+        if (mLastInterval == 0) {
+            // The first measurements are taken as is
+            mEstimate = measurement;
+            mDerivativeEstimate = 0;
+            return;
+        }
+        double derivative = (measurement - mPreviousEstimate) / mLastInterval;
+        mDerivativeEstimate = mPreviousDerivativeEstimate + smoothingFactor(mLastInterval, mDerivativeCutoff)
+                * (derivative - mPreviousDerivativeEstimate);
+        double cutoff = mMinCutoff + mBeta * Math.abs(mDerivativeEstimate);
+        mEstimate = mPreviousEstimate + smoothingFactor(mLastInterval, cutoff) * (measurement - mPreviousEstimate);
+    }
+
+    @Override
+    public synchronized boolean noMeasurementsAvailable() {
+        return isExpired(SystemClock.elapsedRealtime());
+    }
+
+    @Override
+    public synchronized double calculateRssi() {
+        return mEstimate;
+    }
+
+    /**
+     * @return the number of measurements in the current estimate, counted since the filter
+     * was created or the estimate last expired
+     */
+    @Override
+    public synchronized int getMeasurementCount() {
+        return isExpired(SystemClock.elapsedRealtime()) ? 0 : mMeasurementCount;
+    }
+
+    /**
+     * @return the weight of a new value in an exponential low pass filter with the given cutoff
+     * frequency, for a value that arrives the given number of seconds after the last
+     */
+    private static double smoothingFactor(double interval, double cutoff) {
+        double timeConstant = 1.0 / (2 * Math.PI * cutoff);
+        return 1.0 / (1.0 + timeConstant / interval);
+    }
+
+    private boolean isExpired(long now) {
+        long age = now - mLastMeasurementTime;
+        // A negative age means the time was recorded before the device restarted
+        return mMeasurementCount == 0 || age < 0
+                || age >= RunningAverageRssiFilter.getSampleExpirationMilliseconds();
+    }
+
+}
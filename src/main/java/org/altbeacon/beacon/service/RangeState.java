@@ -24,76 +24,221 @@
 package org.altbeacon.beacon.service;
 
 import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.BeaconManager;
+import org.altbeacon.beacon.Region;
 import org.altbeacon.beacon.logging.LogManager;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Tracks the beacons ranged in one region and the RSSI filter state of each.
+ *
+ * Beacons are kept in order of when they were last seen, least recently seen first, and the
+ * beacons seen since the last cycle are listed separately, so finalizing a cycle looks at those
+ * beacons and at the least recently seen beacons that have run out of measurements, rather than
+ * at every beacon tracked.
+ *
+ * Beacons are split by hash code into stripes, each with its own lock, so beacons may be added
+ * from several threads at once without a lock over the whole range state.  Finalizing a cycle
+ * takes each stripe's lock in turn, and a beacon added meanwhile is passed on in this cycle or
+ * the next, depending on whether its stripe has been finalized yet, but is never lost.
+ *
+ * No more beacons are kept than allowed by {@link BeaconManager#setMaxTrackedBeacons(int)}.
+ * When another beacon is seen, one is evicted as chosen by
+ * {@link BeaconManager#setTrackedBeaconEvictionPolicy(TrackedBeaconEvictionPolicy)}.  The beacon
+ * to evict is looked for in every stripe, taking each stripe's lock in turn, after the new
+ * beacon's stripe has been unlocked.
+ */
 public class RangeState implements Serializable {
     private static final String TAG = "RangeState";
+    private static final long serialVersionUID = -6375822454948085137L;
+    // A power of two, so a stripe is picked by masking the hash code
+    private static final int STRIPE_COUNT = 8;
+    // The serialized form is unchanged from before the beacons were striped
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("mCallback", Callback.class),
+            new ObjectStreamField("mRangedBeacons", Map.class)
+    };
     private Callback mCallback;
-    private Map<Beacon,RangedBeacon> mRangedBeacons = new HashMap<Beacon,RangedBeacon>();
+    // Not serialized, as the scan state saves the regions itself and sets it again
+    private transient Region mRegion;
+    private transient AtomicInteger mSize = new AtomicInteger();
+    private transient AtomicLong mEvictedBeaconCount = new AtomicLong();
+    // Set whenever a beacon is added or dropped, so saving can skip unchanged range states
+    private transient AtomicBoolean mChanged = new AtomicBoolean();
+    // Counts the beacons added, so the least recently seen beacon of any stripe can be found
+    private transient AtomicLong mAddedBeaconCount = new AtomicLong();
+    private transient Stripe[] mStripes = newStripes();
+    // Guarded by this
+    private transient ArrayList<Beacon> mFinalizedBeacons = new ArrayList<Beacon>();
+    private transient Collection<Beacon> mFinalizedBeaconsView = Collections.unmodifiableList(mFinalizedBeacons);
+    private static final AtomicLong sTotalEvictedBeaconCount = new AtomicLong();
     private static boolean sUseTrackingCache = false;
 
     public RangeState(Callback c) {
+        this(c, null);
+    }
+
+    /**
+     * @param region the region ranged, which is passed to the
+     *               {@link BeaconManager#getRssiFilterFactory() RSSI filter factory}
+     */
+    public RangeState(Callback c, Region region) {
         mCallback = c;
+        mRegion = region;
     }
 
     public Callback getCallback() {
         return mCallback;
     }
 
-    public void addBeacon(Beacon beacon) {
-        if (mRangedBeacons.containsKey(beacon)) {
-            RangedBeacon rangedBeacon = mRangedBeacons.get(beacon);
-            if (LogManager.isVerboseLoggingEnabled()) {
-                LogManager.d(TAG, "adding %s to existing range for: %s", beacon, rangedBeacon);
+    /**
+     * Sets the region ranged after this range state has been restored.
+     */
+    void setRegion(Region region) {
+        mRegion = region;
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                for (RangedBeacon rangedBeacon : stripe.rangedBeacons.values()) {
+                    rangedBeacon.setRegion(region);
+                }
             }
-            rangedBeacon.updateBeacon(beacon);
         }
-        else {
-            if (LogManager.isVerboseLoggingEnabled()) {
-                LogManager.d(TAG, "adding %s to new rangedBeacon", beacon);
+    }
+
+    /**
+     * Adds a measurement of a beacon.  May be called from any thread, and takes the lock of the
+     * beacon's stripe, or of each stripe in turn if a beacon must be evicted.
+     */
+    public void addBeacon(Beacon beacon) {
+        addBeacon(beacon, BeaconManager.getMaxTrackedBeacons());
+    }
+
+    /**
+     * Adds a measurement of a beacon, evicting a beacon if this is a new beacon and more than the
+     * given number of beacons would be kept.
+     */
+    void addBeacon(Beacon beacon, int maxTrackedBeacons) {
+        beacon.detachIdentifiersFromScanRecord();
+        Stripe stripe = stripeFor(beacon);
+        boolean newBeacon;
+        synchronized (stripe) {
+            newBeacon = stripe.addBeacon(beacon, mAddedBeaconCount.incrementAndGet());
+        }
+        mChanged.set(true);
+        // Beacons added at the same time on other threads may each evict one, so the limit is
+        // checked again after each eviction
+        while (newBeacon && mSize.get() > maxTrackedBeacons) {
+            if (!evictBeacon(beacon)) {
+                break;
             }
-            mRangedBeacons.put(beacon, new RangedBeacon(beacon));
         }
     }
 
-    // returns a list of beacons that are tracked, and then removes any from the list that should not
-    // be there for the next cycle
-    public synchronized Collection<Beacon> finalizeBeacons() {
-        Map<Beacon,RangedBeacon> newRangedBeacons = new HashMap<Beacon,RangedBeacon>();
-        ArrayList<Beacon> finalizedBeacons = new ArrayList<Beacon>();
-
-        synchronized (mRangedBeacons) {
-            for (Beacon beacon : mRangedBeacons.keySet()) {
-                RangedBeacon rangedBeacon = mRangedBeacons.get(beacon);
-                if (rangedBeacon.isTracked()) {
-                    rangedBeacon.commitMeasurements(); // calculates accuracy
-                    if (!rangedBeacon.noMeasurementsAvailable()) {
-                        finalizedBeacons.add(rangedBeacon.getBeacon());
-                    }
+    /**
+     * Evicts the beacon chosen by the eviction policy from whichever stripe holds it.  The least
+     * recently seen beacon is never the new beacon, unless it is the only one, while the weakest
+     * may be.  The chosen beacon is not evicted if another thread removes it or sees it again
+     * before its stripe is locked again, so the caller checks the limit again either way.
+     *
+     * @return false if there was no beacon to evict
+     */
+    private boolean evictBeacon(Beacon newBeacon) {
+        boolean weakestSignal = BeaconManager.getTrackedBeaconEvictionPolicy() == TrackedBeaconEvictionPolicy.WEAKEST_SIGNAL;
+        Stripe evictedStripe = null;
+        RangedBeacon evicted = null;
+        long evictedAddedBeaconCount = 0;
+        int evictedRssi = 0;
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                RangedBeacon candidate = weakestSignal ? stripe.weakestBeacon()
+                        : stripe.leastRecentlySeenBeacon(newBeacon);
+                if (candidate == null) {
+                    continue;
                 }
-                // If we still have useful measurements, keep it around but mark it as not
-                // tracked anymore so we don't pass it on as visible unless it is seen again
-                if (!rangedBeacon.noMeasurementsAvailable() == true) {
-                    //if TrackingCache is enabled, allow beacon to not receive
-                    //measurements for a certain amount of time
-                    if (!sUseTrackingCache || rangedBeacon.isExpired())
-                        rangedBeacon.setTracked(false);
-                    newRangedBeacons.put(beacon, rangedBeacon);
-                }
-                else {
-                    LogManager.d(TAG, "Dumping beacon from RangeState because it has no recent measurements.");
+                int rssi = candidate.getBeacon().getRssi();
+                if (evicted == null || (weakestSignal ? rssi < evictedRssi
+                        : candidate.lastAddedBeaconCount < evictedAddedBeaconCount)) {
+                    evicted = candidate;
+                    evictedStripe = stripe;
+                    evictedAddedBeaconCount = candidate.lastAddedBeaconCount;
+                    evictedRssi = rssi;
                 }
             }
-            mRangedBeacons = newRangedBeacons;
         }
+        if (evicted == null) {
+            return false;
+        }
+        synchronized (evictedStripe) {
+            evictedStripe.evict(evicted, evictedAddedBeaconCount);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the beacons that are tracked, and then removes any that should not be there for the
+     * next cycle.
+     *
+     * @return the tracked beacons, which are only valid until the next call as the same collection
+     * is reused every cycle
+     */
+    public synchronized Collection<Beacon> finalizeBeacons() {
+        mFinalizedBeacons.clear();
+        int sizeBefore = mSize.get();
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                stripe.finalizeBeacons(mFinalizedBeacons);
+            }
+        }
+        // Finalizing beacons resets their packet counts and tracking, and may drop some
+        if (!mFinalizedBeacons.isEmpty() || mSize.get() != sizeBefore) {
+            mChanged.set(true);
+        }
+        return mFinalizedBeaconsView;
+    }
+
+    /**
+     * Clears the changed flag, which is set whenever a beacon is added, finalized or dropped.
+     *
+     * @return true if this range state has changed since this was last called
+     */
+    boolean takeChanged() {
+        return mChanged.getAndSet(false);
+    }
+
+    /**
+     * @return the number of beacons kept, whether tracked or not
+     */
+    int size() {
+        return mSize.get();
+    }
+
+    /**
+     * @return the number of beacons evicted from this range state because more beacons were seen
+     * than allowed by {@link BeaconManager#setMaxTrackedBeacons(int)}
+     */
+    public long getEvictedBeaconCount() {
+        return mEvictedBeaconCount.get();
+    }
 
-        return finalizedBeacons;
+    /**
+     * @return the number of beacons evicted from all range states in this process
+     */
+    public static long getTotalEvictedBeaconCount() {
+        return sTotalEvictedBeaconCount.get();
     }
 
     public static void setUseTrackingCache(boolean useTrackingCache) {
@@ -104,4 +249,195 @@ public class RangeState implements Serializable {
         return sUseTrackingCache;
     }
 
+    private Stripe stripeFor(Beacon beacon) {
+        return mStripes[stripeIndex(beacon)];
+    }
+
+    static int stripeIndex(Beacon beacon) {
+        int hash = beacon.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPE_COUNT - 1);
+    }
+
+    private Stripe[] newStripes() {
+        Stripe[] stripes = new Stripe[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe();
+        }
+        return stripes;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // Stripes are picked by hash code, so each stripe's beacons stay in order when read back
+        LinkedHashMap<Beacon,RangedBeacon> rangedBeacons = new LinkedHashMap<Beacon,RangedBeacon>(16, 0.75f, true);
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                rangedBeacons.putAll(stripe.rangedBeacons);
+            }
+        }
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("mCallback", mCallback);
+        fields.put("mRangedBeacons", rangedBeacons);
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        mCallback = (Callback) fields.get("mCallback", null);
+        Map<Beacon,RangedBeacon> rangedBeacons = (Map<Beacon,RangedBeacon>) fields.get("mRangedBeacons", null);
+        mStripes = newStripes();
+        mSize = new AtomicInteger();
+        mEvictedBeaconCount = new AtomicLong();
+        mChanged = new AtomicBoolean();
+        mAddedBeaconCount = new AtomicLong();
+        if (rangedBeacons != null) {
+            for (Map.Entry<Beacon,RangedBeacon> entry : rangedBeacons.entrySet()) {
+                stripeFor(entry.getKey()).restoreBeacon(entry.getKey(), entry.getValue());
+            }
+        }
+        mFinalizedBeacons = new ArrayList<Beacon>();
+        mFinalizedBeaconsView = Collections.unmodifiableList(mFinalizedBeacons);
+    }
+
+    /**
+     * The beacons whose hash codes pick one stripe.  Guarded by itself.
+     */
+    private final class Stripe {
+        // Access order, so looking up a beacon moves it to the end
+        final LinkedHashMap<Beacon,RangedBeacon> rangedBeacons = new LinkedHashMap<Beacon,RangedBeacon>(16, 0.75f, true);
+        // The ranged beacons marked as tracked, which are passed on at the end of the cycle
+        final ArrayList<RangedBeacon> trackedBeacons = new ArrayList<RangedBeacon>();
+
+        /**
+         * @return true if the beacon was not kept already
+         */
+        boolean addBeacon(Beacon beacon, long addedBeaconCount) {
+            RangedBeacon rangedBeacon = rangedBeacons.get(beacon);
+            if (rangedBeacon != null) {
+                if (LogManager.isVerboseLoggingEnabled()) {
+                    LogManager.d(TAG, "adding %s to existing range for: %s", beacon, rangedBeacon);
+                }
+                boolean wasTracked = rangedBeacon.isTracked();
+                rangedBeacon.updateBeacon(beacon);
+                rangedBeacon.lastAddedBeaconCount = addedBeaconCount;
+                if (!wasTracked && rangedBeacon.isTracked()) {
+                    trackedBeacons.add(rangedBeacon);
+                }
+                return false;
+            }
+            else {
+                if (LogManager.isVerboseLoggingEnabled()) {
+                    LogManager.d(TAG, "adding %s to new rangedBeacon", beacon);
+                }
+                rangedBeacon = new RangedBeacon(beacon, mRegion);
+                rangedBeacon.lastAddedBeaconCount = addedBeaconCount;
+                rangedBeacons.put(beacon, rangedBeacon);
+                trackedBeacons.add(rangedBeacon);
+                mSize.incrementAndGet();
+                return true;
+            }
+        }
+
+        RangedBeacon weakestBeacon() {
+            RangedBeacon weakest = null;
+            for (RangedBeacon rangedBeacon : rangedBeacons.values()) {
+                if (weakest == null || rangedBeacon.getBeacon().getRssi() < weakest.getBeacon().getRssi()) {
+                    weakest = rangedBeacon;
+                }
+            }
+            return weakest;
+        }
+
+        /**
+         * @return the stripe's least recently seen beacon other than the given beacon
+         */
+        RangedBeacon leastRecentlySeenBeacon(Beacon excluded) {
+            // Beacons are in access order, so the first is the least recently seen
+            for (RangedBeacon rangedBeacon : rangedBeacons.values()) {
+                if (!rangedBeacon.getBeacon().equals(excluded)) {
+                    return rangedBeacon;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Evicts a ranged beacon if it is still kept and has not been seen since it was chosen.
+         */
+        boolean evict(RangedBeacon evicted, long addedBeaconCount) {
+            // Looking the beacon up moves it to the end, which is where it belongs if it has been
+            // seen since it was chosen
+            if (rangedBeacons.get(evicted.getBeacon()) != evicted
+                    || evicted.lastAddedBeaconCount != addedBeaconCount) {
+                return false;
+            }
+            LogManager.d(TAG, "Evicting beacon from RangeState because too many beacons are tracked: %s",
+                    evicted.getBeacon());
+            rangedBeacons.remove(evicted.getBeacon());
+            trackedBeacons.remove(evicted);
+            mSize.decrementAndGet();
+            mEvictedBeaconCount.incrementAndGet();
+            sTotalEvictedBeaconCount.incrementAndGet();
+            return true;
+        }
+
+        void restoreBeacon(Beacon beacon, RangedBeacon rangedBeacon) {
+            rangedBeacon.lastAddedBeaconCount = mAddedBeaconCount.incrementAndGet();
+            rangedBeacons.put(beacon, rangedBeacon);
+            mSize.incrementAndGet();
+            if (rangedBeacon.isTracked()) {
+                trackedBeacons.add(rangedBeacon);
+            }
+        }
+
+        void finalizeBeacons(ArrayList<Beacon> finalizedBeacons) {
+            int kept = 0;
+            for (int i = 0; i < trackedBeacons.size(); i++) {
+                RangedBeacon rangedBeacon = trackedBeacons.get(i);
+                rangedBeacon.commitMeasurements(); // calculates accuracy
+                if (rangedBeacon.noMeasurementsAvailable()) {
+                    LogManager.d(TAG, "Dumping beacon from RangeState because it has no recent measurements.");
+                    rangedBeacons.remove(rangedBeacon.getBeacon());
+                    mSize.decrementAndGet();
+                    continue;
+                }
+                finalizedBeacons.add(rangedBeacon.getBeacon());
+                // If we still have useful measurements, keep it around but mark it as not
+                // tracked anymore so we don't pass it on as visible unless it is seen again.
+                // If TrackingCache is enabled, allow beacon to not receive
+                // measurements for a certain amount of time
+                if (!sUseTrackingCache || rangedBeacon.isExpired()) {
+                    rangedBeacon.setTracked(false);
+                }
+                else {
+                    trackedBeacons.set(kept++, rangedBeacon);
+                }
+            }
+            trackedBeacons.subList(kept, trackedBeacons.size()).clear();
+            removeBeaconsWithoutMeasurements();
+        }
+
+        /**
+         * Removes the least recently seen beacons that are no longer tracked and have no
+         * measurements left, stopping at the first that still has measurements.  Measurements
+         * expire in the order beacons were seen, so the beacons after it were seen more recently
+         * and still have theirs.
+         */
+        private void removeBeaconsWithoutMeasurements() {
+            Iterator<RangedBeacon> iterator = rangedBeacons.values().iterator();
+            while (iterator.hasNext()) {
+                RangedBeacon rangedBeacon = iterator.next();
+                if (rangedBeacon.isTracked()) {
+                    continue;
+                }
+                if (!rangedBeacon.noMeasurementsAvailable()) {
+                    break;
+                }
+                LogManager.d(TAG, "Dumping beacon from RangeState because it has no recent measurements.");
+                iterator.remove();
+                mSize.decrementAndGet();
+            }
+        }
+    }
+
 }
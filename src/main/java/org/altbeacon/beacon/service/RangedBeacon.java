@@ -4,14 +4,19 @@ import android.os.SystemClock;
 
 import org.altbeacon.beacon.Beacon;
 import org.altbeacon.beacon.BeaconManager;
+import org.altbeacon.beacon.Region;
 import org.altbeacon.beacon.logging.LogManager;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OptionalDataException;
 import java.io.Serializable;
-import java.lang.reflect.Constructor;
 
 public class RangedBeacon implements Serializable {
 
     private static final String TAG = "RangedBeacon";
+    private static final long serialVersionUID = 795133392799964620L;
     public static final long DEFAULT_MAX_TRACKING_AGE = 5000; /* 5 Seconds */
     public static long maxTrackingAge = DEFAULT_MAX_TRACKING_AGE; /* 5 Seconds */
     //kept here for backward compatibility
@@ -21,9 +26,19 @@ public class RangedBeacon implements Serializable {
     protected long lastTrackedTimeMillis = 0;
     Beacon mBeacon;
     protected transient RssiFilter mFilter = null;
+    // Passed to the filter factory, and set again by the range state after it is restored
+    private transient Region mRegion;
+    // The range state's count of added beacons when this beacon was last added, guarded by its
+    // stripe
+    transient long lastAddedBeaconCount;
     private int packetCount = 0;
 
     public RangedBeacon(Beacon beacon) {
+        this(beacon, null);
+    }
+
+    RangedBeacon(Beacon beacon, Region region) {
+        mRegion = region;
         updateBeacon(beacon);
     }
 
@@ -45,6 +60,10 @@ public class RangedBeacon implements Serializable {
         return mBeacon;
     }
 
+    void setRegion(Region region) {
+        mRegion = region;
+    }
+
     // Done at the end of each cycle before data are sent to the client
     public void commitMeasurements() {
          if (!getFilter().noMeasurementsAvailable()) {
@@ -96,13 +115,29 @@ public class RangedBeacon implements Serializable {
         if (mFilter == null) {
             //set RSSI filter
             try {
-            Constructor cons = BeaconManager.getRssiFilterImplClass().getConstructors()[0];
-                mFilter = (RssiFilter)cons.newInstance();
-            } catch (Exception e) {
-                LogManager.e(TAG, "Could not construct RssiFilterImplClass %s", BeaconManager.getRssiFilterImplClass().getName());
+                mFilter = BeaconManager.getRssiFilterFactory().createRssiFilter(mBeacon, mRegion);
+            } catch (RuntimeException e) {
+                LogManager.e(TAG, "Could not construct RSSI filter: %s", e.getMessage());
             }
         }
         return mFilter;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        // Filters that can be saved keep their measurements when scanning restarts
+        out.writeObject(mFilter instanceof Serializable ? mFilter : null);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        try {
+            mFilter = (RssiFilter) in.readObject();
+        }
+        catch (OptionalDataException e) {
+            // Saved by an older library version without its filter
+            mFilter = null;
+        }
+    }
+
 }
@@ -0,0 +1,101 @@
+package org.altbeacon.beacon.service;
+
+import android.support.annotation.NonNull;
+
+import org.altbeacon.beacon.Region;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the regions that may be inside in a heap ordered by when they were last seen, so the
+ * regions whose exit period has passed can be found without looking at every monitored region.
+ *
+ * Each state is scheduled at most once, with the last seen time it had when it was scheduled.
+ * Seeing a beacon again only updates the state, not the schedule, so sightings cost nothing
+ * here.  When an entry's deadline passes the caller checks the state and either marks the region
+ * outside or reschedules it with its newer last seen time.  Since the order by last seen time
+ * does not depend on the exit period, a change of
+ * {@link org.altbeacon.beacon.BeaconManager#setRegionExitPeriod(long)} takes effect on the next
+ * check.
+ *
+ * This class is not thread safe.  It is guarded by its owning {@link MonitoringStatus}.
+ *
+ * This is an internal utility class and should not be called directly by library users.
+ *
+ * @hide
+ */
+class RegionExitSchedule {
+    private final PriorityQueue<Entry> mDeadlines = new PriorityQueue<>(16, new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return lhs.lastSeenTime < rhs.lastSeenTime ? -1 : (lhs.lastSeenTime == rhs.lastSeenTime ? 0 : 1);
+        }
+    });
+    private final Map<RegionMonitoringState, Entry> mScheduled = new IdentityHashMap<>();
+
+    static final class Entry {
+        final Region region;
+        final RegionMonitoringState state;
+        final long lastSeenTime;
+
+        Entry(Region region, RegionMonitoringState state) {
+            this.region = region;
+            this.state = state;
+            this.lastSeenTime = state.getLastSeenTime();
+        }
+    }
+
+    /**
+     * Schedules an exit check for the region based on its current last seen time, unless one is
+     * already scheduled.
+     */
+    void schedule(@NonNull Region region, @NonNull RegionMonitoringState state) {
+        if (!mScheduled.containsKey(state)) {
+            Entry entry = new Entry(region, state);
+            mScheduled.put(state, entry);
+            mDeadlines.add(entry);
+        }
+    }
+
+    /**
+     * Removes and returns the entries whose region was last seen, as of when it was scheduled,
+     * more than the exit period ago.
+     */
+    @NonNull
+    List<Entry> takeExpired(long now, long exitPeriod) {
+        List<Entry> expired = new ArrayList<>();
+        while (!mDeadlines.isEmpty() && now - mDeadlines.peek().lastSeenTime > exitPeriod) {
+            Entry entry = mDeadlines.poll();
+            mScheduled.remove(entry.state);
+            expired.add(entry);
+        }
+        return expired;
+    }
+
+    /**
+     * @return true if any scheduled state is inside.  Only scheduled states are looked at, since
+     * every state that becomes inside is scheduled.
+     */
+    boolean isAnyInside() {
+        for (RegionMonitoringState state : mScheduled.keySet()) {
+            if (state.getInside()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int size() {
+        return mDeadlines.size();
+    }
+
+    void clear() {
+        mDeadlines.clear();
+        mScheduled.clear();
+    }
+}
@@ -29,17 +29,29 @@ import org.altbeacon.beacon.BeaconManager;
 import org.altbeacon.beacon.logging.LogManager;
 
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 public class RegionMonitoringState implements Serializable {
     private static final String TAG = RegionMonitoringState.class.getSimpleName();
-    private boolean inside = false;
-    private long lastSeenTime = 0l;
+    private static final long serialVersionUID = -4924196286457370610L;
+    // Updated without the monitoring status lock by markSeenIfInside(), so that the lanes that
+    // process scan packets do not wait for each other while the region stays inside
+    private static final AtomicLongFieldUpdater<RegionMonitoringState> LAST_SEEN_TIME =
+            AtomicLongFieldUpdater.newUpdater(RegionMonitoringState.class, "lastSeenTime");
+    private volatile boolean inside = false;
+    private volatile long lastSeenTime = 0l;
     private final Callback callback;
 
     public RegionMonitoringState(Callback c) {
         callback = c;
     }
 
+    RegionMonitoringState(Callback c, boolean inside, long lastSeenTime) {
+        callback = c;
+        this.inside = inside;
+        this.lastSeenTime = lastSeenTime;
+    }
+
     public Callback getCallback() {
         return callback;
     }
@@ -54,6 +66,27 @@ public class RegionMonitoringState implements Serializable {
         return false;
     }
 
+    /**
+     * Updates the last seen time if the region is already inside.  This may be called without
+     * holding the monitoring status lock.
+     *
+     * @return true if the region is inside and its last seen time was updated, or false if the
+     * region must be marked inside with {@link #markInside()} while holding the lock
+     */
+    boolean markSeenIfInside() {
+        while (true) {
+            long seenTime = lastSeenTime;
+            if (seenTime <= 0 || !inside) {
+                return false;
+            }
+            // Marking the region outside clears the last seen time, so the update fails if the
+            // region exits after the checks above, and is retried if another lane updated it
+            if (LAST_SEEN_TIME.compareAndSet(this, seenTime, SystemClock.elapsedRealtime())) {
+                return true;
+            }
+        }
+    }
+
     public void markOutside() {
         inside = false;
         lastSeenTime = 0l;
@@ -61,10 +94,12 @@ public class RegionMonitoringState implements Serializable {
 
     public boolean markOutsideIfExpired() {
         if (inside) {
-            if (lastSeenTime > 0 && SystemClock.elapsedRealtime() - lastSeenTime > BeaconManager.getRegionExitPeriod()) {
+            long seenTime = lastSeenTime;
+            if (seenTime > 0 && SystemClock.elapsedRealtime() - seenTime > BeaconManager.getRegionExitPeriod()
+                    && LAST_SEEN_TIME.compareAndSet(this, seenTime, 0l)) {
                 LogManager.d(TAG, "We are newly outside the region because the lastSeenTime of %s "
                                 + "was %s seconds ago, and that is over the expiration duration "
-                                + "of %s", lastSeenTime, SystemClock.elapsedRealtime() - lastSeenTime,
+                                + "of %s", seenTime, SystemClock.elapsedRealtime() - seenTime,
                         BeaconManager.getRegionExitPeriod());
                 markOutside();
                 return true;
@@ -76,4 +111,13 @@ public class RegionMonitoringState implements Serializable {
     public boolean getInside() {
         return inside;
     }
+
+    long getLastSeenTime() {
+        return lastSeenTime;
+    }
+
+    void setState(boolean inside, long lastSeenTime) {
+        this.inside = inside;
+        this.lastSeenTime = lastSeenTime;
+    }
 }
@@ -0,0 +1,33 @@
+package org.altbeacon.beacon.service;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.Region;
+
+/**
+ * Creates the {@link RssiFilter} used for each newly ranged beacon.  Set one with
+ * {@link org.altbeacon.beacon.BeaconManager#setRssiFilterFactory(RssiFilterFactory)} to configure
+ * filters without the reflection used for
+ * {@link org.altbeacon.beacon.BeaconManager#setRssiFilterImplClass(Class)}.
+ *
+ * The factory is given the first packet of the beacon and the region it is ranged in, so it may
+ * choose a different filter for beacons of some regions or layouts, for example by
+ * {@link Region#getUniqueId()} or {@link Beacon#getParserIdentifier()}.  A beacon seen in several
+ * ranged regions gets a filter for each.
+ *
+ * Filters that implement {@link java.io.Serializable} are saved with the beacons being ranged,
+ * so they keep their measurements when scanning is restarted in a new process.
+ */
+public interface RssiFilterFactory {
+
+    /**
+     * @param beacon the first packet seen from the beacon whose RSSI will be filtered
+     * @param region the ranged region the filter is for, or null if the beacon is not being
+     *               ranged in a region
+     */
+    @NonNull
+    public RssiFilter createRssiFilter(@NonNull Beacon beacon, @Nullable Region region);
+
+}
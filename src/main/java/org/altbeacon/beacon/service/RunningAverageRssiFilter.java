@@ -1,48 +1,71 @@
 package org.altbeacon.beacon.service;
 
 import android.os.SystemClock;
-import android.support.annotation.RestrictTo;
-import android.support.annotation.RestrictTo.Scope;
 
 import org.altbeacon.beacon.logging.LogManager;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
 
 /**
  * Calculate a RSSI value on base of an arbitrary list of measured RSSI values
  * The list is clipped by a certain length at start and end and the average
  * is calculate by simple arithmetic average
+ *
+ * Measurements are kept in a ring buffer in the order they were added, so expired measurements
+ * are dropped from its head, and counted in a histogram by RSSI value, so the clipped average is
+ * found by walking the histogram rather than sorting.  Neither allocates once the buffer has
+ * grown to the number of measurements a beacon gets within the expiration period.  Only the
+ * unexpired measurements are saved when the filter is serialized.
  */
-public class RunningAverageRssiFilter implements RssiFilter {
+public class RunningAverageRssiFilter implements RssiFilter, Serializable {
 
     private static final String TAG = "RunningAverageRssiFilter";
+    private static final long serialVersionUID = 1L;
     public static final long DEFAULT_SAMPLE_EXPIRATION_MILLISECONDS = 20000; /* 20 seconds */
     private static long sampleExpirationMilliseconds = DEFAULT_SAMPLE_EXPIRATION_MILLISECONDS;
-    private ArrayList<Measurement> mMeasurements = new ArrayList<Measurement>();
+    private static final int INITIAL_CAPACITY = 16;
+    // The histogram covers every RSSI a Bluetooth controller reports, which fits in a signed byte
+    private static final int MIN_HISTOGRAM_RSSI = Byte.MIN_VALUE;
+    private static final int HISTOGRAM_SIZE = 256;
+
+    private transient int[] mRssis = new int[INITIAL_CAPACITY];
+    private transient long[] mTimestamps = new long[INITIAL_CAPACITY];
+    private transient int mHead = 0;
+    private transient int mCount = 0;
+    private transient int[] mHistogram = new int[HISTOGRAM_SIZE];
+    // Measurements outside the histogram's range, which make the average fall back to sorting
+    private transient int mOutOfHistogramCount = 0;
 
     @Override
-    public void addMeasurement(Integer rssi) {
-        Measurement measurement = new Measurement();
-        measurement.rssi = rssi;
-        measurement.timestamp = SystemClock.elapsedRealtime();
-        mMeasurements.add(measurement);
+    public synchronized void addMeasurement(Integer rssi) {
+        if (mCount == mRssis.length) {
+            grow();
+        }
+        int slot = (mHead + mCount) % mRssis.length;
+        mRssis[slot] = rssi;
+        mTimestamps[slot] = SystemClock.elapsedRealtime();
+        mCount++;
+        addToHistogram(rssi, 1);
     }
 
     @Override
-    public boolean noMeasurementsAvailable() {
-        return mMeasurements.size() == 0;
+    public synchronized boolean noMeasurementsAvailable() {
+        refreshMeasurements();
+        return mCount == 0;
     }
 
 
     @Override
-    public int getMeasurementCount() { return mMeasurements.size(); }
+    public synchronized int getMeasurementCount() { return mCount; }
 
     @Override
-    public double calculateRssi() {
+    public synchronized double calculateRssi() {
         refreshMeasurements();
-        int size = mMeasurements.size();
+        int size = mCount;
         int startIndex = 0;
         int endIndex = size -1;
         if (size > 2) {
@@ -50,10 +73,8 @@ public class RunningAverageRssiFilter implements RssiFilter {
             endIndex = size-size/10-2;
         }
 
-        double sum = 0;
-        for (int i = startIndex; i <= endIndex; i++) {
-            sum += mMeasurements.get(i).rssi;
-        }
+        double sum = mOutOfHistogramCount == 0 ? sumFromHistogram(startIndex, endIndex)
+                : sumBySorting(startIndex, endIndex);
         double runningAverage = sum/(endIndex-startIndex+1);
 
         LogManager.d(TAG, "Running average mRssi based on %s measurements: %s",
@@ -61,25 +82,109 @@ public class RunningAverageRssiFilter implements RssiFilter {
         return runningAverage;
     }
 
-    private synchronized void refreshMeasurements() {
-        ArrayList<Measurement> newMeasurements = new ArrayList<Measurement>();
-        Iterator<Measurement> iterator = mMeasurements.iterator();
-        while (iterator.hasNext()) {
-            Measurement measurement = iterator.next();
-            if (SystemClock.elapsedRealtime() - measurement.timestamp < sampleExpirationMilliseconds ) {
-                newMeasurements.add(measurement);
+    private void refreshMeasurements() {
+        long now = SystemClock.elapsedRealtime();
+        // Measurements are added in time order, so the expired ones are at the head
+        while (mCount > 0 && now - mTimestamps[mHead] >= sampleExpirationMilliseconds) {
+            addToHistogram(mRssis[mHead], -1);
+            mHead = (mHead + 1) % mRssis.length;
+            mCount--;
+        }
+    }
+
+    /**
+     * @return the sum of the measurements from startIndex to endIndex inclusive, in order of RSSI
+     */
+    private double sumFromHistogram(int startIndex, int endIndex) {
+        double sum = 0;
+        int position = 0;
+        for (int bucket = 0; bucket < HISTOGRAM_SIZE && position <= endIndex; bucket++) {
+            int count = mHistogram[bucket];
+            if (count == 0) {
+                continue;
+            }
+            int first = Math.max(position, startIndex);
+            int last = Math.min(position + count - 1, endIndex);
+            if (last >= first) {
+                sum += (double) (bucket + MIN_HISTOGRAM_RSSI) * (last - first + 1);
             }
+            position += count;
+        }
+        return sum;
+    }
+
+    private double sumBySorting(int startIndex, int endIndex) {
+        int[] sorted = new int[mCount];
+        for (int i = 0; i < mCount; i++) {
+            sorted[i] = mRssis[(mHead + i) % mRssis.length];
+        }
+        Arrays.sort(sorted);
+        double sum = 0;
+        for (int i = startIndex; i <= endIndex; i++) {
+            sum += sorted[i];
+        }
+        return sum;
+    }
+
+    private void addToHistogram(int rssi, int delta) {
+        int bucket = rssi - MIN_HISTOGRAM_RSSI;
+        if (bucket >= 0 && bucket < HISTOGRAM_SIZE) {
+            mHistogram[bucket] += delta;
+        }
+        else {
+            mOutOfHistogramCount += delta;
+        }
+    }
+
+    private void grow() {
+        int capacity = mRssis.length * 2;
+        int[] rssis = new int[capacity];
+        long[] timestamps = new long[capacity];
+        for (int i = 0; i < mCount; i++) {
+            int slot = (mHead + i) % mRssis.length;
+            rssis[i] = mRssis[slot];
+            timestamps[i] = mTimestamps[slot];
         }
-        mMeasurements = newMeasurements;
-        Collections.sort(mMeasurements);
+        mRssis = rssis;
+        mTimestamps = timestamps;
+        mHead = 0;
     }
 
-    private class Measurement implements Comparable<Measurement> {
-        Integer rssi;
-        long timestamp;
-        @Override
-        public int compareTo(Measurement arg0) {
-            return rssi.compareTo(arg0.rssi);
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        refreshMeasurements();
+        out.defaultWriteObject();
+        out.writeInt(mCount);
+        for (int i = 0; i < mCount; i++) {
+            int slot = (mHead + i) % mRssis.length;
+            out.writeInt(mRssis[slot]);
+            out.writeLong(mTimestamps[slot]);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid measurement count " + count);
+        }
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < count) {
+            capacity *= 2;
+        }
+        mRssis = new int[capacity];
+        mTimestamps = new long[capacity];
+        mHistogram = new int[HISTOGRAM_SIZE];
+        long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < count; i++) {
+            int rssi = in.readInt();
+            long timestamp = in.readLong();
+            // A time after now was recorded before the device restarted, and can't be aged
+            if (timestamp <= now) {
+                mRssis[mCount] = rssi;
+                mTimestamps[mCount] = timestamp;
+                mCount++;
+                addToHistogram(rssi, 1);
+            }
         }
     }
 
@@ -87,7 +192,10 @@ public class RunningAverageRssiFilter implements RssiFilter {
         sampleExpirationMilliseconds = newSampleExpirationMilliseconds;
     }
 
-    @RestrictTo(Scope.TESTS)
+    /**
+     * @return how long measurements are kept, which is also how long {@link KalmanRssiFilter} and
+     * {@link OneEuroRssiFilter} keep an estimate without new measurements
+     */
     static long getSampleExpirationMilliseconds() {
         return sampleExpirationMilliseconds;
     }
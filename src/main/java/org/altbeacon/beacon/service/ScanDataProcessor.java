@@ -9,19 +9,14 @@ import android.os.Build;
 
 import org.altbeacon.beacon.Beacon;
 import org.altbeacon.beacon.BeaconManager;
-import org.altbeacon.beacon.BeaconParser;
 import org.altbeacon.beacon.Region;
 import org.altbeacon.beacon.logging.LogManager;
 import org.altbeacon.beacon.service.scanner.NonBeaconLeScanCallback;
 
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Created by dyoung on 3/24/17.
@@ -32,8 +27,9 @@ public class ScanDataProcessor {
     private static final String TAG = ScanDataProcessor.class.getSimpleName();
     private Service mService;
     private Map<Region, RangeState> mRangedRegionState = new HashMap<Region, RangeState>();
+    private ScanState mScanState;
     private MonitoringStatus mMonitoringStatus;
-    private Set<BeaconParser> mBeaconParsers  = new HashSet<BeaconParser>();
+    private BeaconParserRegistry mBeaconParserRegistry;
     private ExtraDataBeaconTracker mExtraDataBeaconTracker;
     // TODO: implement this
     private NonBeaconLeScanCallback mNonBeaconLeScanCallback;
@@ -44,11 +40,12 @@ public class ScanDataProcessor {
 
     public ScanDataProcessor(Service scanService, ScanState scanState) {
         mService = scanService;
+        mScanState = scanState;
         mMonitoringStatus = scanState.getMonitoringStatus();
         mRangedRegionState = scanState.getRangedRegionState();
         mMonitoringStatus = scanState.getMonitoringStatus();
         mExtraDataBeaconTracker = scanState.getExtraBeaconDataTracker();
-        mBeaconParsers = scanState.getBeaconParsers();
+        mBeaconParserRegistry = new BeaconParserRegistry(scanState.getBeaconParsers());
     }
 
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
@@ -58,16 +55,8 @@ public class ScanDataProcessor {
     }
 
     public void process(ScanData scanData) {
-        Beacon beacon = null;
-
-        for (BeaconParser parser : mBeaconParsers) {
-            beacon = parser.fromScanData(scanData.scanRecord,
-                    scanData.rssi, scanData.device);
-
-            if (beacon != null) {
-                break;
-            }
-        }
+        Beacon beacon = mBeaconParserRegistry.fromScanData(scanData.scanRecord,
+                scanData.rssi, scanData.device);
         if (beacon != null) {
             mDetectionTracker.recordDetection();
             trackedBeaconsPacketCount++;
@@ -115,30 +104,19 @@ public class ScanDataProcessor {
             Iterator<Region> matchedRegionIterator;
             LogManager.d(TAG, "looking for ranging region matches for this beacon out of "+mRangedRegionState.keySet().size()+" regions.");
             synchronized (mRangedRegionState) {
-                matchedRegions = matchingRegions(beacon, mRangedRegionState.keySet());
+                matchedRegions = mScanState.getRangedRegionIndex().matchingRegions(beacon);
                 matchedRegionIterator = matchedRegions.iterator();
                 while (matchedRegionIterator.hasNext()) {
                     Region region = matchedRegionIterator.next();
                     LogManager.d(TAG, "matches ranging region: %s", region);
                     RangeState rangeState = mRangedRegionState.get(region);
                     if (rangeState != null) {
-                        rangeState.addBeacon(beacon);
+                        rangeState.addBeacon(beacon, BeaconManager.getMaxTrackedBeacons(region));
                     }
                 }
             }
         }
     }
-    private List<Region> matchingRegions(Beacon beacon, Collection<Region> regions) {
-        List<Region> matched = new ArrayList<Region>();
-        for (Region region : regions) {
-            if (region.matchesBeacon(beacon)) {
-                matched.add(region);
-            } else {
-                LogManager.d(TAG, "This region (%s) does not match beacon: %s", region, beacon);
-            }
-        }
-        return matched;
-    }
 
     public void onCycleEnd() {
         mMonitoringStatus.updateNewlyOutside();
@@ -0,0 +1,133 @@
+package org.altbeacon.beacon.service;
+
+import android.content.Context;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.RestrictTo;
+import android.support.annotation.RestrictTo.Scope;
+
+import org.altbeacon.beacon.BeaconManager;
+import org.altbeacon.beacon.distance.DistanceCalculator;
+import org.altbeacon.beacon.distance.ModelSpecificDistanceCalculator;
+import org.altbeacon.beacon.logging.LogManager;
+
+/**
+ * Keeps the {@link ScanHelper} used by {@link ScanJob} alive for the life of the process, so its
+ * packet processing threads, scanner thread, parser index and distance model are reused by every
+ * scan job rather than being built again each time a job starts.
+ *
+ * Scan jobs attach when they start and detach when they stop.  When the last job detaches the
+ * scanner is stopped, and if there are no longer any regions to range or monitor the threads are
+ * stopped too and the helper is discarded, to be created again by the next job that attaches.
+ *
+ * This class must only be used from the main thread.
+ *
+ * This is an internal utility class and should not be called directly by library users.
+ *
+ * @hide
+ */
+class ScanEngine {
+    private static final String TAG = ScanEngine.class.getSimpleName();
+    private static final Object SINGLETON_LOCK = new Object();
+    @Nullable
+    private static volatile ScanEngine sInstance = null;
+    @Nullable
+    private ScanHelper mScanHelper;
+    @Nullable
+    private DistanceCalculator mDistanceCalculator;
+    private int mAttachedCount = 0;
+
+    @NonNull
+    static ScanEngine getInstance() {
+        ScanEngine instance = sInstance;
+        if (instance == null) {
+            synchronized (SINGLETON_LOCK) {
+                instance = sInstance;
+                if (instance == null) {
+                    sInstance = instance = new ScanEngine();
+                }
+            }
+        }
+        return instance;
+    }
+
+    @RestrictTo(Scope.TESTS)
+    ScanEngine() {
+    }
+
+    /**
+     * Attaches a scan job, creating the helper if no job has used it since it was last torn down.
+     *
+     * @return the helper shared by all attached scan jobs
+     */
+    @MainThread
+    @NonNull
+    ScanHelper attach(@NonNull Context context) {
+        if (mScanHelper == null) {
+            LogManager.d(TAG, "Creating scan helper");
+            mScanHelper = new ScanHelper(context.getApplicationContext());
+        }
+        mAttachedCount++;
+        return mScanHelper;
+    }
+
+    /**
+     * Detaches a scan job.  Once no jobs are attached, scanning is stopped, and if it is not
+     * expected to be needed again the helper's threads are stopped and the helper is discarded.
+     *
+     * @param scanningNeeded true if there are regions that later scan jobs will scan for
+     */
+    @MainThread
+    void detach(boolean scanningNeeded) {
+        if (mAttachedCount == 0) {
+            LogManager.w(TAG, "Detach called with no scan jobs attached");
+            return;
+        }
+        mAttachedCount--;
+        if (mAttachedCount > 0 || mScanHelper == null) {
+            return;
+        }
+        if (mScanHelper.getCycledScanner() != null) {
+            mScanHelper.getCycledScanner().stop();
+        }
+        if (!scanningNeeded) {
+            tearDown();
+        }
+    }
+
+    /**
+     * @return the distance calculator, loading the distance model the first time it is needed
+     * after the engine was created or torn down
+     */
+    @MainThread
+    @NonNull
+    DistanceCalculator getDistanceCalculator(@NonNull Context context) {
+        if (mDistanceCalculator == null) {
+            mDistanceCalculator = new ModelSpecificDistanceCalculator(context.getApplicationContext(),
+                    BeaconManager.getDistanceModelUpdateUrl());
+        }
+        return mDistanceCalculator;
+    }
+
+    @MainThread
+    private void tearDown() {
+        LogManager.d(TAG, "No regions left to scan for.  Stopping scan threads");
+        if (mScanHelper.getCycledScanner() != null) {
+            mScanHelper.getCycledScanner().destroy();
+        }
+        mScanHelper.terminateThreads();
+        mScanHelper = null;
+        mDistanceCalculator = null;
+    }
+
+    @RestrictTo(Scope.TESTS)
+    int getAttachedCount() {
+        return mAttachedCount;
+    }
+
+    @RestrictTo(Scope.TESTS)
+    boolean hasScanHelper() {
+        return mScanHelper != null;
+    }
+}
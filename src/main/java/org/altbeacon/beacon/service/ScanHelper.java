@@ -12,7 +12,6 @@ import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.support.annotation.MainThread;
 import android.support.annotation.NonNull;
@@ -25,6 +24,7 @@ import org.altbeacon.beacon.Beacon;
 import org.altbeacon.beacon.BeaconManager;
 import org.altbeacon.beacon.BeaconParser;
 import org.altbeacon.beacon.Region;
+import org.altbeacon.beacon.RegionIndex;
 import org.altbeacon.beacon.logging.LogManager;
 import org.altbeacon.beacon.service.scanner.CycledLeScanCallback;
 import org.altbeacon.beacon.service.scanner.CycledLeScanner;
@@ -35,16 +35,13 @@ import org.altbeacon.beacon.startup.StartupBroadcastReceiver;
 import org.altbeacon.bluetooth.BluetoothCrashResolver;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Created by dyoung on 6/16/17.
@@ -59,24 +56,36 @@ import java.util.concurrent.RejectedExecutionException;
 
 class ScanHelper {
     private static final String TAG = ScanHelper.class.getSimpleName();
-    private ExecutorService mExecutor;
+    private final ScanPacketPipeline mScanPacketPipeline;
+    private long mReportedDroppedPacketCount = 0;
     private BeaconManager mBeaconManager;
     private CycledLeScanner mCycledScanner;
     private MonitoringStatus mMonitoringStatus;
     private final Map<Region, RangeState> mRangedRegionState = new HashMap<>();
+    // Rebuilt on demand after the ranged regions change, and read by the lane workers without
+    // taking the lock on mRangedRegionState
+    private volatile RangedRegions mRangedRegions;
     private DistinctPacketDetector mDistinctPacketDetector = new DistinctPacketDetector();
+    private final DetectionTracker mDetectionTracker = DetectionTracker.getInstance();
 
     @NonNull
     private ExtraDataBeaconTracker mExtraDataBeaconTracker = new ExtraDataBeaconTracker();
 
-    private Set<BeaconParser> mBeaconParsers  = new HashSet<>();
+    private BeaconParserRegistry mBeaconParserRegistry = new BeaconParserRegistry(new HashSet<BeaconParser>());
     private List<Beacon> mSimulatedScanData = null;
     private Context mContext;
 
     ScanHelper(Context context) {
         mContext = context;
         mBeaconManager = BeaconManager.getInstanceForApplication(context);
-        mExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() + 1);
+        mScanPacketPipeline = new ScanPacketPipeline(BeaconManager.getScanPacketQueueCapacity(),
+                Runtime.getRuntime().availableProcessors(), BeaconManager.getScanPacketOverflowPolicy(),
+                new ScanPacketPipeline.PacketHandler() {
+                    @Override
+                    public void onPacket(int lane, BluetoothDevice device, int rssi, byte[] scanRecord) {
+                        processScanData(device, rssi, scanRecord);
+                    }
+                });
     }
 
     CycledLeScanner getCycledScanner() {
@@ -91,14 +100,45 @@ class ScanHelper {
         mMonitoringStatus = monitoringStatus;
     }
 
+    /**
+     * @return the ranged regions and their range states, which must be changed through
+     * {@link #startRanging(Region, RangeState)} and {@link #stopRanging(Region)}
+     */
     Map<Region, RangeState> getRangedRegionState() {
-        return mRangedRegionState;
+        return Collections.unmodifiableMap(mRangedRegionState);
     }
 
     void setRangedRegionState(Map<Region, RangeState> rangedRegionState) {
         synchronized (mRangedRegionState) {
             mRangedRegionState.clear();
             mRangedRegionState.putAll(rangedRegionState);
+            mRangedRegions = null;
+        }
+    }
+
+    /**
+     * Ranges a region, replacing any range state it already has.
+     *
+     * @return the number of regions ranged
+     */
+    int startRanging(Region region, RangeState rangeState) {
+        synchronized (mRangedRegionState) {
+            // Removed first, so the new region replaces an equal one with other identifiers
+            mRangedRegionState.remove(region);
+            mRangedRegionState.put(region, rangeState);
+            mRangedRegions = null;
+            return mRangedRegionState.size();
+        }
+    }
+
+    /**
+     * @return the number of regions still ranged
+     */
+    int stopRanging(Region region) {
+        synchronized (mRangedRegionState) {
+            mRangedRegionState.remove(region);
+            mRangedRegions = null;
+            return mRangedRegionState.size();
         }
     }
 
@@ -107,7 +147,10 @@ class ScanHelper {
     }
 
     void setBeaconParsers(Set<BeaconParser> beaconParsers) {
-        mBeaconParsers = beaconParsers;
+        // Keep the existing index when a reused helper is given the same parsers again
+        if (!mBeaconParserRegistry.hasParsers(beaconParsers)) {
+            mBeaconParserRegistry = new BeaconParserRegistry(beaconParsers);
+        }
     }
 
     void setSimulatedScanData(List<Beacon> simulatedScanData) {
@@ -121,21 +164,26 @@ class ScanHelper {
                 mCycledLeScanCallback, crashResolver);
     }
 
-    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     void processScanResult(BluetoothDevice device, int rssi, byte[] scanRecord) {
-        NonBeaconLeScanCallback nonBeaconLeScanCallback = mBeaconManager.getNonBeaconLeScanCallback();
+        mScanPacketPipeline.offer(device, rssi, scanRecord);
+    }
 
-        try {
-            new ScanHelper.ScanProcessor(nonBeaconLeScanCallback).executeOnExecutor(mExecutor,
-                    new ScanHelper.ScanData(device, rssi, scanRecord));
-        } catch (RejectedExecutionException e) {
+    /**
+     * Stops the threads that process scan results once any results already received have been
+     * processed.  Scan results received after this are ignored.
+     */
+    void terminateThreads() {
+        mScanPacketPipeline.shutdown();
+    }
 
-            LogManager.w(TAG, "Ignoring scan result because we cannot keep up.");
-        }
+    @RestrictTo(Scope.TESTS)
+    ScanPacketPipeline getScanPacketPipeline() {
+        return mScanPacketPipeline;
     }
 
     void reloadParsers() {
-        HashSet<BeaconParser> newBeaconParsers = new HashSet<>();
+        // Keep registration order so the same parser always wins for ambiguous packets
+        Set<BeaconParser> newBeaconParsers = new LinkedHashSet<>();
         //flatMap all beacon parsers
         boolean matchBeaconsByServiceUUID = true;
         newBeaconParsers.addAll(mBeaconManager.getBeaconParsers());
@@ -145,7 +193,7 @@ class ScanHelper {
                 newBeaconParsers.addAll(beaconParser.getExtraDataParsers());
             }
         }
-        mBeaconParsers = newBeaconParsers;
+        mBeaconParserRegistry = new BeaconParserRegistry(newBeaconParsers);
         //initialize the extra data beacon tracker
         mExtraDataBeaconTracker = new ExtraDataBeaconTracker(matchBeaconsByServiceUUID);
     }
@@ -218,44 +266,13 @@ class ScanHelper {
         @MainThread
         @SuppressLint("WrongThread")
         public void onCycleEnd() {
+            reportDroppedPackets();
             mDistinctPacketDetector.clearDetections();
+            // Simulated beacons are processed before the cycle is finalized, so they are ranged in
+            // the cycle they are seen, like beacons seen in the air
+            processSimulatedBeacons();
             mMonitoringStatus.updateNewlyOutside();
             processRangeData();
-            // If we want to use simulated scanning data, do it here.  This is used for testing in an emulator
-            if (mSimulatedScanData != null) {
-                // if simulatedScanData is provided, it will be seen every scan cycle.  *in addition* to anything actually seen in the air
-                // it will not be used if we are not in debug mode
-                LogManager.w(TAG, "Simulated scan data is deprecated and will be removed in a future release. Please use the new BeaconSimulator interface instead.");
-
-                if (0 != (mContext.getApplicationInfo().flags &= ApplicationInfo.FLAG_DEBUGGABLE)) {
-                    for (Beacon beacon : mSimulatedScanData) {
-                        // This is an expensive call and we do not want to block the main thread.
-                        // But here we are in debug/test mode so we allow it on the main thread.
-                        //noinspection WrongThread
-                        processBeaconFromScan(beacon);
-                    }
-                } else {
-                    LogManager.w(TAG, "Simulated scan data provided, but ignored because we are not running in debug mode.  Please remove simulated scan data for production.");
-                }
-            }
-            if (BeaconManager.getBeaconSimulator() != null) {
-                // if simulatedScanData is provided, it will be seen every scan cycle.  *in addition* to anything actually seen in the air
-                // it will not be used if we are not in debug mode
-                if (BeaconManager.getBeaconSimulator().getBeacons() != null) {
-                    if (0 != (mContext.getApplicationInfo().flags &= ApplicationInfo.FLAG_DEBUGGABLE)) {
-                        for (Beacon beacon : BeaconManager.getBeaconSimulator().getBeacons()) {
-                            // This is an expensive call and we do not want to block the main thread.
-                            // But here we are in debug/test mode so we allow it on the main thread.
-                            //noinspection WrongThread
-                            processBeaconFromScan(beacon);
-                        }
-                    } else {
-                        LogManager.w(TAG, "Beacon simulations provided, but ignored because we are not running in debug mode.  Please remove beacon simulations for production.");
-                    }
-                } else {
-                    LogManager.w(TAG, "getBeacons is returning null. No simulated beacons to report.");
-                }
-            }
         }
 
         @Override
@@ -270,6 +287,56 @@ class ScanHelper {
         return mCycledLeScanCallback;
     }
 
+    private void reportDroppedPackets() {
+        long droppedPacketCount = mScanPacketPipeline.getDroppedPacketCount();
+        if (droppedPacketCount != mReportedDroppedPacketCount) {
+            LogManager.w(TAG, "Ignored %d scan results because we cannot keep up.  Queue depth: %d, max: %d",
+                    droppedPacketCount - mReportedDroppedPacketCount,
+                    mScanPacketPipeline.getQueueDepth(), mScanPacketPipeline.getMaxQueueDepth());
+            mReportedDroppedPacketCount = droppedPacketCount;
+        }
+    }
+
+    @MainThread
+    @SuppressLint("WrongThread")
+    private void processSimulatedBeacons() {
+        // If we want to use simulated scanning data, do it here.  This is used for testing in an emulator
+        if (mSimulatedScanData != null) {
+            // if simulatedScanData is provided, it will be seen every scan cycle.  *in addition* to anything actually seen in the air
+            // it will not be used if we are not in debug mode
+            LogManager.w(TAG, "Simulated scan data is deprecated and will be removed in a future release. Please use the new BeaconSimulator interface instead.");
+
+            if (0 != (mContext.getApplicationInfo().flags &= ApplicationInfo.FLAG_DEBUGGABLE)) {
+                for (Beacon beacon : mSimulatedScanData) {
+                    // This is an expensive call and we do not want to block the main thread.
+                    // But here we are in debug/test mode so we allow it on the main thread.
+                    //noinspection WrongThread
+                    processBeaconFromScan(beacon);
+                }
+            } else {
+                LogManager.w(TAG, "Simulated scan data provided, but ignored because we are not running in debug mode.  Please remove simulated scan data for production.");
+            }
+        }
+        if (BeaconManager.getBeaconSimulator() != null) {
+            // if simulatedScanData is provided, it will be seen every scan cycle.  *in addition* to anything actually seen in the air
+            // it will not be used if we are not in debug mode
+            if (BeaconManager.getBeaconSimulator().getBeacons() != null) {
+                if (0 != (mContext.getApplicationInfo().flags &= ApplicationInfo.FLAG_DEBUGGABLE)) {
+                    for (Beacon beacon : BeaconManager.getBeaconSimulator().getBeacons()) {
+                        // This is an expensive call and we do not want to block the main thread.
+                        // But here we are in debug/test mode so we allow it on the main thread.
+                        //noinspection WrongThread
+                        processBeaconFromScan(beacon);
+                    }
+                } else {
+                    LogManager.w(TAG, "Beacon simulations provided, but ignored because we are not running in debug mode.  Please remove beacon simulations for production.");
+                }
+            } else {
+                LogManager.w(TAG, "getBeacons is returning null. No simulated beacons to report.");
+            }
+        }
+    }
+
     private void processRangeData() {
         synchronized (mRangedRegionState) {
             for (Region region : mRangedRegionState.keySet()) {
@@ -281,7 +348,7 @@ class ScanHelper {
     }
 
     /**
-     * Helper for processing BLE beacons. This has been extracted from {@link ScanHelper.ScanProcessor} to
+     * Helper for processing BLE beacons. This has been extracted from {@link #processScanData} to
      * support simulated scan data for test and debug environments.
      * <p>
      * Processing beacons is a frequent and expensive operation. It should not be run on the main
@@ -306,113 +373,71 @@ class ScanHelper {
                         "not processing detections for GATT extra data beacon");
             }
         } else {
-
             mMonitoringStatus.updateNewlyInsideInRegionsContaining(beacon);
 
-            List<Region> matchedRegions;
-            Iterator<Region> matchedRegionIterator;
             LogManager.d(TAG, "looking for ranging region matches for this beacon");
-            synchronized (mRangedRegionState) {
-                matchedRegions = matchingRegions(beacon, mRangedRegionState.keySet());
-                matchedRegionIterator = matchedRegions.iterator();
-                while (matchedRegionIterator.hasNext()) {
-                    Region region = matchedRegionIterator.next();
-                    LogManager.d(TAG, "matches ranging region: %s", region);
-                    RangeState rangeState = mRangedRegionState.get(region);
-                    if (rangeState != null) {
-                        rangeState.addBeacon(beacon);
-                    }
+            // Range states lock one stripe at a time, so lanes add beacons without a shared
+            // lock.  A beacon matched just as its region stops being ranged is added to a range
+            // state that is no longer used, which is harmless.
+            RangedRegions rangedRegions = getRangedRegions();
+            for (Region region : rangedRegions.index.matchingRegions(beacon)) {
+                LogManager.d(TAG, "matches ranging region: %s", region);
+                RangeState rangeState = rangedRegions.rangeStates.get(region);
+                if (rangeState != null) {
+                    rangeState.addBeacon(beacon, BeaconManager.getMaxTrackedBeacons(region));
                 }
             }
         }
     }
 
-    /**
-     * <strong>This class is not thread safe.</strong>
-     */
-    private class ScanData {
-        ScanData(@NonNull BluetoothDevice device, int rssi, @NonNull byte[] scanRecord) {
-            this.device = device;
-            this.rssi = rssi;
-            this.scanRecord = scanRecord;
+    private RangedRegions getRangedRegions() {
+        RangedRegions rangedRegions = mRangedRegions;
+        if (rangedRegions == null) {
+            synchronized (mRangedRegionState) {
+                rangedRegions = mRangedRegions;
+                if (rangedRegions == null) {
+                    mRangedRegions = rangedRegions = new RangedRegions(mRangedRegionState);
+                }
+            }
         }
-
-        final int rssi;
-
-        @NonNull
-        BluetoothDevice device;
-
-        @NonNull
-        byte[] scanRecord;
+        return rangedRegions;
     }
 
-    private class ScanProcessor extends AsyncTask<ScanHelper.ScanData, Void, Void> {
-        final DetectionTracker mDetectionTracker = DetectionTracker.getInstance();
-
-        private final NonBeaconLeScanCallback mNonBeaconLeScanCallback;
-
-        ScanProcessor(NonBeaconLeScanCallback nonBeaconLeScanCallback) {
-            mNonBeaconLeScanCallback = nonBeaconLeScanCallback;
-        }
-
-        @WorkerThread
-        @Override
-        protected Void doInBackground(ScanHelper.ScanData... params) {
-            ScanHelper.ScanData scanData = params[0];
-            Beacon beacon = null;
-
-            for (BeaconParser parser : ScanHelper.this.mBeaconParsers) {
-                beacon = parser.fromScanData(scanData.scanRecord,
-                        scanData.rssi, scanData.device);
-
-                if (beacon != null) {
-                    break;
-                }
+    @WorkerThread
+    private void processScanData(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        Beacon beacon = mBeaconParserRegistry.fromScanData(scanRecord, rssi, device);
+        if (beacon != null) {
+            if (LogManager.isVerboseLoggingEnabled()) {
+                LogManager.d(TAG, "Beacon packet detected for: "+beacon+" with rssi "+beacon.getRssi());
             }
-            if (beacon != null) {
-                if (LogManager.isVerboseLoggingEnabled()) {
-                    LogManager.d(TAG, "Beacon packet detected for: "+beacon+" with rssi "+beacon.getRssi());
-                }
-                mDetectionTracker.recordDetection();
-                if (mCycledScanner != null && !mCycledScanner.getDistinctPacketsDetectedPerScan()) {
-                    if (!mDistinctPacketDetector.isPacketDistinct(scanData.device.getAddress(),
-                            scanData.scanRecord)) {
-                        LogManager.i(TAG, "Non-distinct packets detected in a single scan.  Restarting scans unecessary.");
-                        mCycledScanner.setDistinctPacketsDetectedPerScan(true);
-                    }
-                }
-                processBeaconFromScan(beacon);
-            } else {
-                if (mNonBeaconLeScanCallback != null) {
-                    mNonBeaconLeScanCallback.onNonBeaconLeScan(scanData.device, scanData.rssi, scanData.scanRecord);
+            mDetectionTracker.recordDetection();
+            if (mCycledScanner != null && !mCycledScanner.getDistinctPacketsDetectedPerScan()) {
+                if (!mDistinctPacketDetector.isPacketDistinct(device.getAddress(),
+                        scanRecord)) {
+                    LogManager.i(TAG, "Non-distinct packets detected in a single scan.  Restarting scans unecessary.");
+                    mCycledScanner.setDistinctPacketsDetectedPerScan(true);
                 }
             }
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void result) {
-        }
-
-        @Override
-        protected void onPreExecute() {
-        }
-
-        @Override
-        protected void onProgressUpdate(Void... values) {
+            processBeaconFromScan(beacon);
+        } else {
+            NonBeaconLeScanCallback nonBeaconLeScanCallback = mBeaconManager.getNonBeaconLeScanCallback();
+            if (nonBeaconLeScanCallback != null) {
+                nonBeaconLeScanCallback.onNonBeaconLeScan(device, rssi, scanRecord);
+            }
         }
     }
 
-    private List<Region> matchingRegions(Beacon beacon, Collection<Region> regions) {
-        List<Region> matched = new ArrayList<>();
-        for (Region region : regions) {
-            if (region.matchesBeacon(beacon)) {
-                matched.add(region);
-            } else {
-                LogManager.d(TAG, "This region (%s) does not match beacon: %s", region, beacon);
-            }
+    /**
+     * A snapshot of the ranged regions and an index of them, which is never changed and so may be
+     * read from any thread.
+     */
+    private static final class RangedRegions {
+        final Map<Region, RangeState> rangeStates;
+        final RegionIndex index;
+
+        RangedRegions(Map<Region, RangeState> rangeStates) {
+            this.rangeStates = new HashMap<>(rangeStates);
+            this.index = new RegionIndex(this.rangeStates.keySet());
         }
-        return matched;
     }
-
 }
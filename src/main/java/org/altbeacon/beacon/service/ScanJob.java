@@ -15,12 +15,9 @@ import android.os.Handler;
 import org.altbeacon.beacon.Beacon;
 import org.altbeacon.beacon.BeaconManager;
 import org.altbeacon.beacon.BuildConfig;
-import org.altbeacon.beacon.Region;
-import org.altbeacon.beacon.distance.ModelSpecificDistanceCalculator;
 import org.altbeacon.beacon.logging.LogManager;
 import org.altbeacon.beacon.utils.ProcessUtils;
 
-import java.util.ArrayList;
 import java.util.List;
 
 
@@ -50,6 +47,7 @@ public class ScanJob extends JobService {
     private ScanState mScanState;
     private Handler mStopHandler = new Handler();
     private ScanHelper mScanHelper;
+    private boolean mAttached = false;
     private boolean mInitialized = false;
 
     @Override
@@ -90,6 +88,7 @@ public class ScanJob extends JobService {
                     LogManager.i(TAG, "Scan job runtime expired: " + ScanJob.this);
                     stopScanning();
                     mScanState.save();
+                    mScanState.flush();
                     ScanJob.this.jobFinished(jobParameters , false);
 
                     // need to execute this after the current block or Android stops this job prematurely
@@ -105,6 +104,7 @@ public class ScanJob extends JobService {
         }
         else {
             LogManager.i(TAG, "Scanning not started so Scan job is complete.");
+            detachScanHelper();
             ScanJob.this.jobFinished(jobParameters , false);
         }
         return true;
@@ -122,16 +122,7 @@ public class ScanJob extends JobService {
 
     private void startPassiveScanIfNeeded() {
         LogManager.d(TAG, "Checking to see if we need to start a passive scan");
-        boolean insideAnyRegion = false;
-        // Clone the collection before iterating to prevent ConcurrentModificationException per #577
-        List<Region> regions = new ArrayList<>(mScanState.getMonitoringStatus().regions());
-        for (Region region : regions) {
-            RegionMonitoringState state = mScanState.getMonitoringStatus().stateOf(region);
-            if (state != null && state.getInside()) {
-                insideAnyRegion = true;
-            }
-        }
-        if (insideAnyRegion) {
+        if (mScanState.getMonitoringStatus().isInsideAnyRegion()) {
             // TODO: Set up a scan filter for not detecting a beacon pattern
             LogManager.i(TAG, "We are inside a beacon region.  We will not scan between cycles.");
         }
@@ -163,13 +154,19 @@ public class ScanJob extends JobService {
 
     private void stopScanning() {
         mInitialized = false;
-        mScanHelper.getCycledScanner().stop();
-        mScanHelper.getCycledScanner().destroy();
+        detachScanHelper();
+        if (mScanState != null) {
+            mScanState.flush();
+        }
         LogManager.d(TAG, "Scanning stopped");
     }
 
     private void initialzeScanHelper() {
-        mScanHelper = new ScanHelper(this);
+        // The helper and its threads are shared with other scan jobs and kept between runs
+        if (!mAttached) {
+            mScanHelper = ScanEngine.getInstance().attach(this);
+            mAttached = true;
+        }
         mScanState = ScanState.restore(ScanJob.this);
         mScanState.setLastScanStartTimeMillis(System.currentTimeMillis());
         mScanHelper.setMonitoringStatus(mScanState.getMonitoringStatus());
@@ -181,6 +178,14 @@ public class ScanJob extends JobService {
         }
     }
 
+    private void detachScanHelper() {
+        if (mAttached) {
+            mAttached = false;
+            ScanEngine.getInstance().detach(mScanHelper.getRangedRegionState().size() > 0 ||
+                    mScanHelper.getMonitoringStatus().regions().size() > 0);
+        }
+    }
+
     // Returns true of scanning actually was started, false if it did not need to be
     private boolean restartScanning() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -230,8 +235,7 @@ public class ScanJob extends JobService {
             ProcessUtils processUtils = new ProcessUtils(ScanJob.this);
             LogManager.i(TAG, "beaconScanJob PID is "+processUtils.getPid()+" with process name "+processUtils.getProcessName());
         }
-        ModelSpecificDistanceCalculator defaultDistanceCalculator =  new ModelSpecificDistanceCalculator(ScanJob.this, BeaconManager.getDistanceModelUpdateUrl());
-        Beacon.setDistanceCalculator(defaultDistanceCalculator);
+        Beacon.setDistanceCalculator(ScanEngine.getInstance().getDistanceCalculator(ScanJob.this));
         return restartScanning();
     }
 
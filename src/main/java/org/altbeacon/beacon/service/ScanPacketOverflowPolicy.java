@@ -0,0 +1,27 @@
+package org.altbeacon.beacon.service;
+
+/**
+ * Determines which scan packet is discarded when packets arrive from the Bluetooth stack faster
+ * than they can be processed and the queue of packets waiting to be processed is full.
+ *
+ * @see org.altbeacon.beacon.BeaconManager#setScanPacketOverflowPolicy(ScanPacketOverflowPolicy)
+ */
+public enum ScanPacketOverflowPolicy {
+    /**
+     * Discard the packet that has been waiting the longest, so the freshest packets are processed.
+     * This is the default.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Discard the packet that just arrived, so packets are processed in the order seen.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Replace a waiting packet from the same device with the one that just arrived, so each
+     * device keeps its latest packet in the queue.  If no packet from that device is waiting,
+     * the oldest packet is discarded.
+     */
+    COALESCE_PER_DEVICE
+}
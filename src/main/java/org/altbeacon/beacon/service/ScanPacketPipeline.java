@@ -0,0 +1,303 @@
+package org.altbeacon.beacon.service;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+import org.altbeacon.beacon.logging.LogManager;
+
+/**
+ * Hands scan packets from the Bluetooth scan callback to a fixed set of worker threads.
+ *
+ * Packets are sharded by device onto lanes, each drained by its own worker thread, so the
+ * packets of one device are always handled one at a time and in order while different devices
+ * are handled in parallel.  Each lane holds its packets in a ring of pre-allocated slots, so
+ * queueing a packet allocates nothing.  The slots keep references to the scan record arrays
+ * they are given rather than copying them, so callers must not modify an array after passing it
+ * to {@link #offer}.  The scan callback meets this because the Bluetooth stack delivers each scan
+ * result in a new array.  When a lane's ring is full the configured
+ * {@link ScanPacketOverflowPolicy} decides which packet is discarded, and the discarded packet
+ * is counted so that the scanning service can report that it is not keeping up.
+ *
+ * This is an internal utility class and should not be called directly by library users.
+ *
+ * @hide
+ */
+class ScanPacketPipeline {
+    private static final String TAG = ScanPacketPipeline.class.getSimpleName();
+
+    /**
+     * Receives each packet on the worker thread of the lane it was assigned to
+     */
+    interface PacketHandler {
+        @WorkerThread
+        void onPacket(int lane, BluetoothDevice device, int rssi, byte[] scanRecord);
+    }
+
+    private final PacketHandler mHandler;
+    private final ScanPacketOverflowPolicy mOverflowPolicy;
+    private final Lane[] mLanes;
+
+    /**
+     * @param capacity    the total number of packets that may wait, shared evenly between lanes
+     * @param laneCount   the number of lanes, each of which has its own worker thread
+     */
+    ScanPacketPipeline(int capacity, int laneCount, @NonNull ScanPacketOverflowPolicy overflowPolicy,
+                       @NonNull PacketHandler handler) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Pipeline capacity must be at least 1");
+        }
+        if (laneCount < 1) {
+            throw new IllegalArgumentException("Pipeline must have at least one lane");
+        }
+        mHandler = handler;
+        mOverflowPolicy = overflowPolicy;
+        int laneCapacity = (capacity + laneCount - 1) / laneCount;
+        mLanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            mLanes[i] = new Lane(i, laneCapacity);
+        }
+    }
+
+    /**
+     * @return the number of lanes packets are sharded across
+     */
+    int getLaneCount() {
+        return mLanes.length;
+    }
+
+    /**
+     * Returns the lane that processes packets from the device.  All packets from a device go to
+     * the same lane, so they are processed one at a time and in the order they were received.
+     */
+    int laneFor(BluetoothDevice device) {
+        if (device == null) {
+            return 0;
+        }
+        return (device.hashCode() & 0x7fffffff) % mLanes.length;
+    }
+
+    /**
+     * Queues a packet for processing on the device's lane, starting the lane's worker thread if
+     * needed.  The scan record is not copied, so it must not be modified afterwards.  Packets
+     * offered after {@link #shutdown()} are ignored, and are not counted as dropped.
+     *
+     * @return false if the packet was discarded or ignored rather than queued
+     */
+    boolean offer(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        return mLanes[laneFor(device)].offer(device, rssi, scanRecord);
+    }
+
+    /**
+     * Stops accepting packets.  Packets already queued are still processed, after which the
+     * worker threads exit.
+     */
+    void shutdown() {
+        for (Lane lane : mLanes) {
+            lane.shutdown();
+        }
+    }
+
+    /**
+     * @return the number of packets waiting to be processed
+     */
+    int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : mLanes) {
+            synchronized (lane) {
+                depth += lane.mCount;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * @return the largest number of packets that have been waiting at once in any one lane
+     */
+    int getMaxQueueDepth() {
+        int maxDepth = 0;
+        for (Lane lane : mLanes) {
+            synchronized (lane) {
+                maxDepth = Math.max(maxDepth, lane.mMaxQueueDepth);
+            }
+        }
+        return maxDepth;
+    }
+
+    /**
+     * @return the number of packets accepted for processing, including coalesced packets
+     */
+    long getQueuedPacketCount() {
+        long count = 0;
+        for (Lane lane : mLanes) {
+            synchronized (lane) {
+                count += lane.mQueuedPacketCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of packets discarded because the queue was full
+     */
+    long getDroppedPacketCount() {
+        long count = 0;
+        for (Lane lane : mLanes) {
+            synchronized (lane) {
+                count += lane.mDroppedPacketCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of packets that replaced a waiting packet from the same device
+     */
+    long getCoalescedPacketCount() {
+        long count = 0;
+        for (Lane lane : mLanes) {
+            synchronized (lane) {
+                count += lane.mCoalescedPacketCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * A ring of packet slots drained by a single worker thread.  All fields are guarded by the
+     * lane itself.
+     */
+    private final class Lane {
+        private final int mIndex;
+        private final BluetoothDevice[] mDevices;
+        private final int[] mRssis;
+        private final byte[][] mScanRecords;
+        private int mHead = 0;
+        private int mCount = 0;
+
+        private Thread mWorker;
+        private boolean mShutdown = false;
+
+        private long mQueuedPacketCount = 0;
+        private long mDroppedPacketCount = 0;
+        private long mCoalescedPacketCount = 0;
+        private int mMaxQueueDepth = 0;
+
+        Lane(int index, int capacity) {
+            mIndex = index;
+            mDevices = new BluetoothDevice[capacity];
+            mRssis = new int[capacity];
+            mScanRecords = new byte[capacity][];
+        }
+
+        synchronized boolean offer(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            if (mShutdown) {
+                // Not dropped for falling behind, so not counted as dropped
+                return false;
+            }
+            if (mWorker == null) {
+                startWorker();
+            }
+            int capacity = mDevices.length;
+            if (mCount == capacity) {
+                switch (mOverflowPolicy) {
+                    case DROP_NEWEST:
+                        mDroppedPacketCount++;
+                        return false;
+                    case COALESCE_PER_DEVICE:
+                        if (device != null) {
+                            for (int i = 0; i < mCount; i++) {
+                                int slot = (mHead + i) % capacity;
+                                if (device.equals(mDevices[slot])) {
+                                    mRssis[slot] = rssi;
+                                    mScanRecords[slot] = scanRecord;
+                                    mCoalescedPacketCount++;
+                                    mQueuedPacketCount++;
+                                    return true;
+                                }
+                            }
+                        }
+                        dropOldest();
+                        break;
+                    default:
+                        dropOldest();
+                        break;
+                }
+            }
+            int slot = (mHead + mCount) % capacity;
+            mDevices[slot] = device;
+            mRssis[slot] = rssi;
+            mScanRecords[slot] = scanRecord;
+            mCount++;
+            mQueuedPacketCount++;
+            if (mCount > mMaxQueueDepth) {
+                mMaxQueueDepth = mCount;
+            }
+            notify();
+            return true;
+        }
+
+        private void dropOldest() {
+            clearSlot(mHead);
+            mHead = (mHead + 1) % mDevices.length;
+            mCount--;
+            mDroppedPacketCount++;
+        }
+
+        private void clearSlot(int slot) {
+            mDevices[slot] = null;
+            mScanRecords[slot] = null;
+        }
+
+        private void startWorker() {
+            mWorker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    processPackets();
+                }
+            }, "BeaconScanWorker-" + mIndex);
+            mWorker.setDaemon(true);
+            mWorker.start();
+        }
+
+        @WorkerThread
+        private void processPackets() {
+            while (true) {
+                BluetoothDevice device;
+                int rssi;
+                byte[] scanRecord;
+                synchronized (this) {
+                    while (mCount == 0) {
+                        if (mShutdown) {
+                            return;
+                        }
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    device = mDevices[mHead];
+                    rssi = mRssis[mHead];
+                    scanRecord = mScanRecords[mHead];
+                    clearSlot(mHead);
+                    mHead = (mHead + 1) % mDevices.length;
+                    mCount--;
+                }
+                try {
+                    mHandler.onPacket(mIndex, device, rssi, scanRecord);
+                }
+                catch (RuntimeException e) {
+                    LogManager.e(e, TAG, "Failed to process scan packet");
+                }
+            }
+        }
+
+        synchronized void shutdown() {
+            mShutdown = true;
+            notifyAll();
+        }
+    }
+}
@@ -1,45 +1,84 @@
 package org.altbeacon.beacon.service;
 
 import android.content.Context;
+import android.support.v4.util.AtomicFile;
 import android.util.Log;
 
 import org.altbeacon.beacon.BeaconManager;
 import org.altbeacon.beacon.BeaconParser;
 import org.altbeacon.beacon.Region;
+import org.altbeacon.beacon.RegionIndex;
 import org.altbeacon.beacon.logging.LogManager;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InvalidClassException;
-import java.io.FileNotFoundException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import static android.content.Context.MODE_PRIVATE;
-
 /**
  * Stores the full state of scanning for the libary, including all settings so it can be ressurrected easily
  * for running from a scheduled job
  *
+ * The state is stored in one file per section: settings, beacon parsers, ranged regions and the
+ * extra data beacon tracker.  {@link #restore(Context)} reads only the small settings section, and
+ * each other section is read the first time it is accessed.  {@link #save()} rewrites only the
+ * sections that have changed, or that may have changed because they were accessed.  Ranged
+ * regions are stored with the beacons recently seen in them, including the state of their RSSI
+ * filters, so ranging carries on where it left off when a scan job starts in a new process.
+ * They are rewritten only after the regions change or scanning changes their range states.
+ *
  * Created by dyoung on 3/26/17.
  * @hide
  */
 
 public class ScanState implements Serializable {
     private static final String TAG = ScanState.class.getSimpleName();
+    private static final long serialVersionUID = 6205669452290278279L;
+    // Java-serialized state saved by older library versions, read only when no sections exist
     private static final String STATUS_PRESERVATION_FILE_NAME = "android-beacon-library-scan-state";
-    private static final String TEMP_STATUS_PRESERVATION_FILE_NAME = "android-beacon-library-scan-state-temp";
+    private static final int SECTION_MAGIC = 0x41425353; // "ABSS"
+    // Version 1 ranged region sections hold the regions without their range state
+    private static final int SECTION_VERSION = 2;
+    private static final int SECTION_SETTINGS = 0x01;
+    private static final int SECTION_BEACON_PARSERS = 0x02;
+    private static final int SECTION_RANGED_REGIONS = 0x04;
+    private static final int SECTION_EXTRA_DATA_TRACKER = 0x08;
+    private static final int ALL_SECTIONS = SECTION_SETTINGS | SECTION_BEACON_PARSERS
+            | SECTION_RANGED_REGIONS | SECTION_EXTRA_DATA_TRACKER;
+
+    // The most recently saved sections waiting to be written, guarded by sPendingLock
+    private static final Map<Integer, byte[]> sPendingSections = new HashMap<>();
+    private static Context sPendingContext;
+    private static final Object sPendingLock = new Object();
+    // Held while the state files are opened or written
+    private static final Object sFileLock = new Object();
+    private static final DebouncedTask sWriter = new DebouncedTask(new Runnable() {
+        @Override
+        public void run() {
+            writePendingSections();
+        }
+    });
     public static int MIN_SCAN_JOB_INTERVAL_MILLIS = 300000; //  5 minutes
 
     private Map<Region, RangeState> mRangedRegionState = new HashMap<Region, RangeState>();
+    // Rebuilt on demand after the ranged regions change
+    private transient RegionIndex mRangedRegionIndex;
     private transient MonitoringStatus mMonitoringStatus;
     private Set<BeaconParser> mBeaconParsers  = new HashSet<BeaconParser>();
     private ExtraDataBeaconTracker mExtraBeaconDataTracker = new ExtraDataBeaconTracker();
@@ -54,6 +93,11 @@ public class ScanState implements Serializable {
     private boolean mHasMidRangeUpdate;
     private long mMidRangeUpdatePeriod;
 
+    // Sections that have been read or set, and sections changed since they were last saved.
+    // Guarded by ScanState.class.
+    private transient int mLoadedSections;
+    private transient int mDirtySections;
+
     public Boolean hasMidRangePeriod() { return mHasMidRangeUpdate; }
     public Long GetRangeUpdatePeriod() { return mMidRangeUpdatePeriod; }
 
@@ -63,6 +107,7 @@ public class ScanState implements Serializable {
 
     public void setBackgroundMode(Boolean backgroundMode) {
         mBackgroundMode = backgroundMode;
+        markDirty(SECTION_SETTINGS);
     }
 
     public Long getBackgroundBetweenScanPeriod() {
@@ -71,6 +116,7 @@ public class ScanState implements Serializable {
 
     public void setBackgroundBetweenScanPeriod(Long backgroundBetweenScanPeriod) {
         mBackgroundBetweenScanPeriod = backgroundBetweenScanPeriod;
+        markDirty(SECTION_SETTINGS);
     }
 
     public Long getBackgroundScanPeriod() {
@@ -79,6 +125,7 @@ public class ScanState implements Serializable {
 
     public void setBackgroundScanPeriod(Long backgroundScanPeriod) {
         mBackgroundScanPeriod = backgroundScanPeriod;
+        markDirty(SECTION_SETTINGS);
     }
 
     public Long getForegroundBetweenScanPeriod() {
@@ -87,6 +134,7 @@ public class ScanState implements Serializable {
 
     public void setForegroundBetweenScanPeriod(Long foregroundBetweenScanPeriod) {
         mForegroundBetweenScanPeriod = foregroundBetweenScanPeriod;
+        markDirty(SECTION_SETTINGS);
     }
 
     public Long getForegroundScanPeriod() {
@@ -95,10 +143,13 @@ public class ScanState implements Serializable {
 
     public void setForegroundScanPeriod(Long foregroundScanPeriod) {
         mForegroundScanPeriod = foregroundScanPeriod;
+        markDirty(SECTION_SETTINGS);
     }
 
     public ScanState(Context context) {
         mContext = context;
+        mLoadedSections = ALL_SECTIONS;
+        mDirtySections = ALL_SECTIONS;
     }
 
     public MonitoringStatus getMonitoringStatus() {
@@ -110,27 +161,44 @@ public class ScanState implements Serializable {
     }
 
     public Map<Region, RangeState> getRangedRegionState() {
+        ensureLoaded(SECTION_RANGED_REGIONS);
         return mRangedRegionState;
     }
 
     public void setRangedRegionState(Map<Region, RangeState> rangedRegionState) {
         mRangedRegionState = rangedRegionState;
+        mRangedRegionIndex = null;
+        markLoadedAndDirty(SECTION_RANGED_REGIONS);
+    }
+
+    /**
+     * @return an index of the ranged regions, which is only rebuilt after they have changed
+     */
+    RegionIndex getRangedRegionIndex() {
+        if (mRangedRegionIndex == null) {
+            mRangedRegionIndex = new RegionIndex(getRangedRegionState().keySet());
+        }
+        return mRangedRegionIndex;
     }
 
     public ExtraDataBeaconTracker getExtraBeaconDataTracker() {
+        ensureLoaded(SECTION_EXTRA_DATA_TRACKER);
         return mExtraBeaconDataTracker;
     }
 
     public void setExtraBeaconDataTracker(ExtraDataBeaconTracker extraDataBeaconTracker) {
         mExtraBeaconDataTracker = extraDataBeaconTracker;
+        markLoadedAndDirty(SECTION_EXTRA_DATA_TRACKER);
     }
 
     public Set<BeaconParser> getBeaconParsers() {
+        ensureLoaded(SECTION_BEACON_PARSERS);
         return mBeaconParsers;
     }
 
     public void setBeaconParsers(Set<BeaconParser> beaconParsers) {
         mBeaconParsers = beaconParsers;
+        markLoadedAndDirty(SECTION_BEACON_PARSERS);
     }
 
     public long getLastScanStartTimeMillis() {
@@ -138,30 +206,44 @@ public class ScanState implements Serializable {
     }
     public void setLastScanStartTimeMillis(long time) {
         mLastScanStartTimeMillis = time;
+        markDirty(SECTION_SETTINGS);
+    }
+
+    private void markDirty(int sections) {
+        synchronized (ScanState.class) {
+            mDirtySections |= sections;
+        }
+    }
+
+    private void markLoadedAndDirty(int sections) {
+        synchronized (ScanState.class) {
+            mLoadedSections |= sections;
+            mDirtySections |= sections;
+        }
     }
 
     public static ScanState restore(Context context) {
         ScanState scanState = null;
+        // Make sure a state saved by this process but not yet written is the one restored
+        sWriter.flush();
         synchronized (ScanState.class) {
-            FileInputStream inputStream = null;
-            ObjectInputStream objectInputStream = null;
+            DataInputStream inputStream = null;
             try {
-                inputStream = context.openFileInput(STATUS_PRESERVATION_FILE_NAME);
-                objectInputStream = new ObjectInputStream(inputStream);
-                scanState = (ScanState) objectInputStream.readObject();
-                scanState.mContext = context;
+                inputStream = openSection(context, SECTION_SETTINGS);
+                scanState = new ScanState(context);
+                scanState.readSettings(inputStream);
+                scanState.mLoadedSections = SECTION_SETTINGS;
+                scanState.mDirtySections = 0;
             } catch (FileNotFoundException fnfe) {
-                LogManager.w(TAG, "Serialized ScanState does not exist.  This may be normal on first run.");
-            }
-            catch (IOException | ClassNotFoundException | ClassCastException e) {
-                if (e instanceof InvalidClassException) {
-                    LogManager.d(TAG, "Serialized ScanState has wrong class. Just ignoring saved state...");
-                }
-                else {
-                    LogManager.e(TAG, "Deserialization exception");
-                    Log.e(TAG, "error: ", e);
+                scanState = restoreSerialized(context);
+                if (scanState == null) {
+                    LogManager.w(TAG, "Serialized ScanState does not exist.  This may be normal on first run.");
                 }
-
+            }
+            catch (IOException e) {
+                LogManager.e(TAG, "Deserialization exception");
+                Log.e(TAG, "error: ", e);
+                scanState = null;
             } finally {
                 if (null != inputStream) {
                     try {
@@ -169,67 +251,345 @@ public class ScanState implements Serializable {
                     } catch (IOException ignored) {
                     }
                 }
-                if (objectInputStream != null) {
-                    try {
-                        objectInputStream.close();
-                    } catch (IOException ignored) {
-                    }
-                }
             }
             if (scanState == null) {
                 scanState = new ScanState(context);
 
             }
+            scanState.mMonitoringStatus = MonitoringStatus.getInstanceForApplication(context);
+            LogManager.d(TAG, "Scan state restore regions: monitored="+scanState.getMonitoringStatus().regions().size());
+            return scanState;
+        }
+    }
+
+    /**
+     * Reads the state saved by older library versions as a single Java-serialized object.  All
+     * sections of the returned state are dirty, so the next save replaces it.
+     */
+    private static ScanState restoreSerialized(Context context) {
+        ScanState scanState = null;
+        ObjectInputStream objectInputStream = null;
+        try {
+            synchronized (sFileLock) {
+                objectInputStream = new ObjectInputStream(getLegacyStateFile(context).openRead());
+            }
+            scanState = (ScanState) objectInputStream.readObject();
+            scanState.mContext = context;
+            scanState.mLoadedSections = ALL_SECTIONS;
+            scanState.mDirtySections = ALL_SECTIONS;
             if (scanState.mExtraBeaconDataTracker == null) {
                 scanState.mExtraBeaconDataTracker = new ExtraDataBeaconTracker();
             }
-            scanState.mMonitoringStatus = MonitoringStatus.getInstanceForApplication(context);
-            LogManager.d(TAG, "Scan state restore regions: monitored="+scanState.getMonitoringStatus().regions().size()+" ranged="+scanState.getRangedRegionState().keySet().size());
-            return scanState;
+            for (Map.Entry<Region, RangeState> entry : scanState.mRangedRegionState.entrySet()) {
+                entry.getValue().setRegion(entry.getKey());
+            }
+        } catch (FileNotFoundException fnfe) {
+            // Nothing saved
         }
+        catch (IOException | ClassNotFoundException | ClassCastException e) {
+            if (e instanceof InvalidClassException) {
+                LogManager.d(TAG, "Serialized ScanState has wrong class. Just ignoring saved state...");
+            }
+            else {
+                LogManager.e(TAG, "Deserialization exception");
+                Log.e(TAG, "error: ", e);
+            }
+            scanState = null;
+        } finally {
+            if (objectInputStream != null) {
+                try {
+                    objectInputStream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return scanState;
     }
 
-    public void save() {
+    /**
+     * Reads a section the first time it is accessed.  A section that is missing or cannot be read
+     * starts out empty.
+     */
+    private void ensureLoaded(int section) {
         synchronized (ScanState.class) {
-            // TODO: need to limit how big this object is somehow.
-            // Impose limits on ranged and monitored regions?
-            FileOutputStream outputStream = null;
-            ObjectOutputStream objectOutputStream = null;
+            if ((mLoadedSections & section) != 0) {
+                return;
+            }
+            // Make sure a section saved by this process but not yet written is the one read
+            sWriter.flush();
+            SectionInputStream inputStream = null;
             try {
-                outputStream = mContext.openFileOutput(TEMP_STATUS_PRESERVATION_FILE_NAME, MODE_PRIVATE);
-                objectOutputStream = new ObjectOutputStream(outputStream);
-                objectOutputStream.writeObject(this);
-                File file = new File(mContext.getFilesDir(), STATUS_PRESERVATION_FILE_NAME);
-                File tempFile = new File(mContext.getFilesDir(), TEMP_STATUS_PRESERVATION_FILE_NAME);
-                LogManager.d(TAG, "Temp file is "+tempFile.getAbsolutePath());
-                LogManager.d(TAG, "Perm file is "+file.getAbsolutePath());
-
-                if (!file.delete()) {
-                    LogManager.e(TAG, "Error while saving scan status to file: Cannot delete existing file.");
-                }
-                if (!tempFile.renameTo(file)) {
-                    LogManager.e(TAG, "Error while saving scan status to file: Cannot rename temp file.");
-                }
-            } catch (IOException e) {
-                LogManager.e(TAG, "Error while saving scan status to file: ", e.getMessage());
+                inputStream = openSection(mContext, section);
+                readSection(section, inputStream);
+            } catch (FileNotFoundException fnfe) {
+                setEmptySection(section);
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                LogManager.e(TAG, "Cannot read scan state section %s, message: %s", section, e.getMessage());
+                setEmptySection(section);
+                mDirtySections |= section;
             } finally {
-                if (null != outputStream) {
+                if (null != inputStream) {
                     try {
-                        outputStream.close();
+                        inputStream.close();
                     } catch (IOException ignored) {
                     }
                 }
-                if (objectOutputStream != null) {
-                    try {
-                        objectOutputStream.close();
-                    } catch (IOException ignored) {
+            }
+            mLoadedSections |= section;
+        }
+    }
+
+    private static SectionInputStream openSection(Context context, int section) throws IOException {
+        SectionInputStream inputStream;
+        synchronized (sFileLock) {
+            inputStream = new SectionInputStream(new BufferedInputStream(getSectionFile(context, section).openRead()));
+        }
+        try {
+            if (inputStream.readInt() != SECTION_MAGIC) {
+                throw new IOException("Not a scan state section");
+            }
+            int version = inputStream.readUnsignedByte();
+            if (version < 1 || version > SECTION_VERSION) {
+                throw new IOException("Unsupported scan state section version " + version);
+            }
+            inputStream.version = version;
+            if (inputStream.readUnsignedByte() != section) {
+                throw new IOException("Scan state section file holds the wrong section");
+            }
+        }
+        catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+        return inputStream;
+    }
+
+    private void readSettings(DataInputStream in) throws IOException {
+        mForegroundScanPeriod = in.readLong();
+        mForegroundBetweenScanPeriod = in.readLong();
+        mBackgroundScanPeriod = in.readLong();
+        mBackgroundBetweenScanPeriod = in.readLong();
+        mBackgroundMode = in.readBoolean();
+        mLastScanStartTimeMillis = in.readLong();
+        mHasMidRangeUpdate = in.readBoolean();
+        mMidRangeUpdatePeriod = in.readLong();
+    }
+
+    private void writeSettings(DataOutputStream out) throws IOException {
+        out.writeLong(mForegroundScanPeriod);
+        out.writeLong(mForegroundBetweenScanPeriod);
+        out.writeLong(mBackgroundScanPeriod);
+        out.writeLong(mBackgroundBetweenScanPeriod);
+        out.writeBoolean(mBackgroundMode);
+        out.writeLong(mLastScanStartTimeMillis);
+        out.writeBoolean(mHasMidRangeUpdate);
+        out.writeLong(mMidRangeUpdatePeriod);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readSection(int section, SectionInputStream in) throws IOException, ClassNotFoundException {
+        switch (section) {
+            case SECTION_BEACON_PARSERS:
+                mBeaconParsers = new LinkedHashSet<>((List<BeaconParser>) new ObjectInputStream(in).readObject());
+                break;
+            case SECTION_RANGED_REGIONS:
+                int count = in.readInt();
+                if (count < 0) {
+                    throw new IOException("Invalid ranged region count " + count);
+                }
+                List<Region> regions = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    regions.add(MonitoringStatusFormat.readRegion(in));
+                }
+                List<RangeState> rangeStates = null;
+                if (in.version >= 2) {
+                    rangeStates = (List<RangeState>) new ObjectInputStream(in).readObject();
+                    if (rangeStates.size() != count) {
+                        throw new IOException("Scan state section has " + rangeStates.size()
+                                + " range states for " + count + " regions");
+                    }
+                }
+                Map<Region, RangeState> rangedRegionState = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    RangeState rangeState;
+                    if (rangeStates != null) {
+                        rangeState = rangeStates.get(i);
+                        rangeState.setRegion(regions.get(i));
+                    }
+                    else {
+                        rangeState = new RangeState(new Callback(mContext.getPackageName()), regions.get(i));
+                    }
+                    rangedRegionState.put(regions.get(i), rangeState);
+                }
+                mRangedRegionState = rangedRegionState;
+                mRangedRegionIndex = null;
+                break;
+            case SECTION_EXTRA_DATA_TRACKER:
+                mExtraBeaconDataTracker = (ExtraDataBeaconTracker) new ObjectInputStream(in).readObject();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown scan state section " + section);
+        }
+    }
+
+    private void setEmptySection(int section) {
+        switch (section) {
+            case SECTION_BEACON_PARSERS:
+                mBeaconParsers = new LinkedHashSet<>();
+                break;
+            case SECTION_RANGED_REGIONS:
+                mRangedRegionState = new HashMap<>();
+                mRangedRegionIndex = null;
+                break;
+            case SECTION_EXTRA_DATA_TRACKER:
+                mExtraBeaconDataTracker = new ExtraDataBeaconTracker();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown scan state section " + section);
+        }
+    }
+
+    private byte[] serializeSection(int section) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(outputStream);
+        out.writeInt(SECTION_MAGIC);
+        out.writeByte(SECTION_VERSION);
+        out.writeByte(section);
+        switch (section) {
+            case SECTION_SETTINGS:
+                writeSettings(out);
+                break;
+            case SECTION_BEACON_PARSERS:
+                writeObject(out, new ArrayList<>(mBeaconParsers));
+                break;
+            case SECTION_RANGED_REGIONS:
+                ArrayList<RangeState> rangeStates = new ArrayList<>(mRangedRegionState.size());
+                out.writeInt(mRangedRegionState.size());
+                for (Map.Entry<Region, RangeState> entry : mRangedRegionState.entrySet()) {
+                    MonitoringStatusFormat.writeRegion(out, entry.getKey());
+                    rangeStates.add(entry.getValue());
+                }
+                writeObject(out, rangeStates);
+                break;
+            case SECTION_EXTRA_DATA_TRACKER:
+                writeObject(out, mExtraBeaconDataTracker);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown scan state section " + section);
+        }
+        out.flush();
+        return outputStream.toByteArray();
+    }
+
+    private static void writeObject(DataOutputStream out, Object object) throws IOException {
+        out.flush();
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(out);
+        objectOutputStream.writeObject(object);
+        objectOutputStream.flush();
+    }
+
+    /**
+     * Saves the sections of the state that have changed.  They are copied on the calling thread,
+     * and written to storage on a background thread at most once per
+     * {@link BeaconManager#getRegionStatePersistencePeriod()} together with any other saves made
+     * in the meantime.  Call {@link #flush()} to make sure they have been written.
+     */
+    public void save() {
+        synchronized (ScanState.class) {
+            int sections = mDirtySections & mLoadedSections;
+            if ((mLoadedSections & SECTION_RANGED_REGIONS) != 0 && rangeStatesChanged()) {
+                sections |= SECTION_RANGED_REGIONS;
+            }
+            // The tracker is updated by scanning, so it is saved whenever it has changed
+            if ((mLoadedSections & SECTION_EXTRA_DATA_TRACKER) != 0 && mExtraBeaconDataTracker != null
+                    && mExtraBeaconDataTracker.takeChanged()) {
+                sections |= SECTION_EXTRA_DATA_TRACKER;
+            }
+            Map<Integer, byte[]> serializedSections = new HashMap<>();
+            for (int section = SECTION_SETTINGS; section <= SECTION_EXTRA_DATA_TRACKER; section <<= 1) {
+                if ((sections & section) == 0) {
+                    continue;
+                }
+                try {
+                    serializedSections.put(section, serializeSection(section));
+                    mDirtySections &= ~section;
+                } catch (IOException e) {
+                    LogManager.e(TAG, "Error while saving scan status to file: ", e.getMessage());
+                }
+            }
+            if (!serializedSections.isEmpty()) {
+                LogManager.d(TAG, "Saving "+serializedSections.size()+" scan state sections");
+                synchronized (sPendingLock) {
+                    sPendingSections.putAll(serializedSections);
+                    sPendingContext = mContext.getApplicationContext();
+                }
+                sWriter.request(BeaconManager.getRegionStatePersistencePeriod());
+            }
+            mMonitoringStatus.requestMonitoringStatusSave();
+        }
+    }
+
+    /**
+     * @return true if scanning has changed any of the range states since they were last saved
+     */
+    private boolean rangeStatesChanged() {
+        boolean changed = false;
+        for (RangeState rangeState : mRangedRegionState.values()) {
+            // Every flag is cleared, so a change made while saving is saved next time
+            changed |= rangeState.takeChanged();
+        }
+        return changed;
+    }
+
+    /**
+     * Writes any saved state that has not yet been written to storage, including the monitoring
+     * status, on the calling thread.
+     */
+    public void flush() {
+        sWriter.flush();
+        mMonitoringStatus.flush();
+    }
+
+    private static void writePendingSections() {
+        Map<Integer, byte[]> sections;
+        Context context;
+        synchronized (sPendingLock) {
+            sections = new HashMap<>(sPendingSections);
+            context = sPendingContext;
+            sPendingSections.clear();
+            sPendingContext = null;
+        }
+        if (sections.isEmpty()) {
+            return;
+        }
+        synchronized (sFileLock) {
+            for (Map.Entry<Integer, byte[]> section : sections.entrySet()) {
+                AtomicFile sectionFile = getSectionFile(context, section.getKey());
+                FileOutputStream outputStream = null;
+                try {
+                    outputStream = sectionFile.startWrite();
+                    outputStream.write(section.getValue());
+                    sectionFile.finishWrite(outputStream);
+                } catch (IOException e) {
+                    LogManager.e(TAG, "Error while saving scan status to file: ", e.getMessage());
+                    if (outputStream != null) {
+                        sectionFile.failWrite(outputStream);
                     }
                 }
             }
-            mMonitoringStatus.saveMonitoringStatusIfOn();
+            // The sections replace the state saved by older library versions
+            getLegacyStateFile(context).delete();
         }
     }
 
+    private static AtomicFile getSectionFile(Context context, int section) {
+        return new AtomicFile(new File(context.getFilesDir(), STATUS_PRESERVATION_FILE_NAME + "-" + section));
+    }
+
+    private static AtomicFile getLegacyStateFile(Context context) {
+        return new AtomicFile(new File(context.getFilesDir(), STATUS_PRESERVATION_FILE_NAME));
+    }
+
     public int getScanJobIntervalMillis() {
         long cyclePeriodMillis;
         if (getBackgroundMode()) {
@@ -266,7 +626,11 @@ public class ScanState implements Serializable {
 
 
     public void applyChanges(BeaconManager beaconManager) {
-        mBeaconParsers = new HashSet<>(beaconManager.getBeaconParsers());
+        Set<BeaconParser> beaconParsers = new LinkedHashSet<>(beaconManager.getBeaconParsers());
+        if (!beaconParsers.equals(getBeaconParsers())) {
+            setBeaconParsers(beaconParsers);
+        }
+        markDirty(SECTION_SETTINGS);
         mForegroundScanPeriod = beaconManager.getForegroundScanPeriod();
         mForegroundBetweenScanPeriod = beaconManager.getForegroundBetweenScanPeriod();
         mBackgroundScanPeriod = beaconManager.getBackgroundScanPeriod();
@@ -277,7 +641,7 @@ public class ScanState implements Serializable {
         mMidRangeUpdatePeriod = beaconManager.getRangeUpdatePeriod();
 
         ArrayList<Region> existingMonitoredRegions = new ArrayList<>(mMonitoringStatus.regions());
-        ArrayList<Region> existingRangedRegions = new ArrayList<>(mRangedRegionState.keySet());
+        ArrayList<Region> existingRangedRegions = new ArrayList<>(getRangedRegionState().keySet());
         ArrayList<Region> newMonitoredRegions = new ArrayList<>(beaconManager.getMonitoredRegions());
         ArrayList<Region> newRangedRegions = new ArrayList<>(beaconManager.getRangedRegions());
         LogManager.d(TAG, "ranged regions: old="+existingRangedRegions.size()+" new="+newRangedRegions.size());
@@ -286,13 +650,17 @@ public class ScanState implements Serializable {
         for (Region newRangedRegion: newRangedRegions) {
             if (!existingRangedRegions.contains(newRangedRegion)) {
                 LogManager.d(TAG, "Starting ranging region: "+newRangedRegion);
-                mRangedRegionState.put(newRangedRegion, new RangeState(new Callback(mContext.getPackageName())));
+                mRangedRegionState.put(newRangedRegion, new RangeState(new Callback(mContext.getPackageName()), newRangedRegion));
+                mRangedRegionIndex = null;
+                markDirty(SECTION_RANGED_REGIONS);
             }
         }
         for (Region existingRangedRegion: existingRangedRegions) {
             if (!newRangedRegions.contains(existingRangedRegion)) {
                 LogManager.d(TAG, "Stopping ranging region: "+existingRangedRegion);
                 mRangedRegionState.remove(existingRangedRegion);
+                mRangedRegionIndex = null;
+                markDirty(SECTION_RANGED_REGIONS);
             }
         }
         LogManager.d(TAG, "Updated state with "+newRangedRegions.size()+" ranging regions and "+newMonitoredRegions.size()+" monitoring regions.");
@@ -300,4 +668,14 @@ public class ScanState implements Serializable {
         this.save();
     }
 
-}
\ No newline at end of file
+    /**
+     * Reads a section, after its header, knowing the version of the format it was written in.
+     */
+    private static final class SectionInputStream extends DataInputStream {
+        int version;
+
+        SectionInputStream(InputStream in) {
+            super(in);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.altbeacon.beacon.service;
+
+/**
+ * Determines which beacon stops being ranged when a region is ranging as many beacons as allowed
+ * and another beacon is seen.
+ *
+ * @see org.altbeacon.beacon.BeaconManager#setTrackedBeaconEvictionPolicy(TrackedBeaconEvictionPolicy)
+ * @see org.altbeacon.beacon.BeaconManager#setMaxTrackedBeacons(int)
+ */
+public enum TrackedBeaconEvictionPolicy {
+    /**
+     * Stop ranging the beacon that was seen least recently, so beacons that have gone away, or
+     * devices that have changed their Bluetooth address, make room first.  This is the default.
+     */
+    LEAST_RECENTLY_SEEN,
+
+    /**
+     * Stop ranging the beacon whose last packet had the weakest signal, which may be the beacon
+     * just seen, so the nearest beacons keep being ranged.
+     */
+    WEAKEST_SIGNAL
+}
@@ -2,9 +2,7 @@ package org.altbeacon.beacon.service.scanner;
 
 import android.support.annotation.NonNull;
 
-import java.nio.ByteBuffer;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
 
 /**
  * Created by dyoung on 4/8/17.
@@ -15,32 +13,109 @@ import java.util.Set;
  * requires stopping and restarting scanning on these devices.  This allows detecting if that is
  * necessary.
  * <p>
- * <strong>This class is not thread safe.</strong>
+ * Packets are remembered as 64-bit fingerprints of the MAC address and scan record in a fixed
+ * size open addressing table, so checking a packet allocates nothing.  Two different packets with
+ * the same fingerprint are extremely unlikely, but would be taken as a duplicate.  Detectors
+ * created with exact comparison also keep a reference to each packet's address and scan record
+ * and compare them when fingerprints match, so no two different packets are ever confused.
+ * <p>
+ * Methods are synchronized, so packets may be checked from several scan threads.
  */
 public class DistinctPacketDetector {
     // Sanity limit for the number of packets to track, so we don't use too much memory
     private static final int MAX_PACKETS_TO_TRACK = 1000;
+    // A power of two at least twice the number of packets tracked, so probe sequences stay short
+    private static final int TABLE_SIZE = 2048;
+    private static final long EMPTY = 0;
 
     @NonNull
-    private final Set<ByteBuffer> mDistinctPacketsDetected = new HashSet<>();
+    private final long[] mFingerprints = new long[TABLE_SIZE];
+    // Only kept for exact comparison
+    private final String[] mMacAddresses;
+    private final byte[][] mScanRecords;
+    private int mCount = 0;
 
-    public void clearDetections() {
-        mDistinctPacketsDetected.clear();
+    public DistinctPacketDetector() {
+        this(false);
     }
 
-    public boolean isPacketDistinct(@NonNull String originMacAddress, @NonNull byte[] scanRecord) {
-        byte[] macBytes = originMacAddress.getBytes();
-        ByteBuffer buffer = ByteBuffer.allocate(macBytes.length+scanRecord.length);
-        buffer.put(macBytes);
-        buffer.put(scanRecord);
-        buffer.rewind(); // rewind puts position back to beginning so .equals and .hashCode work
-
-        if (mDistinctPacketsDetected.size() == MAX_PACKETS_TO_TRACK) {
-            return mDistinctPacketsDetected.contains(buffer);
+    /**
+     * @param exactCompare true to compare the packets themselves when their fingerprints match,
+     *                     at the cost of keeping a reference to each packet tracked
+     */
+    public DistinctPacketDetector(boolean exactCompare) {
+        if (exactCompare) {
+            mMacAddresses = new String[TABLE_SIZE];
+            mScanRecords = new byte[TABLE_SIZE][];
         }
         else {
-            return mDistinctPacketsDetected.add(buffer);
+            mMacAddresses = null;
+            mScanRecords = null;
+        }
+    }
+
+    public synchronized void clearDetections() {
+        if (mCount > 0) {
+            Arrays.fill(mFingerprints, EMPTY);
+            if (mScanRecords != null) {
+                Arrays.fill(mMacAddresses, null);
+                Arrays.fill(mScanRecords, null);
+            }
+            mCount = 0;
+        }
+    }
+
+    public synchronized boolean isPacketDistinct(@NonNull String originMacAddress, @NonNull byte[] scanRecord) {
+        long fingerprint = fingerprint(originMacAddress, scanRecord);
+        int mask = TABLE_SIZE - 1;
+        int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+        boolean full = mCount == MAX_PACKETS_TO_TRACK;
+        while (mFingerprints[slot] != EMPTY) {
+            if (mFingerprints[slot] == fingerprint && isSamePacket(slot, originMacAddress, scanRecord)) {
+                // Once the limit is reached this reports whether the packet was already seen,
+                // as the set based implementation did
+                return full;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (full) {
+            return false;
+        }
+        mFingerprints[slot] = fingerprint;
+        if (mScanRecords != null) {
+            mMacAddresses[slot] = originMacAddress;
+            mScanRecords[slot] = scanRecord;
+        }
+        mCount++;
+        return true;
+    }
+
+    private boolean isSamePacket(int slot, String originMacAddress, byte[] scanRecord) {
+        return mScanRecords == null || (mMacAddresses[slot].equals(originMacAddress)
+                && Arrays.equals(mScanRecords[slot], scanRecord));
+    }
+
+    /**
+     * FNV-1a over the address characters and record bytes, finished with the MurmurHash3 64-bit
+     * mix so that all bits of the result depend on the whole packet.  Never returns
+     * {@link #EMPTY}.
+     */
+    static long fingerprint(@NonNull String originMacAddress, @NonNull byte[] scanRecord) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < originMacAddress.length(); i++) {
+            hash = (hash ^ originMacAddress.charAt(i)) * 0x100000001b3L;
+        }
+        // Marks the end of the address
+        hash = (hash ^ 0xff) * 0x100000001b3L;
+        for (byte b : scanRecord) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
         }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == EMPTY ? 1 : hash;
     }
 
 }
@@ -9,6 +9,9 @@ import java.util.List;
  * Parses a byte array representing a BLE advertisement into
  * a number of "Payload Data Units" (PDUs).
  *
+ * This creates an object for each PDU.  Code on the scanning path should walk the advertisement
+ * with {@link PduCursor} instead.
+ *
  * Created by dyoung on 4/14/15.
  */
 public class BleAdvertisement {
@@ -21,16 +24,9 @@ public class BleAdvertisement {
     }
     private List<Pdu> parsePdus() {
         ArrayList<Pdu> pdus = new ArrayList<Pdu>();
-        Pdu pdu = null;
-        int index = 0;
-        do {
-            pdu = Pdu.parse(mBytes, index);
-            if (pdu != null) {
-                index = index + pdu.getDeclaredLength()+1;
-                pdus.add(pdu);
-            }
+        for (int cursor = PduCursor.first(mBytes); cursor != PduCursor.END; cursor = PduCursor.next(mBytes, cursor)) {
+            pdus.add(Pdu.parse(mBytes, cursor));
         }
-        while (pdu != null && index < mBytes.length);
         return pdus;
     }
 
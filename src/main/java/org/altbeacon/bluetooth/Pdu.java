@@ -28,26 +28,16 @@ public class Pdu {
     @TargetApi(Build.VERSION_CODES.GINGERBREAD)
     public static Pdu parse(byte[] bytes, int startIndex) {
         Pdu pdu = null;
-        if (bytes.length-startIndex >= 2) {
-            byte length = bytes[startIndex];
-            if (length > 0) {
-                byte type = bytes[startIndex + 1];
-                int firstIndex = startIndex + 2;
-                if (firstIndex < bytes.length) {
-                    pdu = new Pdu();
-                    // The End index is the startIndex + the length, because the first byte is the
-                    // length field and the length field does not include the length field itself in
-                    // the count
-                    pdu.mEndIndex = startIndex + length;
-                    if (pdu.mEndIndex >= bytes.length) {
-                        pdu.mEndIndex = bytes.length - 1;
-                    }
-                    pdu.mType = type;
-                    pdu.mDeclaredLength = length;
-                    pdu.mStartIndex = firstIndex;
-                    pdu.mBytes = bytes;
-                }
-            }
+        if (PduCursor.isValid(bytes, startIndex)) {
+            pdu = new Pdu();
+            // The End index is the startIndex + the length, because the first byte is the
+            // length field and the length field does not include the length field itself in
+            // the count
+            pdu.mEndIndex = PduCursor.getEndIndex(bytes, startIndex);
+            pdu.mType = PduCursor.getType(bytes, startIndex);
+            pdu.mDeclaredLength = PduCursor.getDeclaredLength(bytes, startIndex);
+            pdu.mStartIndex = PduCursor.getStartIndex(startIndex);
+            pdu.mBytes = bytes;
         }
         return pdu;
     }
@@ -0,0 +1,98 @@
+package org.altbeacon.bluetooth;
+
+/**
+ * Walks the Payload Data Units (PDUs) of a Bluetooth LE advertisement without creating objects.
+ *
+ * A cursor is simply the index of a PDU's length byte within the advertisement.  Start with
+ * {@link #first(byte[])}, advance with {@link #next(byte[], int)} until it returns {@link #END},
+ * and read each PDU's fields with the static accessors:
+ *
+ * <pre>
+ * for (int pdu = PduCursor.first(bytes); pdu != PduCursor.END; pdu = PduCursor.next(bytes, pdu)) {
+ *     if (PduCursor.getType(bytes, pdu) == Pdu.MANUFACTURER_DATA_PDU_TYPE) {
+ *         int start = PduCursor.getStartIndex(pdu);
+ *         int end = PduCursor.getEndIndex(bytes, pdu);
+ *         ...
+ *     }
+ * }
+ * </pre>
+ *
+ * The PDUs visited are exactly those returned by {@link BleAdvertisement#getPdus()}, with the
+ * same start and end indexes.
+ */
+public final class PduCursor {
+    /**
+     * Cursor value returned when there are no more PDUs in the advertisement
+     */
+    public static final int END = -1;
+
+    private PduCursor() {
+    }
+
+    /**
+     * @return a cursor to the first PDU in the advertisement, or {@link #END} if there is none
+     */
+    public static int first(byte[] bytes) {
+        return isValid(bytes, 0) ? 0 : END;
+    }
+
+    /**
+     * @return a cursor to the PDU following the one at <code>cursor</code>, or {@link #END} if
+     * there is none
+     */
+    public static int next(byte[] bytes, int cursor) {
+        int nextCursor = cursor + getDeclaredLength(bytes, cursor) + 1;
+        if (nextCursor < bytes.length && isValid(bytes, nextCursor)) {
+            return nextCursor;
+        }
+        return END;
+    }
+
+    /**
+     * PDU type field
+     */
+    public static byte getType(byte[] bytes, int cursor) {
+        return bytes[cursor + 1];
+    }
+
+    /**
+     * PDU length from header
+     */
+    public static int getDeclaredLength(byte[] bytes, int cursor) {
+        return bytes[cursor];
+    }
+
+    /**
+     * Start index within byte buffer of the PDU payload, which follows the length and type bytes
+     */
+    public static int getStartIndex(int cursor) {
+        return cursor + 2;
+    }
+
+    /**
+     * End index within byte buffer of PDU, truncated to the end of the buffer if the declared
+     * length runs past it
+     */
+    public static int getEndIndex(byte[] bytes, int cursor) {
+        int endIndex = cursor + getDeclaredLength(bytes, cursor);
+        if (endIndex >= bytes.length) {
+            endIndex = bytes.length - 1;
+        }
+        return endIndex;
+    }
+
+    /**
+     * Actual PDU length (may be less than declared length if fewer bytes are actually available.)
+     */
+    public static int getActualLength(byte[] bytes, int cursor) {
+        return getEndIndex(bytes, cursor) - getStartIndex(cursor) + 1;
+    }
+
+    /**
+     * Returns true if a PDU with a positive length and at least one byte of payload begins at
+     * <code>cursor</code>
+     */
+    static boolean isValid(byte[] bytes, int cursor) {
+        return bytes.length - cursor >= 2 && bytes[cursor] > 0 && cursor + 2 < bytes.length;
+    }
+}
@@ -12,6 +12,10 @@ import org.junit.runner.RunWith;
 import org.junit.Test;
 import org.robolectric.annotation.Config;
 
+import java.io.ByteArrayInputStream;
+import java.io.ObjectInputStream;
+import java.util.List;
+
 @Config(sdk = 18)
 @RunWith(RobolectricTestRunner.class)
 /*
@@ -24,6 +28,38 @@ HOW TO SEE DEBUG LINES FROM YOUR UNIT TESTS:
 4. Expand the System.err section
  */
 public class AltBeaconParserTest {
+    // A parser list serialized by the previous library version
+    private static final String PREVIOUS_VERSION_SERIALIZED_PARSERS =
+            "aced0005737200136a6176612e7574696c2e41727261794c6973747881d21d99c7619d03000149000473697a65787000" +
+            "000001770400000001737200246f72672e616c74626561636f6e2e626561636f6e2e416c74426561636f6e5061727365" +
+            "726e37548a2c2991b2020000787200216f72672e616c74626561636f6e2e626561636f6e2e426561636f6e5061727365" +
+            "7254b46709329ef3950200174c000c6578747261506172736572737400104c6a6176612f7574696c2f4c6973743b4c00" +
+            "116d416c6c6f775064754f766572666c6f777400134c6a6176612f6c616e672f426f6f6c65616e3b4c000d6d42656163" +
+            "6f6e4c61796f75747400124c6a6176612f6c616e672f537472696e673b4c000e6d44426d436f7272656374696f6e7400" +
+            "134c6a6176612f6c616e672f496e74656765723b4c000f6d44617461456e644f66667365747371007e00044c00166d44" +
+            "6174614c6974746c65456e6469616e466c61677371007e00044c00116d4461746153746172744f66667365747371007e" +
+            "00044c000b6d45787472614672616d6571007e00055b001c6d48617264776172654173736973744d616e756661637475" +
+            "726572737400025b494c000b6d4964656e74696669657271007e00064c00156d4964656e746966696572456e644f6666" +
+            "7365747371007e00044c001c6d4964656e7469666965724c6974746c65456e6469616e466c61677371007e00044c0017" +
+            "6d4964656e74696669657253746172744f66667365747371007e00044c001e6d4964656e746966696572566172696162" +
+            "6c654c656e677468466c61677371007e00044c000b6d4c61796f757453697a6571007e00074c00176d4d61746368696e" +
+            "67426561636f6e54797065436f64657400104c6a6176612f6c616e672f4c6f6e673b4c00206d4d61746368696e674265" +
+            "61636f6e54797065436f6465456e644f666673657471007e00074c00226d4d61746368696e67426561636f6e54797065" +
+            "436f646553746172744f666673657471007e00074c000f6d506f776572456e644f666673657471007e00074c00116d50" +
+            "6f77657253746172744f666673657471007e00074c000c6d536572766963655575696471007e00094c00156d53657276" +
+            "69636555756964456e644f666673657471007e00074c00176d536572766963655575696453746172744f666673657471" +
+            "007e000778707371007e00000000000077040000000078737200116a6176612e6c616e672e426f6f6c65616ecd207280" +
+            "d59cfaee0200015a000576616c75657870017400316d3a322d333d626561632c693a342d31392c693a32302d32312c69" +
+            "3a32322d32332c703a32342d32342c643a32352d3235737200116a6176612e6c616e672e496e746567657212e2a0a4f7" +
+            "81873802000149000576616c7565787200106a6176612e6c616e672e4e756d62657286ac951d0b94e08b020000787000" +
+            "0000007371007e0000000000017704000000017371007e000f00000019787371007e0000000000017704000000017371" +
+            "007e000c00787371007e00000000000177040000000171007e00137871007e0015757200025b494dba602676eab2a502" +
+            "000078700000000100000118740009616c74626561636f6e7371007e0000000000037704000000037371007e000f0000" +
+            "00137371007e000f000000157371007e000f00000017787371007e00000000000377040000000371007e001571007e00" +
+            "1571007e0015787371007e0000000000037704000000037371007e000f000000047371007e000f000000147371007e00" +
+            "0f00000016787371007e00000000000377040000000371007e001571007e001571007e0015787371007e000f0000001a" +
+            "7372000e6a6176612e6c616e672e4c6f6e673b8be490cc8f23df0200014a000576616c75657871007e00100000000000" +
+            "00beac7371007e000f000000037371007e000f000000027371007e000f0000001871007e002970707078";
 
     public static byte[] hexStringToByteArray(String s) {
         int len = s.length();
@@ -88,4 +124,17 @@ public class AltBeaconParserTest {
         assertEquals("manufacturer should be parsed", 0x118 ,beacon.getManufacturer());
         assertEquals("missing data field zero should be zero", new Long(0l), beacon.getDataFields().get(0));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testDeserializesParsersSavedByPreviousVersion() throws Exception {
+        byte[] bytes = hexStringToByteArray(PREVIOUS_VERSION_SERIALIZED_PARSERS);
+        List<BeaconParser> parsers;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            parsers = (List<BeaconParser>) in.readObject();
+        }
+        assertEquals("one parser should be restored", 1, parsers.size());
+        assertEquals("the restored parser should match a new AltBeacon parser", new AltBeaconParser(), parsers.get(0));
+        Beacon beacon = parsers.get(0).fromScanData(hexStringToByteArray("02011a1bff1801beac2f234454cf6d4a0fadf2f4911ba9ffa600010002c50900"), -55, null);
+        assertEquals("uuid should be parsed", "2f234454-cf6d-4a0f-adf2-f4911ba9ffa6", beacon.getIdentifier(0).toString());
+    }
+}
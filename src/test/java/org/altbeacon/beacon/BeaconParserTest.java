@@ -109,6 +109,20 @@ public class BeaconParserTest {
         assertEquals("parser identifier should be accessible", "my_beacon_type", beacon.getParserIdentifier());
     }
 
+    @Test
+    public void testParsesMultiByteDataFieldsAsUnsigned() {
+        LogManager.setLogger(Loggers.verboseLogger());
+        org.robolectric.shadows.ShadowLog.stream = System.err;
+        byte[] bytes = hexStringToByteArray("02011a1eff1801beac2f234454cf6d4a0fadf2f4911ba9ffa600010002c5efbeadde");
+        BeaconParser parser = new BeaconParser();
+        parser.setBeaconLayout("m:2-3=beac,i:4-19,i:20-21,i:22-23,p:24-24,d:25-28l,d:25-28");
+        Beacon beacon = parser.fromScanData(bytes, -55, null);
+        assertEquals("txPower should be parsed", -59, beacon.getTxPower());
+        assertEquals("manufacturer should be parsed", 0x118 ,beacon.getManufacturer());
+        assertEquals("little endian data field should be parsed", Long.valueOf(0xdeadbeefl), beacon.getDataFields().get(0));
+        assertEquals("big endian data field should be parsed", Long.valueOf(0xefbeaddel), beacon.getDataFields().get(1));
+    }
+
     @Test
     public void testParsesBeaconMissingDataField() {
         LogManager.setLogger(Loggers.verboseLogger());
@@ -365,4 +379,29 @@ public class BeaconParserTest {
         assertEquals("parsed beacon should contain a valid data on index 2", Long.valueOf(9876L), parsedBeacon.getDataFields().get(2));
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testFromScanDataCopiesIdentifiers() {
+        BeaconParser parser = new AltBeaconParser();
+        byte[] bytes = hexStringToByteArray("02011a1bff1801beac2f234454cf6d4a0fadf2f4911ba9ffa600010002c509");
+        Beacon beacon = parser.fromScanData(bytes, -55, null);
+        Arrays.fill(bytes, (byte) 0);
+        assertEquals("identifiers should not change when the scan buffer is reused",
+                "2f234454-cf6d-4a0f-adf2-f4911ba9ffa6", beacon.getId1().toString());
+        assertTrue("identifiers should not refer to the scan record", !beacon.getId1().isView());
+    }
+
+    @Test
+    public void testFromScanDataReferencingScanRecordUsesViews() {
+        BeaconParser parser = new AltBeaconParser();
+        byte[] bytes = hexStringToByteArray("02011a1bff1801beac2f234454cf6d4a0fadf2f4911ba9ffa600010002c509");
+        Beacon beacon = parser.fromScanDataReferencingScanRecord(bytes, -55, null);
+        assertTrue("AltBeaconParser should construct an AltBeacon", beacon instanceof AltBeacon);
+        assertTrue("identifiers should refer to the scan record", beacon.getId1().isView());
+        assertEquals(parser.fromScanData(bytes, -55, null), beacon);
+
+        beacon.detachIdentifiersFromScanRecord();
+        Arrays.fill(bytes, (byte) 0);
+        assertEquals("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6", beacon.getId1().toString());
+    }
+}
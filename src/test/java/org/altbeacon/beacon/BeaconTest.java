@@ -14,10 +14,12 @@ import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasProperty;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 
 import org.robolectric.annotation.Config;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -42,6 +44,27 @@ HOW TO SEE DEBUG LINES FROM YOUR UNIT TESTS:
 4. Expand the System.err section
  */
 public class BeaconTest {
+    // A Beacon serialized by the previous library version
+    private static final String PREVIOUS_VERSION_SERIALIZED_BEACON =
+            "aced00057372001b6f72672e616c74626561636f6e2e626561636f6e2e426561636f6e9a78be3636dbe11a0200104900" +
+            "0f6d426561636f6e54797065436f646549000d6d4d616e7566616374757265725a00116d4d756c74694672616d654265" +
+            "61636f6e49000c6d5061636b6574436f756e744900056d527373694900156d527373694d6561737572656d656e74436f" +
+            "756e7449000c6d53657276696365557569644900086d5478506f7765724c00116d426c7565746f6f7468416464726573" +
+            "737400124c6a6176612f6c616e672f537472696e673b4c000e6d426c7565746f6f74684e616d6571007e00014c000b6d" +
+            "446174614669656c64737400104c6a6176612f7574696c2f4c6973743b4c00096d44697374616e63657400124c6a6176" +
+            "612f6c616e672f446f75626c653b4c00106d4578747261446174614669656c647371007e00024c000c6d4964656e7469" +
+            "666965727371007e00024c00116d5061727365724964656e74696669657271007e00014c00136d52756e6e696e674176" +
+            "65726167655273736971007e0003787000000000000001180000000000ffffffc900000000ffffffffffffffc5740011" +
+            "30313a30323a30333a30343a30353a3036707372001a6a6176612e7574696c2e4172726179732441727261794c697374" +
+            "d9a43cbecd8806d20200015b0001617400135b4c6a6176612f6c616e672f4f626a6563743b7870757200115b4c6a6176" +
+            "612e6c616e672e4c6f6e673b7de10ab2bbbc632b0200007870000000017372000e6a6176612e6c616e672e4c6f6e673b" +
+            "8be490cc8f23df0200014a000576616c7565787200106a6176612e6c616e672e4e756d62657286ac951d0b94e08b0200" +
+            "007870000000000000002a70737200136a6176612e7574696c2e41727261794c6973747881d21d99c7619d0300014900" +
+            "0473697a65787000000000770400000000787371007e000e000000037704000000037372001f6f72672e616c74626561" +
+            "636f6e2e626561636f6e2e4964656e7469666965727f77a5ad5c699a750200015b00066d56616c75657400025b427870" +
+            "757200025b42acf317f8060854e00200007870000000102f234454cf6d4a0fadf2f4911ba9ffa67371007e0011757100" +
+            "7e00140000000200017371007e00117571007e0014000000020002787070";
+
     private Parcel aParcel = null;
 
     @Before
@@ -180,6 +203,20 @@ public class BeaconTest {
     }
 
 
+    @Test
+    public void testDeserializesBeaconSavedByPreviousVersion() throws Exception {
+        Beacon beacon = (Beacon) convertFromBytes(hexStringToByteArray(PREVIOUS_VERSION_SERIALIZED_BEACON));
+        assertEquals("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6", beacon.getId1().toString());
+        assertEquals(1, beacon.getId2().toInt());
+        assertEquals(2, beacon.getId3().toInt());
+        assertEquals(-55, beacon.getRssi());
+        assertEquals(-59, beacon.getTxPower());
+        assertEquals("01:02:03:04:05:06", beacon.getBluetoothAddress());
+        assertEquals(Long.valueOf(42), beacon.getDataFields().get(0));
+        assertEquals("restored beacon should equal a newly built one", new Beacon.Builder()
+                .setId1("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6").setId2("1").setId3("2").build(), beacon);
+    }
+
     @Test
     public void testCanSerialize() throws Exception {
         org.robolectric.shadows.ShadowLog.stream = System.err;
@@ -224,6 +261,35 @@ public class BeaconTest {
         assertTrue("hashCode() should not throw exception", beacon.hashCode() >= Integer.MIN_VALUE);
     }
 
+    @Test
+    public void testEqualBeaconsHaveEqualHashCodes() {
+        Beacon.setHardwareEqualityEnforced(false);
+        Beacon beacon1 = new AltBeacon.Builder().setId1("1").setId2("2").setId3("3")
+                .setBluetoothAddress("1:2:3:4:5:6").build();
+        Beacon beacon2 = new AltBeacon.Builder().setId1("1").setId2("2").setId3("3")
+                .setBluetoothAddress("1:2:3:4:5:7").build();
+        assertTrue("Beacons with the same identifiers should be equal", beacon1.equals(beacon2));
+        assertEquals("Equal beacons should have equal hash codes", beacon1.hashCode(), beacon2.hashCode());
+
+        Beacon.setHardwareEqualityEnforced(true);
+        Beacon beacon3 = new AltBeacon.Builder().setId1("1").setId2("2").setId3("3")
+                .setBluetoothAddress("1:2:3:4:5:6").build();
+        assertTrue("Beacons with the same mac should be equal", beacon1.equals(beacon3));
+        assertEquals("Equal beacons should have equal hash codes", beacon1.hashCode(), beacon3.hashCode());
+        assertNotEquals("Beacons with different macs should have different hash codes", beacon1.hashCode(), beacon2.hashCode());
+        Beacon.setHardwareEqualityEnforced(false);
+    }
+
+    @Test
+    public void testHashCodeFollowsIdentifierChanges() {
+        Beacon beacon = new AltBeacon.Builder().setId1("1").setId2("2").setId3("3").build();
+        int hashCode = beacon.hashCode();
+        beacon.mIdentifiers = new ArrayList<>(beacon.mIdentifiers);
+        beacon.mIdentifiers.add(Identifier.parse("4"));
+        assertNotEquals("Hash code should change when identifiers change", hashCode, beacon.hashCode());
+        assertEquals("Hash code should be stable", beacon.hashCode(), beacon.hashCode());
+    }
+
     @Test
     public void parcelingBeaconContainsAllFields() {
         final Beacon original = new Beacon.Builder().setBluetoothAddress("aa:bb:cc:dd:ee:ff")
@@ -321,6 +387,16 @@ public class BeaconTest {
 
     // utilty methods for testing serialization
 
+    private static byte[] hexStringToByteArray(String s) {
+        int len = s.length();
+        byte[] data = new byte[len / 2];
+        for (int i = 0; i < len; i += 2) {
+            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
+                    + Character.digit(s.charAt(i+1), 16));
+        }
+        return data;
+    }
+
     private byte[] convertToBytes(Object object) throws IOException {
         try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
              ObjectOutputStream out = new ObjectOutputStream(bos)) {
@@ -225,4 +225,73 @@ public class IdentifierTest {
         assertEquals("Byte count should be 2 for integers", 2, id.getByteCount());
     }
 
+    @Test
+    public void testViewEqualsCopyOfSameBytes() {
+        byte[] scanRecord = {0x00, 0x2f, 0x23, 0x44, 0x54, (byte) 0xcf, 0x6d, 0x4a, 0x0f, (byte) 0xad, (byte) 0xf2, (byte) 0xf4, (byte) 0x91, 0x1b, (byte) 0xa9, (byte) 0xff, (byte) 0xa6, 0x01, 0x02};
+        Identifier view = Identifier.viewOf(scanRecord, 1, 17, false);
+        Identifier copy = Identifier.fromBytes(scanRecord, 1, 17, false);
+        assertTrue("View should be a view", view.isView());
+        assertEquals("View should equal copy", copy, view);
+        assertEquals("Copy should equal view", view, copy);
+        assertEquals("Hash codes should match", copy.hashCode(), view.hashCode());
+        assertEquals("Strings should match", copy.toString(), view.toString());
+        assertEquals("Views should compare equal to copies", 0, view.compareTo(copy));
+        assertTrue("Byte arrays should match", Arrays.equals(copy.toByteArray(), view.toByteArray()));
+    }
+
+    @Test
+    public void testLittleEndianViewEqualsLittleEndianCopy() {
+        byte[] scanRecord = {0x00, 0x01, 0x02, 0x03};
+        Identifier view = Identifier.viewOf(scanRecord, 1, 3, true);
+        assertEquals("View should equal copy", Identifier.fromBytes(scanRecord, 1, 3, true), view);
+        assertEquals("Little endian view should be reversed", 0x0201, view.toInt());
+        assertEquals("Hex string should be reversed", "0x0201", view.toHexString());
+    }
+
+    @Test
+    public void testOwnedCopyDoesNotReferToScanRecord() {
+        byte[] scanRecord = {0x00, 0x01, 0x02, 0x03};
+        Identifier owned = Identifier.viewOf(scanRecord, 1, 3, false).toOwned();
+        scanRecord[1] = 0x7f;
+        assertTrue("Owned copy should not be a view", !owned.isView());
+        assertEquals("Owned copy should not change with scan record", Identifier.fromInt(0x0102), owned);
+    }
+
+    @Test
+    public void testCompactIdentifiersMatchArrayBackedIdentifiers() {
+        java.util.Random random = new java.util.Random(42);
+        for (int length = 1; length <= 16; length++) {
+            for (int trial = 0; trial < 50; trial++) {
+                byte[] a = new byte[length];
+                byte[] b = new byte[length];
+                random.nextBytes(a);
+                random.nextBytes(b);
+                if (trial % 5 == 0) {
+                    b = a.clone();
+                }
+                Identifier compactA = Identifier.fromBytes(a, 0, length, false);
+                Identifier compactB = Identifier.fromBytes(b, 0, length, false);
+                Identifier arrayA = new Identifier(a.clone());
+                Identifier arrayB = new Identifier(b.clone());
+                assertEquals("Compact identifier should equal array identifier", arrayA, compactA);
+                assertEquals("Array identifier should equal compact identifier", compactA, arrayA);
+                assertEquals("Hash codes should match", arrayA.hashCode(), compactA.hashCode());
+                assertEquals("Strings should match", arrayA.toString(), compactA.toString());
+                assertTrue("Byte arrays should match", Arrays.equals(a, compactA.toByteArray()));
+                assertEquals("Comparison should match", Integer.signum(arrayA.compareTo(arrayB)), Integer.signum(compactA.compareTo(compactB)));
+                assertEquals("Equality should match", arrayA.equals(arrayB), compactA.equals(compactB));
+            }
+        }
+    }
+
+    @Test
+    public void testCompactIdentifiersWithDifferentLengthsAreNotEqual() {
+        Identifier shortId = Identifier.fromLong(1, 6);
+        Identifier longId = Identifier.fromLong(1, 10);
+        assertNotEqual("Identifiers of different lengths should not be equal", shortId, longId);
+        assertEquals("Shorter identifier should compare as smaller", -1, shortId.compareTo(longId));
+        assertEquals("Major should survive as int", 65535, Identifier.fromInt(65535).toInt());
+        assertEquals("UUID should survive as longs", "2f234454-cf6d-4a0f-adf2-f4911ba9ffa6",
+                Identifier.fromUuid(UUID.fromString("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6")).toUuid().toString());
+    }
 }
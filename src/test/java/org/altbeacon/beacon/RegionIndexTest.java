@@ -0,0 +1,80 @@
+package org.altbeacon.beacon;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 18)
+public class RegionIndexTest {
+    private static final String[] ADDRESSES = { "00:11:22:33:44:55", "66:77:88:99:AA:BB" };
+
+    private static Identifier randomIdentifierOrNull(Random random, int choices) {
+        int choice = random.nextInt(choices + 1);
+        return choice == choices ? null : Identifier.fromInt(choice);
+    }
+
+    private static List<Identifier> randomIdentifiers(Random random, int maxCount, int choices) {
+        int count = random.nextInt(maxCount + 1);
+        List<Identifier> identifiers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            identifiers.add(randomIdentifierOrNull(random, choices));
+        }
+        return identifiers;
+    }
+
+    @Test
+    public void testMatchesSameRegionsAsMatchesBeacon() {
+        Random random = new Random(42);
+        List<Region> regions = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            List<Identifier> identifiers = randomIdentifiers(random, 4, 3);
+            if (random.nextInt(4) == 0) {
+                String address = ADDRESSES[random.nextInt(ADDRESSES.length)];
+                regions.add(new Region("region" + i, identifiers, random.nextBoolean() ? address : address.toLowerCase()));
+            }
+            else {
+                regions.add(new Region("region" + i, identifiers));
+            }
+        }
+        RegionIndex index = new RegionIndex(regions);
+
+        for (int i = 0; i < 500; i++) {
+            List<Identifier> identifiers = new ArrayList<>();
+            int count = random.nextInt(5);
+            for (int j = 0; j < count; j++) {
+                identifiers.add(Identifier.fromInt(random.nextInt(3)));
+            }
+            Beacon beacon = new Beacon.Builder().setIdentifiers(identifiers)
+                    .setBluetoothAddress(ADDRESSES[random.nextInt(ADDRESSES.length)]).build();
+            List<Region> expected = new ArrayList<>();
+            for (Region region : regions) {
+                if (region.matchesBeacon(beacon)) {
+                    expected.add(region);
+                }
+            }
+            List<Region> actual = index.matchingRegions(beacon);
+            assertEquals("matches for " + beacon, expected.size(), actual.size());
+            assertEquals("matches for " + beacon, new HashSet<>(expected), new HashSet<>(actual));
+        }
+    }
+
+    @Test
+    public void testWildcardRegionMatchesEveryBeacon() {
+        Region everything = new Region("all", null, null, null);
+        Region specific = new Region("specific", Identifier.parse("1"), Identifier.parse("2"), null);
+        RegionIndex index = new RegionIndex(Arrays.asList(everything, specific));
+        Beacon beacon = new AltBeacon.Builder().setId1("1").setId2("3").setId3("4").build();
+        assertEquals(Collections.singletonList(everything), index.matchingRegions(beacon));
+    }
+}
@@ -0,0 +1,119 @@
+package org.altbeacon.beacon.service;
+
+import org.altbeacon.beacon.AltBeaconParser;
+import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.BeaconParser;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 18)
+public class BeaconParserRegistryTest {
+    private static final String ALTBEACON_PACKET = "02011a1bff1801beac2f234454cf6d4a0fadf2f4911ba9ffa600010002c509";
+    private static final String EDDYSTONE_UID_PACKET = "0201060303aafe1516aafe00e700010203040506070809010203040506000000";
+
+    public static byte[] hexStringToByteArray(String s) {
+        int len = s.length();
+        byte[] data = new byte[len / 2];
+        for (int i = 0; i < len; i += 2) {
+            data[i / 2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
+                    + Character.digit(s.charAt(i+1), 16));
+        }
+        return data;
+    }
+
+    private BeaconParser eddystoneUidParser() {
+        return new BeaconParser("eddystone_uid").setBeaconLayout(BeaconParser.EDDYSTONE_UID_LAYOUT);
+    }
+
+    private BeaconParser iBeaconLikeParser(String identifier) {
+        return new BeaconParser(identifier).setBeaconLayout("m:2-3=beac,i:4-19,i:20-21,i:22-23,p:24-24");
+    }
+
+    @Test
+    public void testDispatchesManufacturerPacketToMatchingParser() {
+        BeaconParserRegistry registry = new BeaconParserRegistry(Arrays.asList(eddystoneUidParser(), new AltBeaconParser()));
+        Beacon beacon = registry.fromScanData(hexStringToByteArray(ALTBEACON_PACKET), -55, null);
+        assertNotNull("AltBeacon should be parsed", beacon);
+        assertEquals("AltBeacon parser should be used", "altbeacon", beacon.getParserIdentifier());
+    }
+
+    @Test
+    public void testDispatchesServiceDataPacketToMatchingParser() {
+        BeaconParserRegistry registry = new BeaconParserRegistry(Arrays.asList(new AltBeaconParser(), eddystoneUidParser()));
+        Beacon beacon = registry.fromScanData(hexStringToByteArray(EDDYSTONE_UID_PACKET), -55, null);
+        assertNotNull("Eddystone-UID should be parsed", beacon);
+        assertEquals("Eddystone-UID parser should be used", "eddystone_uid", beacon.getParserIdentifier());
+        assertEquals("service uuid should be parsed", 0xfeaa, beacon.getServiceUuid());
+    }
+
+    @Test
+    public void testFirstRegisteredParserWinsForAmbiguousPackets() {
+        List<BeaconParser> parsers = new ArrayList<>();
+        parsers.add(iBeaconLikeParser("first"));
+        parsers.add(iBeaconLikeParser("second"));
+        Beacon beacon = new BeaconParserRegistry(parsers).fromScanData(hexStringToByteArray(ALTBEACON_PACKET), -55, null);
+        assertEquals("first registered parser should be used", "first", beacon.getParserIdentifier());
+
+        parsers.add(0, parsers.remove(1));
+        beacon = new BeaconParserRegistry(parsers).fromScanData(hexStringToByteArray(ALTBEACON_PACKET), -55, null);
+        assertEquals("first registered parser should be used", "second", beacon.getParserIdentifier());
+    }
+
+    @Test
+    public void testFirstRegisteredParserWinsWithMoreThan64Parsers() {
+        List<BeaconParser> parsers = new ArrayList<>();
+        for (int i = 0; i < 70; i++) {
+            parsers.add(i == 66 || i == 68 ? iBeaconLikeParser("parser" + i) : eddystoneUidParser());
+        }
+        Beacon beacon = new BeaconParserRegistry(parsers).fromScanData(hexStringToByteArray(ALTBEACON_PACKET), -55, null);
+        assertEquals("first registered parser should be used", "parser66", beacon.getParserIdentifier());
+    }
+
+    @Test
+    public void testHasParsersOnlyForSameParsersInSameOrder() {
+        List<BeaconParser> parsers = new ArrayList<>();
+        parsers.add(iBeaconLikeParser("first"));
+        parsers.add(iBeaconLikeParser("second"));
+        BeaconParserRegistry registry = new BeaconParserRegistry(parsers);
+
+        assertTrue(registry.hasParsers(Arrays.asList(iBeaconLikeParser("first"), iBeaconLikeParser("second"))));
+        assertFalse(registry.hasParsers(Arrays.asList(iBeaconLikeParser("second"), iBeaconLikeParser("first"))));
+        assertFalse(registry.hasParsers(Arrays.asList(iBeaconLikeParser("first"))));
+    }
+
+    @Test
+    public void testReturnsNullWhenNoParserMatches() {
+        BeaconParserRegistry registry = new BeaconParserRegistry(Arrays.asList(eddystoneUidParser()));
+        assertNull("AltBeacon packet should not be parsed by Eddystone parser",
+                registry.fromScanData(hexStringToByteArray(ALTBEACON_PACKET), -55, null));
+        assertNull("packet without manufacturer or service data should not be parsed",
+                registry.fromScanData(hexStringToByteArray("02011a"), -55, null));
+    }
+
+    @Test
+    public void testParserWithoutServiceUuidOffsetsIsOfferedEveryPacket() {
+        BeaconParser parser = new BeaconParser("no_offsets") {
+            {
+                mServiceUuid = 0xfeaal;
+            }
+        };
+        BeaconParserRegistry registry = new BeaconParserRegistry(Arrays.asList(new AltBeaconParser(), parser));
+        assertEquals(2, registry.size());
+        Beacon beacon = registry.fromScanData(hexStringToByteArray(ALTBEACON_PACKET), -55, null);
+        assertNotNull("AltBeacon should still be parsed", beacon);
+        assertEquals("altbeacon", beacon.getParserIdentifier());
+    }
+}
@@ -0,0 +1,71 @@
+package org.altbeacon.beacon.service;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 18)
+public class DebouncedTaskTest {
+
+    @Test
+    public void testRequestsAreMergedIntoOneRun() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        DebouncedTask task = new DebouncedTask(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+        task.request(60000);
+        task.request(60000);
+        task.request(60000);
+        assertTrue(task.isPending());
+        task.flush();
+        assertEquals(1, runs.get());
+        assertFalse(task.isPending());
+        task.flush();
+        assertEquals("flush should do nothing when no run is pending", 1, runs.get());
+    }
+
+    @Test
+    public void testRequestRunsInBackgroundAfterDelay() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        final Thread[] runThread = new Thread[1];
+        DebouncedTask task = new DebouncedTask(new Runnable() {
+            @Override
+            public void run() {
+                runThread[0] = Thread.currentThread();
+                ran.countDown();
+            }
+        });
+        task.request(10);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertFalse(Thread.currentThread() == runThread[0]);
+        assertFalse(task.isPending());
+    }
+
+    @Test
+    public void testCancelDropsPendingRun() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        DebouncedTask task = new DebouncedTask(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+        task.request(60000);
+        task.cancel();
+        task.flush();
+        assertEquals(0, runs.get());
+    }
+}
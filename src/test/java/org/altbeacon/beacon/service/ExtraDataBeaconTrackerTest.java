@@ -1,12 +1,20 @@
 package org.altbeacon.beacon.service;
 
+import android.os.SystemClock;
+
 import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.BeaconManager;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -89,12 +97,34 @@ public class ExtraDataBeaconTrackerTest {
                 .build();
     }
 
+    Beacon getGattBeaconWithAddress(String bluetoothAddress) {
+        return new Beacon.Builder().setId1("1")
+                .setBluetoothAddress(bluetoothAddress)
+                .setServiceUuid(1234)
+                .build();
+    }
+
+    Beacon getGattBeaconExtraDataWithAddress(String bluetoothAddress) {
+        return new Beacon.Builder()
+                .setBluetoothAddress(bluetoothAddress)
+                .setServiceUuid(1234)
+                .setRssi(-25)
+                .setDataFields(getDataFields())
+                .build();
+    }
+
     @Before
     public void before() {
         // All logging will go to Stderr.  Expand System.err section of test report to see log
         org.robolectric.shadows.ShadowLog.stream = System.err;
     }
 
+    @After
+    public void after() {
+        BeaconManager.setExtraDataBeaconTrackerCapacity(BeaconManager.DEFAULT_EXTRA_DATA_BEACON_TRACKER_CAPACITY);
+        BeaconManager.setExtraDataBeaconTrackerExpirationPeriod(BeaconManager.DEFAULT_EXTRA_DATA_BEACON_TRACKER_EXPIRATION_PERIOD);
+    }
+
     @Test
     public void trackingManufacturerBeaconReturnsSelf() {
         Beacon beacon = getManufacturerBeacon();
@@ -182,4 +212,65 @@ public class ExtraDataBeaconTrackerTest {
         assertEquals("rssi should be updated", beaconUpdate.getRssi(), trackedBeacon.getRssi());
         assertEquals("data fields should be updated", beaconUpdate.getDataFields(), trackedBeacon.getExtraDataFields());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void leastRecentlySeenDevicesAreForgottenBeyondCapacity() {
+        BeaconManager.setExtraDataBeaconTrackerCapacity(2);
+        ExtraDataBeaconTracker tracker = new ExtraDataBeaconTracker();
+        tracker.track(getGattBeaconWithAddress("01:02:03:04:05:01"));
+        tracker.track(getGattBeaconWithAddress("01:02:03:04:05:02"));
+        // Seeing the first device again makes the second the least recently seen
+        tracker.track(getGattBeaconWithAddress("01:02:03:04:05:01"));
+        tracker.track(getGattBeaconWithAddress("01:02:03:04:05:03"));
+        assertEquals("tracker should be limited to its capacity", 2, tracker.size());
+
+        tracker.track(getGattBeaconExtraDataWithAddress("01:02:03:04:05:01"));
+        tracker.track(getGattBeaconExtraDataWithAddress("01:02:03:04:05:02"));
+        assertEquals("extra data should be merged into a device still tracked", getDataFields(),
+                tracker.track(getGattBeaconWithAddress("01:02:03:04:05:01")).getExtraDataFields());
+        assertNotEquals("extra data should not be merged into a forgotten device", getDataFields(),
+                tracker.track(getGattBeaconWithAddress("01:02:03:04:05:02")).getExtraDataFields());
+    }
+
+    @Test
+    public void devicesNotSeenWithinExpirationPeriodAreForgotten() {
+        BeaconManager.setExtraDataBeaconTrackerExpirationPeriod(60000l);
+        ExtraDataBeaconTracker tracker = new ExtraDataBeaconTracker();
+        tracker.track(getGattBeaconWithAddress("01:02:03:04:05:01"));
+        tracker.track(getGattBeaconWithAddress("01:02:03:04:05:02"));
+
+        tracker.removeStaleBeacons(SystemClock.elapsedRealtime() + 1000l);
+        assertEquals("recently seen devices should be kept", 2, tracker.size());
+        tracker.removeStaleBeacons(SystemClock.elapsedRealtime() + 60001l);
+        assertEquals("expired devices should be forgotten", 0, tracker.size());
+    }
+
+    @Test
+    public void bluetoothAddressesArePackedIntoKeys() {
+        assertEquals(0x0102030405abL, ExtraDataBeaconTracker.BeaconKey.packAddress("01:02:03:04:05:AB"));
+        assertEquals(-1l, ExtraDataBeaconTracker.BeaconKey.packAddress("01:02:03:04:05"));
+        assertEquals(-1l, ExtraDataBeaconTracker.BeaconKey.packAddress("01-02-03-04-05-06"));
+        assertEquals(-1l, ExtraDataBeaconTracker.BeaconKey.packAddress(null));
+        assertNotEquals("keys for different unusual addresses should differ",
+                new ExtraDataBeaconTracker.BeaconKey("a", 1234), new ExtraDataBeaconTracker.BeaconKey("b", 1234));
+        assertEquals(new ExtraDataBeaconTracker.BeaconKey("01:02:03:04:05:ab", 1234),
+                new ExtraDataBeaconTracker.BeaconKey("01:02:03:04:05:AB", 1234));
+    }
+
+    @Test
+    public void trackedBeaconsSurviveSerialization() throws Exception {
+        ExtraDataBeaconTracker tracker = new ExtraDataBeaconTracker();
+        tracker.track(getGattBeacon());
+        tracker.track(getGattBeaconExtraData());
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
+        objectOutputStream.writeObject(tracker);
+        objectOutputStream.close();
+
+        ExtraDataBeaconTracker restored = (ExtraDataBeaconTracker) new ObjectInputStream(
+                new ByteArrayInputStream(outputStream.toByteArray())).readObject();
+        assertEquals(1, restored.size());
+        assertEquals("extra data should be merged after restore", getDataFields(),
+                restored.track(getGattBeacon()).getExtraDataFields());
+    }
+}
@@ -0,0 +1,63 @@
+package org.altbeacon.beacon.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 18)
+public class KalmanRssiFilterTest {
+
+    @Before
+    public void before() {
+        // Other tests shorten the expiration shared by all filters
+        RunningAverageRssiFilter.setSampleExpirationMilliseconds(RunningAverageRssiFilter.DEFAULT_SAMPLE_EXPIRATION_MILLISECONDS);
+    }
+
+    @Test
+    public void firstMeasurementIsTakenAsIsTest() {
+        KalmanRssiFilter filter = new KalmanRssiFilter();
+        assertTrue("no measurements should be available before one is added", filter.noMeasurementsAvailable());
+        filter.addMeasurement(-50);
+        assertFalse(filter.noMeasurementsAvailable());
+        assertEquals(-50.0, filter.calculateRssi(), 0.0001);
+        assertEquals(1, filter.getMeasurementCount());
+    }
+
+    @Test
+    public void estimateConvergesTowardsMeasurementsTest() {
+        KalmanRssiFilter filter = new KalmanRssiFilter(0.125, 8.0);
+        filter.addMeasurement(-50);
+        filter.addMeasurement(-70);
+        double afterOne = filter.calculateRssi();
+        assertTrue("estimate should move part of the way towards the measurement", afterOne < -50 && afterOne > -70);
+        for (int i = 0; i < 100; i++) {
+            filter.addMeasurement(-70);
+        }
+        assertEquals(-70.0, filter.calculateRssi(), 0.5);
+        assertEquals(102, filter.getMeasurementCount());
+    }
+
+    @Test
+    public void higherMeasurementNoiseGivesSmootherEstimateTest() {
+        KalmanRssiFilter smooth = new KalmanRssiFilter(0.125, 32.0);
+        KalmanRssiFilter responsive = new KalmanRssiFilter(0.125, 2.0);
+        smooth.addMeasurement(-50);
+        responsive.addMeasurement(-50);
+        smooth.addMeasurement(-70);
+        responsive.addMeasurement(-70);
+        assertTrue(smooth.calculateRssi() > responsive.calculateRssi());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void measurementNoiseMustBePositiveTest() {
+        new KalmanRssiFilter(0.125, 0);
+    }
+
+}
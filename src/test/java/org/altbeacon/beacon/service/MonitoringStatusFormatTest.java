@@ -0,0 +1,142 @@
+package org.altbeacon.beacon.service;
+
+import org.altbeacon.beacon.Identifier;
+import org.altbeacon.beacon.Region;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 18)
+public class MonitoringStatusFormatTest {
+
+    private static byte[] write(Map<Region, RegionMonitoringState> states) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        MonitoringStatusFormat.write(outputStream, states);
+        return outputStream.toByteArray();
+    }
+
+    private static Map<Region, RegionMonitoringState> read(byte[] data) throws IOException {
+        return MonitoringStatusFormat.read(new ByteArrayInputStream(data));
+    }
+
+    @Test
+    public void testRegionsAndStatesSurviveRoundTrip() throws Exception {
+        Region uuidRegion = new Region("uuid", Identifier.parse("2f234454-cf6d-4a0f-adf2-f4911ba9ffa6"),
+                Identifier.fromInt(1), null);
+        Region hexRegion = new Region("hex", Arrays.asList(Identifier.parse("0x0102030405060708090a"),
+                null, Identifier.parse("0x0102")), "00:11:22:33:AA:BB");
+        Region addressRegion = new Region("address", "66:77:88:99:AA:BB");
+        Map<Region, RegionMonitoringState> states = new HashMap<>();
+        states.put(uuidRegion, new RegionMonitoringState(new Callback(null), true, 12345l));
+        states.put(hexRegion, new RegionMonitoringState(new Callback(null)));
+        states.put(addressRegion, new RegionMonitoringState(new Callback(null)));
+
+        Map<Region, RegionMonitoringState> restored = read(write(states));
+
+        assertEquals(3, restored.size());
+        for (Region region : states.keySet()) {
+            Region restoredRegion = null;
+            for (Region candidate : restored.keySet()) {
+                if (candidate.equals(region)) {
+                    restoredRegion = candidate;
+                }
+            }
+            assertTrue("region " + region.getUniqueId() + " should be restored",
+                    region.hasSameIdentifiers(restoredRegion));
+            assertEquals(region.getBluetoothAddress(), restoredRegion.getBluetoothAddress());
+            assertEquals(region.toString(), restoredRegion.toString());
+            assertEquals(states.get(region).getInside(), restored.get(restoredRegion).getInside());
+            assertEquals(states.get(region).getLastSeenTime(), restored.get(restoredRegion).getLastSeenTime());
+        }
+    }
+
+    @Test
+    public void testReadsJavaSerializedStateFromOlderVersions() throws Exception {
+        Region region = new Region("region", Identifier.parse("1"), null, null);
+        HashMap<Region, RegionMonitoringState> states = new HashMap<>();
+        RegionMonitoringState state = new RegionMonitoringState(new Callback(null));
+        state.markInside();
+        states.put(region, state);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
+        objectOutputStream.writeObject(states);
+        objectOutputStream.close();
+
+        Map<Region, RegionMonitoringState> restored = read(outputStream.toByteArray());
+
+        assertEquals(1, restored.size());
+        assertTrue(restored.get(region).getInside());
+    }
+
+    @Test
+    public void testRejectsTruncatedAndUnknownData() throws Exception {
+        Map<Region, RegionMonitoringState> states = new HashMap<>();
+        states.put(new Region("region", Identifier.parse("1"), null, null),
+                new RegionMonitoringState(new Callback(null)));
+        byte[] data = write(states);
+
+        assertRejected(Arrays.copyOf(data, data.length - 1));
+        byte[] newerVersion = data.clone();
+        newerVersion[4] = (byte) (MonitoringStatusFormat.VERSION + 1);
+        assertRejected(newerVersion);
+        assertRejected("not a status file".getBytes());
+    }
+
+    @Test
+    public void testJournalReplayAppliesCompleteRecordsInOrder() throws Exception {
+        List<RegionMonitoringState> states = Arrays.asList(new RegionMonitoringState(new Callback(null)),
+                new RegionMonitoringState(new Callback(null)));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(outputStream);
+        MonitoringStatusFormat.writeJournalHeader(out);
+        MonitoringStatusFormat.writeJournalRecord(out, 1, new RegionMonitoringState(new Callback(null), true, 10l));
+        MonitoringStatusFormat.writeJournalRecord(out, 0, new RegionMonitoringState(new Callback(null), true, 20l));
+        MonitoringStatusFormat.writeJournalRecord(out, 1, new RegionMonitoringState(new Callback(null), false, 0l));
+        // An interrupted write leaves part of a record behind
+        out.writeInt(0);
+        out.writeByte(0);
+        byte[] journal = outputStream.toByteArray();
+
+        assertEquals(3, MonitoringStatusFormat.replayJournal(new ByteArrayInputStream(journal), states));
+        assertTrue(states.get(0).getInside());
+        assertEquals(20l, states.get(0).getLastSeenTime());
+        assertFalse(states.get(1).getInside());
+    }
+
+    @Test(expected = IOException.class)
+    public void testJournalReplayRejectsUnknownRegion() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(outputStream);
+        MonitoringStatusFormat.writeJournalHeader(out);
+        MonitoringStatusFormat.writeJournalRecord(out, 1, new RegionMonitoringState(new Callback(null), true, 10l));
+        MonitoringStatusFormat.replayJournal(new ByteArrayInputStream(outputStream.toByteArray()),
+                Collections.singletonList(new RegionMonitoringState(new Callback(null))));
+    }
+
+    private static void assertRejected(byte[] data) {
+        try {
+            read(data);
+            fail("data should be rejected");
+        }
+        catch (IOException expected) {
+        }
+    }
+}
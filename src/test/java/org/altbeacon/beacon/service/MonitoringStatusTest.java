@@ -6,7 +6,11 @@ import android.os.AsyncTask;
 import android.os.Build;
 import android.util.Log;
 
+import org.altbeacon.beacon.AltBeacon;
+import org.altbeacon.beacon.Beacon;
 import org.altbeacon.beacon.BeaconManager;
+import org.altbeacon.beacon.Identifier;
+import org.altbeacon.beacon.MonitorNotifier;
 import org.altbeacon.beacon.Region;
 import org.altbeacon.beacon.logging.LogManager;
 import org.altbeacon.beacon.logging.Loggers;
@@ -20,10 +24,13 @@ import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowApplication;
 import org.robolectric.util.ServiceController;
 
+import java.io.File;
 import java.util.Collection;
 import java.util.concurrent.ThreadPoolExecutor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by dyoung on 7/1/16.
@@ -56,16 +63,18 @@ public class MonitoringStatusTest {
 
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     @Test
-    public void clearsStatusOfOver50RegionsTest() throws Exception {
+    public void savesStatusOfThousandsOfRegionsTest() throws Exception {
         Context context = ShadowApplication.getInstance().getApplicationContext();
         MonitoringStatus monitoringStatus = new MonitoringStatus(context);
-        for (int i = 0; i < 51; i++) {
-            Region region = new Region(""+i, null, null, null);
-            monitoringStatus.addRegion(region, null);
+        monitoringStatus.clear();
+        for (int i = 0; i < 2000; i++) {
+            Region region = new Region(""+i, Identifier.fromInt(i), null, null);
+            monitoringStatus.addLocalRegion(region);
         }
         monitoringStatus.saveMonitoringStatusIfOn();
         MonitoringStatus monitoringStatus2 = new MonitoringStatus(context);
-        assertEquals("restored regions should be none", 0, monitoringStatus2.regions().size());
+        assertEquals("restored regions should be same number as saved", 2000, monitoringStatus2.regions().size());
+        monitoringStatus.clear();
     }
 
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
@@ -99,5 +108,109 @@ public class MonitoringStatusTest {
         assertEquals("beaconManager should return restored regions", 50, regions.size());
     }
 
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Test
+    public void defersStatusTimeUpdatesUntilFlushedTest() throws Exception {
+        Context context = ShadowApplication.getInstance().getApplicationContext();
+        MonitoringStatus monitoringStatus = new MonitoringStatus(context);
+        monitoringStatus.clear();
+        monitoringStatus.addRegion(new Region("region", Identifier.parse("1"), null, null), null);
+        long anHourAgo = System.currentTimeMillis() - 1000*3600l;
+        monitoringStatus.updateMonitoringStatusTime(anHourAgo);
+        File file = context.getFileStreamPath(MonitoringStatus.STATUS_PRESERVATION_FILE_NAME);
+
+        Beacon beacon = new AltBeacon.Builder().setId1("2").setId2("1").setId3("1").build();
+        monitoringStatus.updateNewlyInsideInRegionsContaining(beacon);
+        assertTrue("status time should not be written for each detection",
+                file.lastModified() < anHourAgo + 60000l);
+
+        monitoringStatus.flushMonitoringStatusTime();
+        assertTrue("status time should be written when flushed",
+                file.lastModified() > System.currentTimeMillis() - 60000l);
+        monitoringStatus.clear();
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Test
+    public void savesRegionTransitionsInBackgroundUntilFlushedTest() throws Exception {
+        Context context = ShadowApplication.getInstance().getApplicationContext();
+        BeaconManager.setRegionStatePersistencePeriod(60000l);
+        MonitoringStatus monitoringStatus = new MonitoringStatus(context);
+        try {
+            monitoringStatus.clear();
+            Region region = new Region("region", Identifier.parse("1"), null, null);
+            monitoringStatus.addRegion(region, new Callback(context.getPackageName()));
+            Beacon beacon = new AltBeacon.Builder().setId1("1").setId2("1").setId3("1").build();
+            monitoringStatus.updateNewlyInsideInRegionsContaining(beacon);
+            assertTrue("region should be inside", monitoringStatus.stateOf(region).getInside());
+
+            MonitoringStatus beforeFlush = new MonitoringStatus(context);
+            assertFalse("transition should not be saved yet", beforeFlush.stateOf(region).getInside());
+
+            monitoringStatus.flush();
+            MonitoringStatus afterFlush = new MonitoringStatus(context);
+            assertTrue("transition should be saved when flushed", afterFlush.stateOf(region).getInside());
+        }
+        finally {
+            monitoringStatus.clear();
+            BeaconManager.setRegionStatePersistencePeriod(BeaconManager.DEFAULT_REGION_STATE_PERSISTENCE_PERIOD);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Test
+    public void appendsTransitionsToJournalWithoutRewritingSnapshotTest() throws Exception {
+        Context context = ShadowApplication.getInstance().getApplicationContext();
+        MonitoringStatus monitoringStatus = new MonitoringStatus(context);
+        monitoringStatus.clear();
+        Region region = new Region("region", Identifier.parse("1"), null, null);
+        monitoringStatus.addRegion(region, new Callback(context.getPackageName()));
+        File snapshotFile = context.getFileStreamPath(MonitoringStatus.STATUS_PRESERVATION_FILE_NAME);
+        File journalFile = context.getFileStreamPath(MonitoringStatus.STATUS_JOURNAL_FILE_NAME);
+        long snapshotLength = snapshotFile.length();
+        assertFalse("saving a snapshot should empty the journal", journalFile.exists());
+
+        Beacon beacon = new AltBeacon.Builder().setId1("1").setId2("1").setId3("1").build();
+        monitoringStatus.updateNewlyInsideInRegionsContaining(beacon);
+        monitoringStatus.flush();
 
+        assertEquals("snapshot should not be rewritten", snapshotLength, snapshotFile.length());
+        assertEquals("transition should be appended to the journal",
+                MonitoringStatusFormat.JOURNAL_HEADER_SIZE + MonitoringStatusFormat.JOURNAL_RECORD_SIZE,
+                journalFile.length());
+        MonitoringStatus restored = new MonitoringStatus(context);
+        assertTrue("journal should be replayed on restore", restored.stateOf(region).getInside());
+        monitoringStatus.clear();
+        assertFalse(journalFile.exists());
+    }
+
+    @Test
+    public void updatesLastSeenTimeOfRegionAlreadyInsideTest() throws Exception {
+        Context context = ShadowApplication.getInstance().getApplicationContext();
+        MonitoringStatus monitoringStatus = new MonitoringStatus(context);
+        monitoringStatus.clear();
+        Region region = new Region("region", Identifier.parse("1"), null, null);
+        monitoringStatus.addRegion(region, new Callback(context.getPackageName()));
+        File journalFile = context.getFileStreamPath(MonitoringStatus.STATUS_JOURNAL_FILE_NAME);
+        Beacon beacon = new AltBeacon.Builder().setId1("1").setId2("1").setId3("1").build();
+        monitoringStatus.updateNewlyInsideInRegionsContaining(beacon);
+        monitoringStatus.flush();
+        long journalLength = journalFile.length();
+
+        RegionMonitoringState state = monitoringStatus.stateOf(region);
+        state.setState(true, 1l);
+        monitoringStatus.updateNewlyInsideInRegionsContaining(beacon);
+        monitoringStatus.flush();
+        assertTrue("region should still be inside", state.getInside());
+        assertTrue("last seen time should be updated", state.getLastSeenTime() > 1l);
+        assertEquals("no transition should be journaled", journalLength, journalFile.length());
+
+        monitoringStatus.updateLocalState(region, MonitorNotifier.OUTSIDE);
+        monitoringStatus.updateNewlyInsideInRegionsContaining(beacon);
+        monitoringStatus.flush();
+        assertTrue("region should be inside again", state.getInside());
+        assertEquals("the new entry should be journaled",
+                journalLength + MonitoringStatusFormat.JOURNAL_RECORD_SIZE, journalFile.length());
+        monitoringStatus.clear();
+    }
 }
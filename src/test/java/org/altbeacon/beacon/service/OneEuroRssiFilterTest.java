@@ -0,0 +1,99 @@
+package org.altbeacon.beacon.service;
+
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 18)
+public class OneEuroRssiFilterTest {
+
+    @Before
+    public void before() {
+        // Other tests shorten the expiration shared by all filters
+        RunningAverageRssiFilter.setSampleExpirationMilliseconds(RunningAverageRssiFilter.DEFAULT_SAMPLE_EXPIRATION_MILLISECONDS);
+    }
+
+    @Test
+    public void firstMeasurementIsTakenAsIsTest() {
+        OneEuroRssiFilter filter = new OneEuroRssiFilter();
+        assertTrue("no measurements should be available before one is added", filter.noMeasurementsAvailable());
+        filter.addMeasurement(-50);
+        assertFalse(filter.noMeasurementsAvailable());
+        assertEquals(-50.0, filter.calculateRssi(), 0.0001);
+        assertEquals(1, filter.getMeasurementCount());
+    }
+
+    @Test
+    public void steadyNoiseIsSmoothedTest() {
+        OneEuroRssiFilter filter = new OneEuroRssiFilter();
+        // Ends before now, so the measurements have not expired when counted
+        long time = SystemClock.elapsedRealtime() - 10000;
+        filter.addMeasurement(-60, time);
+        double min = 0;
+        double max = -100;
+        for (int i = 0; i < 50; i++) {
+            time += 100;
+            filter.addMeasurement(i % 2 == 0 ? -55 : -65, time);
+            min = Math.min(min, filter.calculateRssi());
+            max = Math.max(max, filter.calculateRssi());
+        }
+        assertTrue("alternating measurements should be smoothed, but ranged from " + min + " to " + max,
+                max - min < 5);
+        assertEquals(51, filter.getMeasurementCount());
+    }
+
+    @Test
+    public void fasterChangeIsFollowedMoreCloselyTest() {
+        OneEuroRssiFilter still = new OneEuroRssiFilter(0.5, 0, 1.0);
+        OneEuroRssiFilter adaptive = new OneEuroRssiFilter(0.5, 0.05, 1.0);
+        long time = SystemClock.elapsedRealtime() - 10000;
+        still.addMeasurement(-50, time);
+        adaptive.addMeasurement(-50, time);
+        for (int i = 0; i < 5; i++) {
+            time += 100;
+            still.addMeasurement(-80, time);
+            adaptive.addMeasurement(-80, time);
+        }
+        assertTrue("a higher beta should follow a change more closely",
+                adaptive.calculateRssi() < still.calculateRssi());
+    }
+
+    @Test
+    public void packetsInTheSameMillisecondAreAveragedTest() {
+        OneEuroRssiFilter filter = new OneEuroRssiFilter();
+        long time = SystemClock.elapsedRealtime();
+        filter.addMeasurement(-50, time);
+        filter.addMeasurement(-60, time);
+        assertEquals(-55.0, filter.calculateRssi(), 0.0001);
+        assertEquals(2, filter.getMeasurementCount());
+    }
+
+    @Test
+    public void packetsInTheSameMillisecondAreFilteredAsTheirAverageTest() {
+        OneEuroRssiFilter sameTime = new OneEuroRssiFilter();
+        OneEuroRssiFilter averaged = new OneEuroRssiFilter();
+        long time = SystemClock.elapsedRealtime() - 10000;
+        for (int i = 0; i < 5; i++) {
+            sameTime.addMeasurement(-80, time);
+            averaged.addMeasurement(-80, time);
+            time += 100;
+        }
+        sameTime.addMeasurement(-50, time);
+        sameTime.addMeasurement(-70, time);
+        sameTime.addMeasurement(-60, time);
+        averaged.addMeasurement(-60, time);
+        assertEquals("each packet in the same millisecond should be weighted equally",
+                averaged.calculateRssi(), sameTime.calculateRssi(), 0.0001);
+        assertEquals(8, sameTime.getMeasurementCount());
+    }
+
+}
@@ -0,0 +1,272 @@
+package org.altbeacon.beacon.service;
+
+import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.BeaconManager;
+import org.altbeacon.beacon.Region;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 18)
+public class RangeStateTest {
+
+    @After
+    public void after() {
+        RunningAverageRssiFilter.setSampleExpirationMilliseconds(RunningAverageRssiFilter.DEFAULT_SAMPLE_EXPIRATION_MILLISECONDS);
+        RangeState.setUseTrackingCache(false);
+        BeaconManager.setMaxTrackedBeacons(BeaconManager.DEFAULT_MAX_TRACKED_BEACONS);
+        BeaconManager.setTrackedBeaconEvictionPolicy(TrackedBeaconEvictionPolicy.LEAST_RECENTLY_SEEN);
+    }
+
+    private Beacon beacon(String id1) {
+        return beacon(id1, -60);
+    }
+
+    private Beacon beacon(String id1, int rssi) {
+        return new Beacon.Builder().setId1(id1).setRssi(rssi).build();
+    }
+
+    /**
+     * @return ids of beacons that fall in the same stripe
+     */
+    private List<String> idsInOneStripe(int count) {
+        List<String> ids = new ArrayList<>();
+        int stripe = RangeState.stripeIndex(beacon("0"));
+        for (int i = 0; ids.size() < count; i++) {
+            if (RangeState.stripeIndex(beacon(Integer.toString(i))) == stripe) {
+                ids.add(Integer.toString(i));
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    public void onlyBeaconsSeenSinceLastCycleAreFinalizedTest() {
+        RangeState rangeState = new RangeState(new Callback("test"));
+        rangeState.addBeacon(beacon("1"));
+        rangeState.addBeacon(beacon("2"));
+        rangeState.addBeacon(beacon("1"));
+        assertEquals(2, rangeState.finalizeBeacons().size());
+
+        assertEquals("beacons not seen again should not be passed on", 0, rangeState.finalizeBeacons().size());
+        assertEquals("beacons with recent measurements should be kept", 2, rangeState.size());
+
+        rangeState.addBeacon(beacon("2"));
+        Collection<Beacon> beacons = new ArrayList<>(rangeState.finalizeBeacons());
+        assertEquals(1, beacons.size());
+        assertEquals(beacon("2"), beacons.iterator().next());
+    }
+
+    @Test
+    public void changesAreReportedOnceUntilTheNextChangeTest() {
+        RangeState rangeState = new RangeState(new Callback("test"));
+        assertTrue("a new range state is saved with its region", !rangeState.takeChanged());
+        rangeState.addBeacon(beacon("1"));
+        assertTrue(rangeState.takeChanged());
+        assertTrue("the change should only be reported once", !rangeState.takeChanged());
+        rangeState.finalizeBeacons();
+        assertTrue("finalizing a seen beacon resets its packet count", rangeState.takeChanged());
+        rangeState.finalizeBeacons();
+        assertTrue("nothing was seen, so nothing changed", !rangeState.takeChanged());
+    }
+
+    @Test
+    public void beaconsWithoutMeasurementsAreRemovedTest() {
+        RangeState rangeState = new RangeState(new Callback("test"));
+        rangeState.addBeacon(beacon("1"));
+        rangeState.finalizeBeacons();
+        assertEquals(1, rangeState.size());
+
+        RunningAverageRssiFilter.setSampleExpirationMilliseconds(0);
+        rangeState.addBeacon(beacon("2"));
+        assertEquals("beacons whose measurements expired should not be passed on", 0, rangeState.finalizeBeacons().size());
+        assertEquals("beacons whose measurements expired should be removed", 0, rangeState.size());
+    }
+
+    @Test
+    public void trackingCacheKeepsPassingOnBeaconsTest() {
+        RangeState.setUseTrackingCache(true);
+        RangeState rangeState = new RangeState(new Callback("test"));
+        rangeState.addBeacon(beacon("1"));
+        assertEquals(1, rangeState.finalizeBeacons().size());
+        assertEquals("beacons should be passed on until the tracking age is exceeded",
+                1, rangeState.finalizeBeacons().size());
+    }
+
+    @Test
+    public void measurementsAddedFromSeveralThreadsAreNotLostTest() throws Exception {
+        final RangeState rangeState = new RangeState(new Callback("test"));
+        final int threadCount = 4;
+        final int beaconCount = 50;
+        final int measurementsPerThread = 10;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < measurementsPerThread; i++) {
+                        for (int b = 0; b < beaconCount; b++) {
+                            rangeState.addBeacon(beacon(Integer.toString(b)));
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Collection<Beacon> beacons = rangeState.finalizeBeacons();
+        assertEquals(beaconCount, beacons.size());
+        for (Beacon beacon : beacons) {
+            assertEquals("no measurement should be lost", threadCount * measurementsPerThread,
+                    beacon.getMeasurementCount());
+        }
+    }
+
+    @Test
+    public void beaconsAreRestoredIntoStripesTest() throws Exception {
+        RangeState rangeState = new RangeState(new Callback("test"));
+        for (int b = 0; b < 20; b++) {
+            rangeState.addBeacon(beacon(Integer.toString(b)));
+        }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
+        objectOutputStream.writeObject(rangeState);
+        objectOutputStream.close();
+
+        RangeState restored = (RangeState) new ObjectInputStream(
+                new ByteArrayInputStream(outputStream.toByteArray())).readObject();
+        assertTrue(restored.getCallback() != null);
+        assertEquals(20, restored.size());
+        assertEquals("tracked beacons should be passed on after restoring", 20, restored.finalizeBeacons().size());
+        restored.addBeacon(beacon("0"));
+        assertEquals(1, restored.finalizeBeacons().size());
+    }
+
+    @Test
+    public void leastRecentlySeenBeaconIsEvictedTest() {
+        List<String> ids = idsInOneStripe(4);
+        long totalEvicted = RangeState.getTotalEvictedBeaconCount();
+        RangeState rangeState = new RangeState(new Callback("test"));
+        rangeState.addBeacon(beacon(ids.get(0)), 3);
+        rangeState.addBeacon(beacon(ids.get(1)), 3);
+        rangeState.addBeacon(beacon(ids.get(2)), 3);
+        rangeState.addBeacon(beacon(ids.get(0)), 3);
+        rangeState.addBeacon(beacon(ids.get(3)), 3);
+
+        assertEquals(3, rangeState.size());
+        assertEquals(1, rangeState.getEvictedBeaconCount());
+        assertEquals(totalEvicted + 1, RangeState.getTotalEvictedBeaconCount());
+        Collection<Beacon> beacons = rangeState.finalizeBeacons();
+        assertEquals(3, beacons.size());
+        assertTrue("least recently seen beacon should be evicted", !beacons.contains(beacon(ids.get(1))));
+    }
+
+    @Test
+    public void weakestBeaconIsEvictedTest() {
+        BeaconManager.setTrackedBeaconEvictionPolicy(TrackedBeaconEvictionPolicy.WEAKEST_SIGNAL);
+        List<String> ids = idsInOneStripe(3);
+        RangeState rangeState = new RangeState(new Callback("test"));
+        rangeState.addBeacon(beacon(ids.get(0), -50), 2);
+        rangeState.addBeacon(beacon(ids.get(1), -90), 2);
+        rangeState.addBeacon(beacon(ids.get(2), -70), 2);
+
+        Collection<Beacon> beacons = rangeState.finalizeBeacons();
+        assertEquals(2, beacons.size());
+        assertTrue("weakest beacon should be evicted", !beacons.contains(beacon(ids.get(1))));
+
+        rangeState.addBeacon(beacon(ids.get(1), -95), 2);
+        assertTrue("a new beacon weaker than all others should be evicted itself",
+                !rangeState.finalizeBeacons().contains(beacon(ids.get(1))));
+        assertEquals(2, rangeState.getEvictedBeaconCount());
+    }
+
+    @Test
+    public void maxTrackedBeaconsMayBeSetPerRegionTest() {
+        Region region = new Region("limited", null, null, null);
+        Region otherRegion = new Region("other", null, null, null);
+        BeaconManager.setMaxTrackedBeacons(5);
+        BeaconManager.setMaxTrackedBeacons(region, 2);
+        try {
+            assertEquals(2, BeaconManager.getMaxTrackedBeacons(region));
+            assertEquals(5, BeaconManager.getMaxTrackedBeacons(otherRegion));
+        }
+        finally {
+            BeaconManager.clearMaxTrackedBeacons(region);
+        }
+        assertEquals(5, BeaconManager.getMaxTrackedBeacons(region));
+    }
+
+    @Test
+    public void beaconCountIsBoundedByGlobalMaxTest() {
+        BeaconManager.setMaxTrackedBeacons(20);
+        RangeState rangeState = new RangeState(new Callback("test"));
+        for (int b = 0; b < 200; b++) {
+            rangeState.addBeacon(beacon(Integer.toString(b)));
+        }
+        assertEquals("no more beacons than allowed should be kept", 20, rangeState.size());
+        assertEquals(180, rangeState.getEvictedBeaconCount());
+    }
+
+    @Test
+    public void limitOfOneKeepsOnlyTheNewestBeaconTest() {
+        RangeState rangeState = new RangeState(new Callback("test"));
+        for (int b = 0; b < 20; b++) {
+            rangeState.addBeacon(beacon(Integer.toString(b)), 1);
+        }
+        assertEquals(1, rangeState.size());
+        Collection<Beacon> beacons = rangeState.finalizeBeacons();
+        assertEquals(1, beacons.size());
+        assertTrue("the last beacon seen should be kept", beacons.contains(beacon("19")));
+    }
+
+    @Test
+    public void leastRecentlySeenBeaconOfAnyStripeIsEvictedTest() {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; ids.size() < 4; i++) {
+            String id = Integer.toString(i);
+            boolean newStripe = true;
+            for (String other : ids) {
+                newStripe &= RangeState.stripeIndex(beacon(other)) != RangeState.stripeIndex(beacon(id));
+            }
+            if (newStripe) {
+                ids.add(id);
+            }
+        }
+        RangeState rangeState = new RangeState(new Callback("test"));
+        rangeState.addBeacon(beacon(ids.get(0)), 3);
+        rangeState.addBeacon(beacon(ids.get(1)), 3);
+        rangeState.addBeacon(beacon(ids.get(2)), 3);
+        rangeState.addBeacon(beacon(ids.get(0)), 3);
+        rangeState.addBeacon(beacon(ids.get(3)), 3);
+
+        Collection<Beacon> beacons = rangeState.finalizeBeacons();
+        assertEquals(3, beacons.size());
+        assertTrue("least recently seen beacon should be evicted from its own stripe",
+                !beacons.contains(beacon(ids.get(1))));
+    }
+}
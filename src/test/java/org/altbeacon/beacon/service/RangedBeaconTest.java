@@ -0,0 +1,98 @@
+package org.altbeacon.beacon.service;
+
+import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.BeaconManager;
+import org.altbeacon.beacon.Region;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 18)
+public class RangedBeaconTest {
+
+    @After
+    public void after() {
+        BeaconManager.setRssiFilterFactory(null);
+        BeaconManager.setRssiFilterImplClass(RunningAverageRssiFilter.class);
+    }
+
+    @Test
+    public void rangedBeaconUsesConfiguredFilterFactoryTest() {
+        final List<RssiFilter> createdFilters = new ArrayList<>();
+        BeaconManager.setRssiFilterFactory(new RssiFilterFactory() {
+            @Override
+            public RssiFilter createRssiFilter(Beacon beacon, Region region) {
+                RssiFilter filter = new ArmaRssiFilter();
+                createdFilters.add(filter);
+                return filter;
+            }
+        });
+        new RangedBeacon(new Beacon.Builder().setId1("1").setRssi(-60).build());
+        new RangedBeacon(new Beacon.Builder().setId1("2").setRssi(-60).build());
+        assertEquals("each ranged beacon should get a filter from the factory", 2, createdFilters.size());
+
+        BeaconManager.setRssiFilterFactory(null);
+        assertTrue("filters of the configured class should be created without a factory",
+                BeaconManager.getRssiFilterFactory().createRssiFilter(new Beacon.Builder().setId1("1").build(), null) instanceof RunningAverageRssiFilter);
+    }
+
+    @Test
+    public void filterFactoryIsGivenTheRangedRegionTest() {
+        final List<Region> regions = new ArrayList<>();
+        BeaconManager.setRssiFilterFactory(new RssiFilterFactory() {
+            @Override
+            public RssiFilter createRssiFilter(Beacon beacon, Region region) {
+                regions.add(region);
+                return new RunningAverageRssiFilter();
+            }
+        });
+        Region region = new Region("ranged", null, null, null);
+        RangeState rangeState = new RangeState(new Callback("test"), region);
+        rangeState.addBeacon(new Beacon.Builder().setId1("1").setRssi(-60).build());
+        rangeState.addBeacon(new Beacon.Builder().setId1("1").setRssi(-60).build());
+        assertEquals("one filter should be created for the beacon in its region",
+                Collections.singletonList(region), regions);
+    }
+
+    @Test
+    public void rangedBeaconUsesConfiguredFilterClassTest() {
+        BeaconManager.setRssiFilterImplClass(ConstantRssiFilter.class);
+        RangedBeacon rangedBeacon = new RangedBeacon(new Beacon.Builder().setId1("1").setRssi(-60).build());
+        rangedBeacon.commitMeasurements();
+        assertEquals("the filter should be constructed from the configured class",
+                ConstantRssiFilter.RSSI, rangedBeacon.getBeacon().getRunningAverageRssi(), 0.0001);
+    }
+
+    public static class ConstantRssiFilter implements RssiFilter {
+        static final double RSSI = -42.0;
+
+        @Override
+        public void addMeasurement(Integer rssi) {
+        }
+
+        @Override
+        public boolean noMeasurementsAvailable() {
+            return false;
+        }
+
+        @Override
+        public double calculateRssi() {
+            return RSSI;
+        }
+
+        @Override
+        public int getMeasurementCount() {
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.altbeacon.beacon.service;
+
+import org.altbeacon.beacon.Identifier;
+import org.altbeacon.beacon.Region;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 18)
+public class RegionExitScheduleTest {
+
+    private static Region region(int i) {
+        return new Region("region" + i, Identifier.fromInt(i), null, null);
+    }
+
+    @Test
+    public void testOnlyEntriesPastTheirDeadlineAreTaken() {
+        RegionExitSchedule schedule = new RegionExitSchedule();
+        RegionMonitoringState early = new RegionMonitoringState(new Callback(null), true, 1000l);
+        RegionMonitoringState late = new RegionMonitoringState(new Callback(null), true, 5000l);
+        schedule.schedule(region(1), late);
+        schedule.schedule(region(2), early);
+
+        assertTrue(schedule.takeExpired(10000l, 10000l).isEmpty());
+        List<RegionExitSchedule.Entry> expired = schedule.takeExpired(12000l, 10000l);
+        assertEquals(1, expired.size());
+        assertSame(early, expired.get(0).state);
+        assertEquals(1, schedule.size());
+    }
+
+    @Test
+    public void testStateIsScheduledOnce() {
+        RegionExitSchedule schedule = new RegionExitSchedule();
+        RegionMonitoringState state = new RegionMonitoringState(new Callback(null), true, 1000l);
+        schedule.schedule(region(1), state);
+        state.setState(true, 2000l);
+        schedule.schedule(region(1), state);
+        assertEquals(1, schedule.size());
+        List<RegionExitSchedule.Entry> expired = schedule.takeExpired(20000l, 10000l);
+        assertEquals("entry keeps the last seen time it was scheduled with", 1000l, expired.get(0).lastSeenTime);
+        schedule.schedule(region(1), state);
+        assertEquals("a taken state can be scheduled again", 1, schedule.size());
+    }
+
+    @Test
+    public void testIsAnyInsideLooksOnlyAtScheduledStates() {
+        RegionExitSchedule schedule = new RegionExitSchedule();
+        assertFalse(schedule.isAnyInside());
+        RegionMonitoringState state = new RegionMonitoringState(new Callback(null), true, 1000l);
+        schedule.schedule(region(1), state);
+        assertTrue(schedule.isAnyInside());
+        state.markOutside();
+        assertFalse(schedule.isAnyInside());
+        schedule.clear();
+        assertEquals(0, schedule.size());
+    }
+}
@@ -5,7 +5,18 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(sdk = 18)
@@ -53,4 +64,103 @@ public class RunningAverageRssiFilterTest {
         assertEquals("RunningAverageRssiFilter sampleExprirationMilliseconds should not be altered by constructing RangedBeacon", 33l, RunningAverageRssiFilter.getSampleExpirationMilliseconds());
     }
 
+    @Test
+    public void outlyingTenthOfMeasurementsIsClippedTest() {
+        RunningAverageRssiFilter.setSampleExpirationMilliseconds(20000);
+        RunningAverageRssiFilter filter = new RunningAverageRssiFilter();
+        for (int i = 0; i < 20; i++) {
+            filter.addMeasurement(-60);
+        }
+        filter.addMeasurement(-10);
+        filter.addMeasurement(-10);
+        filter.addMeasurement(-110);
+        assertEquals("outliers should not affect the average", -60.0, filter.calculateRssi(), 0.0001);
+        assertEquals(23, filter.getMeasurementCount());
+    }
+
+    @Test
+    public void averageMatchesSortedClippedAverageTest() {
+        RunningAverageRssiFilter.setSampleExpirationMilliseconds(20000);
+        Random random = new Random(1234);
+        for (int size = 1; size < 200; size += 7) {
+            RunningAverageRssiFilter filter = new RunningAverageRssiFilter();
+            List<Integer> rssis = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                // Include the occasional reading outside the range of a signed byte
+                int rssi = i % 50 == 49 ? -200 : -100 + random.nextInt(70);
+                rssis.add(rssi);
+                filter.addMeasurement(rssi);
+            }
+            assertEquals("average of " + size + " measurements", sortedClippedAverage(rssis),
+                    filter.calculateRssi(), 0.0001);
+        }
+    }
+
+    @Test
+    public void expiredMeasurementsAreDroppedTest() {
+        RunningAverageRssiFilter filter = new RunningAverageRssiFilter();
+        for (int i = 0; i < 100; i++) {
+            filter.addMeasurement(-50);
+        }
+        RunningAverageRssiFilter.setSampleExpirationMilliseconds(0);
+        filter.calculateRssi();
+        RunningAverageRssiFilter.setSampleExpirationMilliseconds(20000);
+        assertTrue("all measurements should have expired", filter.noMeasurementsAvailable());
+        filter.addMeasurement(-70);
+        assertEquals("only the new measurement should be used", -70.0, filter.calculateRssi(), 0.0001);
+    }
+
+    @Test
+    public void rangedBeaconFilterSurvivesSerializationTest() throws Exception {
+        RunningAverageRssiFilter.setSampleExpirationMilliseconds(20000);
+        RangedBeacon rangedBeacon = new RangedBeacon(new Beacon.Builder().setId1("1").setRssi(-60).build());
+        rangedBeacon.addMeasurement(-70);
+        rangedBeacon.addMeasurement(-80);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
+        objectOutputStream.writeObject(rangedBeacon);
+        objectOutputStream.close();
+
+        RangedBeacon restored = (RangedBeacon) new ObjectInputStream(
+                new ByteArrayInputStream(outputStream.toByteArray())).readObject();
+        restored.commitMeasurements();
+        assertEquals("measurements should be restored", 3, restored.getBeacon().getMeasurementCount());
+        assertEquals(-70.0, restored.getBeacon().getRunningAverageRssi(), 0.0001);
+    }
+
+    @Test
+    public void expiredMeasurementsAreNotSavedTest() throws Exception {
+        RunningAverageRssiFilter filter = new RunningAverageRssiFilter();
+        for (int i = 0; i < 10; i++) {
+            filter.addMeasurement(-50);
+        }
+        RunningAverageRssiFilter.setSampleExpirationMilliseconds(0);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
+        objectOutputStream.writeObject(filter);
+        objectOutputStream.close();
+        RunningAverageRssiFilter.setSampleExpirationMilliseconds(20000);
+
+        RunningAverageRssiFilter restored = (RunningAverageRssiFilter) new ObjectInputStream(
+                new ByteArrayInputStream(outputStream.toByteArray())).readObject();
+        assertEquals("expired measurements should not be saved", 0, restored.getMeasurementCount());
+    }
+
+    private static double sortedClippedAverage(List<Integer> rssis) {
+        List<Integer> sorted = new ArrayList<>(rssis);
+        Collections.sort(sorted);
+        int size = sorted.size();
+        int startIndex = 0;
+        int endIndex = size - 1;
+        if (size > 2) {
+            startIndex = size / 10 + 1;
+            endIndex = size - size / 10 - 2;
+        }
+        double sum = 0;
+        for (int i = startIndex; i <= endIndex; i++) {
+            sum += sorted.get(i);
+        }
+        return sum / (endIndex - startIndex + 1);
+    }
+
 }
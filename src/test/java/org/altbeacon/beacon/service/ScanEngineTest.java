@@ -0,0 +1,73 @@
+package org.altbeacon.beacon.service;
+
+import android.content.Context;
+
+import org.altbeacon.beacon.BeaconManager;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 18)
+public class ScanEngineTest {
+    private Context mContext;
+
+    @Before
+    public void before() {
+        BeaconManager.setsManifestCheckingDisabled(true);
+        mContext = ShadowApplication.getInstance().getApplicationContext();
+    }
+
+    @Test
+    public void testScanJobsShareHelperWhileAttached() {
+        ScanEngine engine = new ScanEngine();
+        ScanHelper first = engine.attach(mContext);
+        ScanHelper second = engine.attach(mContext);
+        assertSame("attached jobs should share the helper", first, second);
+        assertEquals(2, engine.getAttachedCount());
+
+        engine.detach(false);
+        assertTrue("helper should be kept while a job is attached", engine.hasScanHelper());
+        assertTrue("threads should keep running while a job is attached",
+                first.getScanPacketPipeline().offer(null, -50, new byte[0]));
+        engine.detach(false);
+        assertEquals(0, engine.getAttachedCount());
+        assertFalse("helper should be discarded when nothing is left to scan for", engine.hasScanHelper());
+    }
+
+    @Test
+    public void testHelperIsReusedBetweenRunsWhileScanningIsNeeded() {
+        ScanEngine engine = new ScanEngine();
+        ScanHelper first = engine.attach(mContext);
+        engine.detach(true);
+        assertTrue("helper should be kept for the next run", engine.hasScanHelper());
+
+        ScanHelper second = engine.attach(mContext);
+        assertSame("next run should reuse the helper", first, second);
+        assertTrue("reused helper should still accept packets",
+                second.getScanPacketPipeline().offer(null, -50, new byte[0]));
+        engine.detach(false);
+    }
+
+    @Test
+    public void testTearDownStopsThreadsAndNextRunCreatesNewHelper() {
+        ScanEngine engine = new ScanEngine();
+        ScanHelper first = engine.attach(mContext);
+        engine.detach(false);
+        assertFalse("torn down helper should not accept packets",
+                first.getScanPacketPipeline().offer(null, -50, new byte[0]));
+
+        ScanHelper second = engine.attach(mContext);
+        assertNotSame("a new helper should be created after tear down", first, second);
+        engine.detach(false);
+    }
+}
@@ -0,0 +1,160 @@
+package org.altbeacon.beacon.service;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 18)
+public class ScanPacketPipelineTest {
+
+    /**
+     * Records the rssi of each packet it handles.  The first packet blocks its worker until
+     * released, so tests can fill the queue while it is not being drained.
+     */
+    private static class BlockingHandler implements ScanPacketPipeline.PacketHandler {
+        final List<Integer> handledRssis = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch firstPacketStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch allHandled;
+
+        BlockingHandler(int expectedPackets) {
+            allHandled = new CountDownLatch(expectedPackets);
+        }
+
+        @Override
+        public void onPacket(int lane, BluetoothDevice device, int rssi, byte[] scanRecord) {
+            if (firstPacketStarted.getCount() > 0) {
+                firstPacketStarted.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            handledRssis.add(rssi);
+            allHandled.countDown();
+        }
+    }
+
+    private void startBlocked(ScanPacketPipeline pipeline, BlockingHandler handler, BluetoothDevice device)
+            throws Exception {
+        pipeline.offer(device, -1, new byte[0]);
+        assertTrue("first packet should be picked up by the worker",
+                handler.firstPacketStarted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDropOldestDiscardsOldestQueuedPacket() throws Exception {
+        BlockingHandler handler = new BlockingHandler(3);
+        ScanPacketPipeline pipeline = new ScanPacketPipeline(2, 1, ScanPacketOverflowPolicy.DROP_OLDEST, handler);
+        startBlocked(pipeline, handler, null);
+        assertTrue(pipeline.offer(null, -2, new byte[0]));
+        assertTrue(pipeline.offer(null, -3, new byte[0]));
+        assertTrue(pipeline.offer(null, -4, new byte[0]));
+        assertEquals("queue should be bounded by its capacity", 2, pipeline.getQueueDepth());
+        handler.release.countDown();
+        assertTrue(handler.allHandled.await(5, TimeUnit.SECONDS));
+        pipeline.shutdown();
+        assertEquals(Arrays.asList(-1, -3, -4), handler.handledRssis);
+        assertEquals(1, pipeline.getDroppedPacketCount());
+        assertEquals(2, pipeline.getMaxQueueDepth());
+    }
+
+    @Test
+    public void testDropNewestRejectsPacketWhenFull() throws Exception {
+        BlockingHandler handler = new BlockingHandler(3);
+        ScanPacketPipeline pipeline = new ScanPacketPipeline(2, 1, ScanPacketOverflowPolicy.DROP_NEWEST, handler);
+        startBlocked(pipeline, handler, null);
+        assertTrue(pipeline.offer(null, -2, new byte[0]));
+        assertTrue(pipeline.offer(null, -3, new byte[0]));
+        assertFalse(pipeline.offer(null, -4, new byte[0]));
+        handler.release.countDown();
+        assertTrue(handler.allHandled.await(5, TimeUnit.SECONDS));
+        pipeline.shutdown();
+        assertEquals(Arrays.asList(-1, -2, -3), handler.handledRssis);
+        assertEquals(1, pipeline.getDroppedPacketCount());
+    }
+
+    @Test
+    public void testCoalescePerDeviceReplacesQueuedPacketFromSameDevice() throws Exception {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        BluetoothDevice deviceA = adapter.getRemoteDevice("00:11:22:33:44:55");
+        BluetoothDevice deviceB = adapter.getRemoteDevice("66:77:88:99:AA:BB");
+        BlockingHandler handler = new BlockingHandler(3);
+        ScanPacketPipeline pipeline = new ScanPacketPipeline(2, 1, ScanPacketOverflowPolicy.COALESCE_PER_DEVICE, handler);
+        startBlocked(pipeline, handler, deviceA);
+        assertTrue(pipeline.offer(deviceA, -2, new byte[0]));
+        assertTrue(pipeline.offer(deviceB, -3, new byte[0]));
+        assertTrue(pipeline.offer(deviceA, -4, new byte[0]));
+        handler.release.countDown();
+        assertTrue(handler.allHandled.await(5, TimeUnit.SECONDS));
+        pipeline.shutdown();
+        assertEquals(Arrays.asList(-1, -4, -3), handler.handledRssis);
+        assertEquals(0, pipeline.getDroppedPacketCount());
+        assertEquals(1, pipeline.getCoalescedPacketCount());
+    }
+
+    @Test
+    public void testPacketsAreIgnoredAfterShutdown() throws Exception {
+        BlockingHandler handler = new BlockingHandler(1);
+        ScanPacketPipeline pipeline = new ScanPacketPipeline(2, 1, ScanPacketOverflowPolicy.DROP_OLDEST, handler);
+        pipeline.shutdown();
+        assertFalse(pipeline.offer(null, -1, new byte[0]));
+        assertEquals("packets offered after shutdown should not count as dropped", 0, pipeline.getDroppedPacketCount());
+    }
+
+    @Test
+    public void testPacketsFromOneDeviceAreHandledOnOneLane() throws Exception {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        final BluetoothDevice[] devices = new BluetoothDevice[16];
+        for (int i = 0; i < devices.length; i++) {
+            devices[i] = adapter.getRemoteDevice(String.format("00:11:22:33:44:%02X", i));
+        }
+        final int packetsPerDevice = 20;
+        final CountDownLatch allHandled = new CountDownLatch(devices.length * packetsPerDevice);
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        final int[] lastRssis = new int[devices.length];
+        final ScanPacketPipeline[] pipeline = new ScanPacketPipeline[1];
+        pipeline[0] = new ScanPacketPipeline(1000, 4, ScanPacketOverflowPolicy.DROP_OLDEST,
+                new ScanPacketPipeline.PacketHandler() {
+                    @Override
+                    public void onPacket(int lane, BluetoothDevice device, int rssi, byte[] scanRecord) {
+                        int deviceIndex = scanRecord[0];
+                        if (lane != pipeline[0].laneFor(device)) {
+                            failures.add("packet for device " + deviceIndex + " handled on lane " + lane);
+                        }
+                        // Only this lane's worker touches this device's entry
+                        if (rssi != lastRssis[deviceIndex] - 1) {
+                            failures.add("packet for device " + deviceIndex + " handled out of order");
+                        }
+                        lastRssis[deviceIndex] = rssi;
+                        allHandled.countDown();
+                    }
+                });
+        for (int packet = 1; packet <= packetsPerDevice; packet++) {
+            for (int i = 0; i < devices.length; i++) {
+                pipeline[0].offer(devices[i], -packet, new byte[] { (byte) i });
+            }
+        }
+        assertTrue(allHandled.await(5, TimeUnit.SECONDS));
+        pipeline[0].shutdown();
+        assertEquals(Collections.<String>emptyList(), failures);
+        assertEquals(0, pipeline[0].getDroppedPacketCount());
+    }
+}
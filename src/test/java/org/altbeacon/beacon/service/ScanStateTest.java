@@ -9,7 +9,11 @@ import android.content.Context;
 import android.os.AsyncTask;
 import android.os.Build;
 
+import org.altbeacon.beacon.AltBeaconParser;
+import org.altbeacon.beacon.Beacon;
 import org.altbeacon.beacon.BeaconManager;
+import org.altbeacon.beacon.Identifier;
+import org.altbeacon.beacon.Region;
 import org.altbeacon.beacon.logging.LogManager;
 import org.altbeacon.beacon.logging.Loggers;
 import org.altbeacon.beacon.service.scanner.CycledLeScanCallback;
@@ -22,9 +26,19 @@ import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowApplication;
 import org.robolectric.util.ServiceController;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.concurrent.ThreadPoolExecutor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by dyoung on 7/1/15.
@@ -54,4 +68,161 @@ public class ScanStateTest {
         assertEquals("Scan start time should be restored",
                 scanState.getLastScanStartTimeMillis(), scanState2.getLastScanStartTimeMillis());
     }
-}
\ No newline at end of file
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Test
+    public void sectionsAreRestoredOnFirstAccessTest() throws Exception {
+        Context context = ShadowApplication.getInstance().getApplicationContext();
+        ScanState scanState = new ScanState(context);
+        scanState.setMonitoringStatus(new MonitoringStatus(context));
+        scanState.setBeaconParsers(new HashSet<>(Collections.singletonList(new AltBeaconParser())));
+        Map<Region, RangeState> rangedRegionState = new HashMap<>();
+        Region region = new Region("ranged", Identifier.parse("1"), null, null);
+        rangedRegionState.put(region, new RangeState(new Callback(context.getPackageName())));
+        scanState.setRangedRegionState(rangedRegionState);
+        scanState.save();
+        scanState.flush();
+
+        ScanState scanState2 = ScanState.restore(context);
+        assertEquals(1, scanState2.getBeaconParsers().size());
+        assertEquals(Collections.singleton(region), scanState2.getRangedRegionState().keySet());
+        Region restoredRegion = scanState2.getRangedRegionState().keySet().iterator().next();
+        assertTrue(restoredRegion.hasSameIdentifiers(region));
+        assertTrue(scanState2.getExtraBeaconDataTracker() != null);
+    }
+
+    @Test
+    public void rangedRegionIndexFollowsReplacedRegionsTest() throws Exception {
+        Context context = ShadowApplication.getInstance().getApplicationContext();
+        ScanState scanState = new ScanState(context);
+        Beacon beacon = new Beacon.Builder().setId1("2").build();
+        Map<Region, RangeState> rangedRegionState = new HashMap<>();
+        rangedRegionState.put(new Region("ranged", Identifier.parse("1"), null, null),
+                new RangeState(new Callback(context.getPackageName())));
+        scanState.setRangedRegionState(rangedRegionState);
+        assertEquals(0, scanState.getRangedRegionIndex().matchingRegions(beacon).size());
+
+        Map<Region, RangeState> replacedRegionState = new HashMap<>();
+        Region region = new Region("ranged", Identifier.parse("2"), null, null);
+        replacedRegionState.put(region, new RangeState(new Callback(context.getPackageName())));
+        scanState.setRangedRegionState(replacedRegionState);
+        assertEquals(Collections.singletonList(region), scanState.getRangedRegionIndex().matchingRegions(beacon));
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Test
+    public void rangedBeaconsAreRestoredWithTheirMeasurementsTest() throws Exception {
+        Context context = ShadowApplication.getInstance().getApplicationContext();
+        ScanState scanState = new ScanState(context);
+        scanState.setMonitoringStatus(new MonitoringStatus(context));
+        Map<Region, RangeState> rangedRegionState = new HashMap<>();
+        Region region = new Region("ranged", null, null, null);
+        RangeState rangeState = new RangeState(new Callback(context.getPackageName()));
+        rangeState.addBeacon(new Beacon.Builder().setId1("1").setRssi(-60).build());
+        rangeState.addBeacon(new Beacon.Builder().setId1("1").setRssi(-70).build());
+        rangedRegionState.put(region, rangeState);
+        scanState.setRangedRegionState(rangedRegionState);
+        scanState.save();
+        scanState.flush();
+
+        RangeState restored = ScanState.restore(context).getRangedRegionState().get(region);
+        Collection<Beacon> beacons = restored.finalizeBeacons();
+        assertEquals(1, beacons.size());
+        Beacon beacon = beacons.iterator().next();
+        assertEquals("filter measurements should be restored", 2, beacon.getMeasurementCount());
+        assertEquals(-65.0, beacon.getRunningAverageRssi(), 0.0001);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Test
+    public void onlyChangedSectionsAreRewrittenTest() throws Exception {
+        Context context = ShadowApplication.getInstance().getApplicationContext();
+        ScanState scanState = new ScanState(context);
+        scanState.setMonitoringStatus(new MonitoringStatus(context));
+        scanState.setBeaconParsers(new HashSet<>(Collections.singletonList(new AltBeaconParser())));
+        scanState.save();
+        scanState.flush();
+        File[] sectionFiles = context.getFilesDir().listFiles();
+        long anHourAgo = System.currentTimeMillis() - 1000*3600l;
+        for (File file : sectionFiles) {
+            file.setLastModified(anHourAgo);
+        }
+
+        ScanState scanState2 = ScanState.restore(context);
+        scanState2.setLastScanStartTimeMillis(5678);
+        scanState2.save();
+        scanState2.flush();
+
+        int rewritten = 0;
+        for (File file : sectionFiles) {
+            if (file.getName().startsWith("android-beacon-library-scan-state") && file.lastModified() > anHourAgo) {
+                rewritten++;
+            }
+        }
+        assertEquals("only the settings section should be rewritten", 1, rewritten);
+        assertEquals(5678, ScanState.restore(context).getLastScanStartTimeMillis());
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Test
+    public void extraDataTrackerIsRewrittenOnlyWhenChangedTest() throws Exception {
+        Context context = ShadowApplication.getInstance().getApplicationContext();
+        ScanState scanState = new ScanState(context);
+        scanState.setMonitoringStatus(new MonitoringStatus(context));
+        scanState.save();
+        scanState.flush();
+        for (File file : context.getFilesDir().listFiles()) {
+            if (file.getName().startsWith("android-beacon-library-scan-state-")) {
+                file.setLastModified(System.currentTimeMillis() - 1000*3600l);
+            }
+        }
+        ScanState scanState2 = ScanState.restore(context);
+        ExtraDataBeaconTracker tracker = scanState2.getExtraBeaconDataTracker();
+        long[] modified = sectionFileTimes(context);
+        scanState2.save();
+        scanState2.flush();
+        assertTrue("no section should be rewritten", Arrays.equals(modified, sectionFileTimes(context)));
+
+        tracker.track(new Beacon.Builder().setId1("1").setServiceUuid(0xfeaa)
+                .setBluetoothAddress("01:02:03:04:05:06").build());
+        scanState2.save();
+        scanState2.flush();
+        long[] rewritten = sectionFileTimes(context);
+        int rewrittenCount = 0;
+        for (int i = 0; i < modified.length; i++) {
+            if (rewritten[i] != modified[i]) {
+                rewrittenCount++;
+            }
+        }
+        assertEquals("only the tracker section should be rewritten", 1, rewrittenCount);
+    }
+
+    private static long[] sectionFileTimes(Context context) {
+        File[] files = context.getFilesDir().listFiles();
+        Arrays.sort(files);
+        long[] times = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            times[i] = files[i].getName().startsWith("android-beacon-library-scan-state-") ? files[i].lastModified() : 0;
+        }
+        return times;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Test
+    public void stateSavedByOlderVersionsIsRestoredTest() throws Exception {
+        Context context = ShadowApplication.getInstance().getApplicationContext();
+        for (File file : context.getFilesDir().listFiles()) {
+            if (file.getName().startsWith("android-beacon-library-scan-state")) {
+                file.delete();
+            }
+        }
+        ScanState scanState = new ScanState(context);
+        scanState.setLastScanStartTimeMillis(4321);
+        ObjectOutputStream outputStream = new ObjectOutputStream(
+                new FileOutputStream(new File(context.getFilesDir(), "android-beacon-library-scan-state")));
+        outputStream.writeObject(scanState);
+        outputStream.close();
+
+        assertEquals(4321, ScanState.restore(context).getLastScanStartTimeMillis());
+    }
+}
@@ -54,4 +54,29 @@ public class DistinctPacketDetectorTest {
         assertTrue("second call with same packet after clear should be distinct", secondResult);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testExactCompareDetectsDuplicatesAndDistinctPackets() throws Exception {
+        DistinctPacketDetector dpd = new DistinctPacketDetector(true);
+        assertTrue(dpd.isPacketDistinct("01:02:03:04:05:06", new byte[] {0x01, 0x02}));
+        assertFalse("same packet should not be distinct",
+                dpd.isPacketDistinct("01:02:03:04:05:06", new byte[] {0x01, 0x02}));
+        assertTrue("different packet should be distinct",
+                dpd.isPacketDistinct("01:02:03:04:05:06", new byte[] {0x01, 0x03}));
+    }
+
+    @Test
+    public void testPacketsBeyondTrackingLimitAreNotRemembered() throws Exception {
+        DistinctPacketDetector dpd = new DistinctPacketDetector();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue("packet " + i + " should be distinct",
+                    dpd.isPacketDistinct("01:02:03:04:05:06", new byte[] {(byte) (i >> 8), (byte) i}));
+        }
+        assertFalse("new packet past the limit should not be reported as distinct",
+                dpd.isPacketDistinct("01:02:03:04:05:06", new byte[] {0x7f, 0x7f}));
+        assertTrue("packet seen before the limit should give the same result as before",
+                dpd.isPacketDistinct("01:02:03:04:05:06", new byte[] {0x00, 0x01}));
+        dpd.clearDetections();
+        assertTrue(dpd.isPacketDistinct("01:02:03:04:05:06", new byte[] {0x7f, 0x7f}));
+    }
+
+}
@@ -42,4 +42,26 @@ public class BleAdvertisementTest {
         assertEquals("Fourth PDU should be scan response type 9", 9, bleAdvert.getPdus().get(3).getType());
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCursorVisitsSamePdusAsBleAdvertisement() {
+        byte[] bytes = hexStringToByteArray("0201060303aafe1516aafe00e72f234454f4911ba9ffa60000000000010c09526164426561636f6e2047");
+        BleAdvertisement bleAdvert = new BleAdvertisement(bytes);
+        int index = 0;
+        for (int cursor = PduCursor.first(bytes); cursor != PduCursor.END; cursor = PduCursor.next(bytes, cursor)) {
+            Pdu pdu = bleAdvert.getPdus().get(index++);
+            assertEquals("Cursor type should match PDU", pdu.getType(), PduCursor.getType(bytes, cursor));
+            assertEquals("Cursor declared length should match PDU", pdu.getDeclaredLength(), PduCursor.getDeclaredLength(bytes, cursor));
+            assertEquals("Cursor start index should match PDU", pdu.getStartIndex(), PduCursor.getStartIndex(cursor));
+            assertEquals("Cursor end index should match PDU", pdu.getEndIndex(), PduCursor.getEndIndex(bytes, cursor));
+        }
+        assertEquals("Cursor should visit every PDU", 4, index);
+        assertEquals("Last PDU should end at the end of the buffer", bytes.length - 1, bleAdvert.getPdus().get(3).getEndIndex());
+    }
+
+    @Test
+    public void testCursorFindsNoPdusInEmptyAdvertisement() {
+        assertEquals("Empty advert should have no PDUs", PduCursor.END, PduCursor.first(new byte[0]));
+        assertEquals("Zero length PDU should end the advert", PduCursor.END, PduCursor.first(hexStringToByteArray("0001")));
+    }
+}